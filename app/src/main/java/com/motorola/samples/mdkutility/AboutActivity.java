@@ -29,23 +29,39 @@
 package com.motorola.samples.mdkutility;
 
 import android.app.Activity;
+import android.content.Intent;
 import android.os.Bundle;
 import android.text.Html;
 import android.text.method.LinkMovementMethod;
 import android.view.MenuItem;
+import android.view.View;
 import android.widget.TextView;
 import android.widget.Toolbar;
 
 import com.motorola.mod.ModManager;
+import com.motorola.samples.mdkutility.firmware.FirmwareMetrics;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A class to represent About Activity view.
  */
 public class AboutActivity extends Activity {
+    /** Reads the firmware metrics file, kept off the UI thread */
+    private final ExecutorService metricsExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "aboutMetrics");
+                }
+            });
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -118,6 +134,8 @@ public class AboutActivity extends Activity {
         TextView tvService = (TextView) findViewById(R.id.about_service);
         tvService.setText(content);
 
+        showFirmwareMetrics(uid);
+
         TextView tvLicense = (TextView) findViewById(R.id.license_notice);
         tvLicense.setText(Html.fromHtml(loadHtml()));
     }
@@ -133,6 +151,107 @@ public class AboutActivity extends Activity {
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onDestroy() {
+        metricsExecutor.shutdownNow();
+        super.onDestroy();
+    }
+
+    /**
+     * Show the firmware update latencies, of all mods and of the attached one.
+     * Long press to export every record as CSV. The metrics file is loaded,
+     * summarized and dumped on the metrics thread.
+     */
+    private void showFirmwareMetrics(final String uid) {
+        final TextView tvMetrics = (TextView) findViewById(R.id.about_firmware_metrics);
+        if (tvMetrics == null) {
+            return;
+        }
+
+        metricsExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final FirmwareMetrics metrics = FirmwarePersonality.getMetrics(AboutActivity.this);
+                if (metrics == null || metrics.size() == 0) {
+                    return;
+                }
+
+                final FirmwareMetrics.Summary all = metrics.summarize(FirmwareMetrics.ANY,
+                        FirmwareMetrics.ANY);
+                final FirmwareMetrics.Summary mod = uid == null ? null
+                        : metrics.summarize(FirmwareMetrics.idOf(uid), FirmwareMetrics.ANY);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isDestroyed()) {
+                            showFirmwareMetrics(tvMetrics, metrics, all, mod);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void showFirmwareMetrics(TextView tvMetrics, final FirmwareMetrics metrics,
+                                     FirmwareMetrics.Summary all, FirmwareMetrics.Summary mod) {
+        String content = formatSummary(getString(R.string.firmware_metrics_all), all);
+        if (mod != null && mod.updates > 0) {
+            content += "\n\n" + formatSummary(getString(R.string.firmware_metrics_mod), mod);
+        }
+        tvMetrics.setText(content);
+        tvMetrics.setVisibility(View.VISIBLE);
+
+        tvMetrics.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                exportFirmwareMetrics(metrics);
+                return true;
+            }
+        });
+    }
+
+    /** Dump every record as CSV on the metrics thread, then offer to share it */
+    private void exportFirmwareMetrics(final FirmwareMetrics metrics) {
+        metricsExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final StringWriter dump = new StringWriter();
+                try {
+                    metrics.dump(dump);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isDestroyed()) {
+                            return;
+                        }
+                        Intent intent = new Intent(Intent.ACTION_SEND);
+                        intent.setType("text/csv");
+                        intent.putExtra(Intent.EXTRA_TEXT, dump.toString());
+                        startActivity(Intent.createChooser(intent,
+                                getString(R.string.firmware_metrics_export)));
+                    }
+                });
+            }
+        });
+    }
+
+    private String formatSummary(String title, FirmwareMetrics.Summary summary) {
+        return String.format(getString(R.string.firmware_metrics), title,
+                summary.updates, summary.failures,
+                seconds(summary.flash.p50), seconds(summary.flash.p95), seconds(summary.flash.p99),
+                seconds(summary.reenumeration.p50), seconds(summary.reenumeration.p95),
+                seconds(summary.reenumeration.p99));
+    }
+
+    private String seconds(int ms) {
+        return ms < 0 ? getString(R.string.na) : String.format(Locale.US, "%.1fs", ms / 1000.0);
+    }
+
     /**
      * Load html file content from raw resource file
      */
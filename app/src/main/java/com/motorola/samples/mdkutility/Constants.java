@@ -49,4 +49,16 @@ public class Constants {
     public static final int PID_DEVELOPER = 0x00000001;
     public static final int PID_BLINKY = 0x00010403;
 
+    /** Mods in developer mode, the only ones allowed to flash firmware */
+    public static final ModDeviceMatcher MATCH_DEVELOPER =
+            ModDeviceMatcher.forProduct(VID_DEVELOPER, INVALID_ID);
+
+    /** MDK mods, in developer mode or not */
+    public static final ModDeviceMatcher MATCH_MDK = ModDeviceMatcher.anyOf(
+            MATCH_DEVELOPER, ModDeviceMatcher.forProduct(VID_MDK, INVALID_ID));
+
+    /** Mods which take the Blinky RAW commands */
+    public static final ModDeviceMatcher MATCH_BLINKY = ModDeviceMatcher.anyOf(
+            ModDeviceMatcher.forProduct(VID_MDK, PID_BLINKY), MATCH_DEVELOPER);
+
 }
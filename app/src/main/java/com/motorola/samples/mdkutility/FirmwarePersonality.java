@@ -32,12 +32,36 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.database.Cursor;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
 import android.util.Log;
 
+import com.motorola.mod.ModDevice;
 import com.motorola.mod.ModManager;
+import com.motorola.samples.mdkutility.firmware.FirmwareCatalog;
+import com.motorola.samples.mdkutility.firmware.FirmwareMetrics;
+import com.motorola.samples.mdkutility.firmware.FirmwareOrchestrator;
+import com.motorola.samples.mdkutility.firmware.FirmwareStore;
+import com.motorola.samples.mdkutility.firmware.FirmwareStoreProvider;
+import com.motorola.samples.mdkutility.firmware.FirmwareUpdate;
+import com.motorola.samples.mdkutility.firmware.FirmwareUpdateQueue;
+import com.motorola.samples.mdkutility.firmware.FirmwareUpdateTimer;
+import com.motorola.samples.mdkutility.firmware.FirmwareValidator;
+import com.motorola.samples.mdkutility.firmware.UriFirmwareValidator;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A class to represent ModManager firmware update interface.
@@ -45,7 +69,6 @@ import java.util.List;
 public class FirmwarePersonality extends Personality {
     private BroadcastReceiver modEventReceiver;
     private BroadcastReceiver requestFwReceiver;
-    private List<Uri> pendingUri;
 
     /**
      * Constructor
@@ -73,6 +96,27 @@ public class FirmwarePersonality extends Personality {
          * https://developer.android.com/reference/android/content/Context.html#registerReceiver
          */
         context.registerReceiver(requestFwReceiver, filter, ModManager.PERMISSION_MOD_INTERNAL, null);
+
+        /** Offer the last flashed image again, without browsing for it */
+        storeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                FirmwareStore store = FirmwareStoreProvider.getStore(context);
+                if (store == null) {
+                    return;
+                }
+
+                /** Load the catalog now, it is needed fast when a mod asks for firmware */
+                FirmwareStoreProvider.getCatalog(context);
+
+                List<FirmwareStore.Entry> entries = store.list();
+                if (!entries.isEmpty()) {
+                    List<Uri> uris = new ArrayList<>();
+                    uris.add(FirmwareStoreProvider.getUri(entries.get(0)));
+                    notifyListeners(MSG_FIRMWARE_STORED, 0, 0, uris);
+                }
+            }
+        });
     }
 
     @Override
@@ -80,52 +124,389 @@ public class FirmwarePersonality extends Personality {
         super.onDestroy();
         context.unregisterReceiver(requestFwReceiver);
         context.unregisterReceiver(modEventReceiver);
+
+        /** Stop waiting for an update in progress, and drop the queued ones */
+        updateExecutor.shutdownNow();
+        storeExecutor.shutdownNow();
+    }
+
+    /** Mod state: the firmware files last flashed onto the mod, and when */
+    public static final String STATE_FIRMWARE = "firmware";
+    public static final String STATE_FIRMWARE_TIME = "firmware_time";
+
+    /** Result codes of performUpdate() */
+    public static final int FIRMWARE_UPDATE_SUCCESS = FirmwareUpdate.RESULT_SUCCESS;
+    public static final int FIRMWARE_UPDATE_FAILED = FirmwareUpdate.RESULT_FAILED;
+    public static final int FIRMWARE_UPDATE_ILLEGAL_EXCEPTION = FirmwareUpdate.RESULT_ILLEGAL_EXCEPTION;
+    public static final int FIRMWARE_UPDATE_SECURITY_EXCEPTION = FirmwareUpdate.RESULT_SECURITY_EXCEPTION;
+    public static final int FIRMWARE_UPDATE_TIMEOUT = FirmwareUpdate.RESULT_TIMEOUT;
+    public static final int FIRMWARE_UPDATE_CANCELLED = FirmwareUpdate.RESULT_CANCELLED;
+    public static final int FIRMWARE_UPDATE_INVALID_IMAGE = FirmwareUpdate.RESULT_INVALID_IMAGE;
+
+    /** Firmware updates run one at a time on their own thread */
+    private final ExecutorService updateExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "firmwareUpdate");
+                }
+            });
+
+    /** Imports into the firmware store, not held up by an update in progress */
+    private final ExecutorService storeExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "firmwareStore");
+                }
+            });
+
+    private final FirmwareUpdateQueue<ModDevice, Uri> updateQueue = new FirmwareUpdateQueue<>(
+            new FirmwareUpdateQueue.Backend<ModDevice, Uri>() {
+                @Override
+                public void grantUriPermission(Uri uri) {
+                    context.grantUriPermission("com.motorola.modservice",
+                            uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                }
+
+                @Override
+                public void revokeUriPermission(Uri uri) {
+                    context.revokeUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                }
+
+                @Override
+                public int requestUpdateFirmware(ModDevice device, List<Uri> uris)
+                        throws Exception {
+                    ModManager manager = modManager;
+                    if (manager == null) {
+                        Log.e(Constants.TAG, "modManager.requestUpdateFirmware no ModManager.");
+                        return FIRMWARE_UPDATE_FAILED;
+                    }
+                    return manager.requestUpdateFirmware(device, uris);
+                }
+            },
+            updateExecutor,
+            new FirmwareUpdateQueue.ProgressListener<ModDevice, Uri>() {
+                @Override
+                public void onProgress(FirmwareUpdate<ModDevice, Uri> update) {
+                    if (update.getState() == FirmwareUpdate.STATE_DONE
+                            && update.getResult() < 0) {
+                        Log.e(Constants.TAG, "Firmware update failed: " + update.getResult());
+                    }
+                    notifyListeners(MSG_UPDATE_PROGRESS, update.getState(), update.getResult(),
+                            update);
+                    orchestrator.onProgress(update);
+                    timer.onProgress(update, deviceIdOf(update.getDevice()),
+                            imageIdOf(update.getUris()), SystemClock.elapsedRealtime());
+                    if (update.getState() == FirmwareUpdate.STATE_DONE
+                            && update.getResult() == FirmwareUpdate.RESULT_SUCCESS) {
+                        learnFirmware(update);
+                        rememberFirmware(update);
+                    }
+                }
+            },
+            FirmwareUpdateQueue.DEFAULT_DONE_TIMEOUT_MS,
+            new UriFirmwareValidator(context.getContentResolver(), new FirmwareValidator()));
+
+    /** Times every update, the records are written on the store thread */
+    private final FirmwareUpdateTimer timer = new FirmwareUpdateTimer(
+            new FirmwareUpdateTimer.Sink() {
+                @Override
+                public void onRecord(final FirmwareMetrics.Record record) {
+                    storeExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            FirmwareMetrics metrics = getMetrics(context);
+                            if (metrics == null) {
+                                return;
+                            }
+                            try {
+                                metrics.append(record);
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    });
+                }
+            });
+
+    private static final String METRICS_FILE = "firmware_metrics";
+    private static FirmwareMetrics metrics;
+
+    /** Get the firmware update timings of the application, null if they can't be opened */
+    public static synchronized FirmwareMetrics getMetrics(Context context) {
+        if (metrics == null) {
+            try {
+                metrics = new FirmwareMetrics(new File(context.getFilesDir(), METRICS_FILE),
+                        FirmwareMetrics.DEFAULT_CAPACITY);
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Cannot open the firmware metrics.");
+                e.printStackTrace();
+            }
+        }
+        return metrics;
+    }
+
+    /** Id of the mod in the firmware metrics */
+    public static long deviceIdOf(ModDevice device) {
+        return FirmwareMetrics.idOf(ModSnapshot.keyOf(device).toString());
+    }
+
+    /** Id of the firmware files in the firmware metrics, the hashes of stored files */
+    public static long imageIdOf(List<Uri> uris) {
+        StringBuilder sb = new StringBuilder();
+        for (Uri uri : uris) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            if (FirmwareStoreProvider.AUTHORITY.equals(uri.getAuthority())) {
+                sb.append(uri.getLastPathSegment());
+            } else {
+                sb.append(uri.toString());
+            }
+        }
+        return FirmwareMetrics.idOf(sb.toString());
     }
 
-    /** Provide firmware files and call ModManager function to flash the firmware */
-    public static final int FIRMWARE_UPDATE_SUCCESS = 0;
-    public static final int FIRMWARE_UPDATE_FAILED = -1;
-    public static final int FIRMWARE_UPDATE_ILLEGAL_EXCEPTION = -2;
-    public static final int FIRMWARE_UPDATE_SECURITY_EXCEPTION = -3;
+    /** Queues updates per mod, for flashing many mods in a row */
+    private final FirmwareOrchestrator<ModDevice, Uri> orchestrator = new FirmwareOrchestrator<>(
+            updateQueue,
+            new FirmwareOrchestrator.Listener<ModDevice, Uri>() {
+                @Override
+                public void onJobChanged(FirmwareOrchestrator.Job<ModDevice, Uri> job) {
+                    notifyListeners(MSG_UPDATE_JOB, job.getState(), job.getResult(), job);
+                }
+            },
+            FirmwareOrchestrator.DEFAULT_MAX_ATTEMPTS);
 
-    public int performUpdate(Context context, List<Uri> pendingFirmware) {
-        int result = FIRMWARE_UPDATE_FAILED;
+    /**
+     * Provide firmware files to ModManager to flash the firmware of the mod
+     * device, without blocking the caller. Listeners get MSG_UPDATE_PROGRESS
+     * for every state of the update, with the FirmwareUpdate in msg.obj.
+     * Every image is validated first, a bad one fails the update with
+     * FIRMWARE_UPDATE_INVALID_IMAGE without reaching ModManager.
+     * Returns null if there is no mod or no firmware file to flash.
+     */
+    public FirmwareUpdate<ModDevice, Uri> performUpdate(List<Uri> pendingFirmware) {
         if (null == modDevice) {
             Log.e(Constants.TAG, "No Mod to flash.");
-            return result;
+            return null;
         }
 
         if (null == pendingFirmware
                 || pendingFirmware.size() == 0) {
             Log.e(Constants.TAG, "No firmware file to flash.");
-            return result;
+            return null;
+        }
+
+        return updateQueue.submit(modDevice, new ArrayList<>(pendingFirmware));
+    }
+
+    /**
+     * Flash the firmware files onto every developer mod attached from now on,
+     * once each, one after another. Null stops. Listeners get MSG_UPDATE_JOB
+     * for every job.
+     */
+    public void performFleetUpdate(List<Uri> firmware) {
+        orchestrator.setFleetImage(firmware);
+    }
+
+    public FirmwareOrchestrator<ModDevice, Uri> getOrchestrator() {
+        return orchestrator;
+    }
+
+    @Override
+    protected void onModSnapshot(ModSnapshot current, List<ModSnapshot.Delta> deltas) {
+        super.onModSnapshot(current, deltas);
+
+        /** Only developer mods may be flashed */
+        Map<Object, ModDevice> devices = new LinkedHashMap<>();
+        for (ModDevice d : current.getDevices()) {
+            if (Constants.MATCH_DEVELOPER.matches(d)) {
+                devices.put(ModSnapshot.keyOf(d), d);
+            }
         }
 
-        pendingUri = pendingFirmware;
-        /** Generate the URI permissions for ModService to access */
-        for (Uri u : pendingUri) {
-            context.grantUriPermission("com.motorola.modservice",
-                    u, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        /** Every enumeration makes new ModDevices, tell which ones changed */
+        List<Object> changed = new ArrayList<>();
+        for (ModSnapshot.Delta delta : deltas) {
+            changed.add(ModSnapshot.keyOf(delta.after != null ? delta.after : delta.before));
+        }
+        orchestrator.onDevices(devices, changed);
+    }
+
+    /**
+     * Copy the picked firmware files into the firmware store, off the caller's
+     * thread. Listeners get MSG_FIRMWARE_STORED with the URIs to flash, the
+     * store URIs of the imported files and the picked URIs of any that failed.
+     */
+    public void importFirmware(List<Uri> picked) {
+        final List<Uri> uris = new ArrayList<>(picked);
+        storeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                FirmwareStore store = FirmwareStoreProvider.getStore(context);
+                List<Uri> stored = new ArrayList<>();
+                for (Uri uri : uris) {
+                    FirmwareStore.Entry entry = null;
+                    if (store != null) {
+                        entry = importFirmware(store, uri);
+                    }
+                    stored.add(entry != null ? FirmwareStoreProvider.getUri(entry) : uri);
+                }
+                notifyListeners(MSG_FIRMWARE_STORED, 1, 0, stored);
+            }
+        });
+    }
+
+    private FirmwareStore.Entry importFirmware(FirmwareStore store, Uri uri) {
+        if (FirmwareStoreProvider.AUTHORITY.equals(uri.getAuthority())) {
+            return store.find(uri.getLastPathSegment());
         }
 
+        ParcelFileDescriptor pfd = null;
+        FileInputStream in = null;
         try {
-            /** Provide the firmware file uris to ModManager for update */
-            result = modManager.requestUpdateFirmware(modDevice, pendingUri);
-        } catch (IllegalArgumentException e) {
-            result = FIRMWARE_UPDATE_ILLEGAL_EXCEPTION;
-            Log.e(Constants.TAG, "modManager.requestUpdateFirmware illegal failed.");
-            e.printStackTrace();
-        } catch (SecurityException e) {
-            result = FIRMWARE_UPDATE_SECURITY_EXCEPTION;
-            Log.e(Constants.TAG, "modManager.requestUpdateFirmware security failed.");
-            e.printStackTrace();
-        } catch (Exception e) {
-            result = FIRMWARE_UPDATE_FAILED;
-            Log.e(Constants.TAG, "modManager.requestUpdateFirmware failed.");
+            pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+            if (pfd == null) {
+                return null;
+            }
+            in = new FileInputStream(pfd.getFileDescriptor());
+            return store.put(in.getChannel(), getDisplayName(uri));
+        } catch (IOException | SecurityException e) {
+            Log.e(Constants.TAG, "Cannot store firmware " + uri);
             e.printStackTrace();
+            return null;
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+                if (pfd != null) {
+                    pfd.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Get the name of a firmware file to show */
+    public String getFirmwareName(Uri uri) {
+        if (FirmwareStoreProvider.AUTHORITY.equals(uri.getAuthority())) {
+            FirmwareStore store = FirmwareStoreProvider.getStore(context);
+            FirmwareStore.Entry entry = store == null ? null : store.find(uri.getLastPathSegment());
+            if (entry != null) {
+                return entry.name;
+            }
+        }
+        String name = uri.getLastPathSegment();
+        return name == null ? uri.toString() : name.substring(name.indexOf(':') + 1);
+    }
+
+    private String getDisplayName(Uri uri) {
+        Cursor cursor = context.getContentResolver().query(uri,
+                new String[]{OpenableColumns.DISPLAY_NAME}, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                    return cursor.getString(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return getFirmwareName(uri);
+    }
+
+    /**
+     * Remember the images a mod was flashed with from the firmware store, to
+     * supply them when a mod of the same VID / PID asks for firmware.
+     */
+    private void learnFirmware(final FirmwareUpdate<ModDevice, Uri> update) {
+        final List<String> hashes = new ArrayList<>();
+        for (Uri uri : update.getUris()) {
+            if (!FirmwareStoreProvider.AUTHORITY.equals(uri.getAuthority())) {
+                return;
+            }
+            hashes.add(uri.getLastPathSegment());
         }
 
-        return result;
+        storeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                FirmwareCatalog catalog = FirmwareStoreProvider.getCatalog(context);
+                if (catalog == null) {
+                    return;
+                }
+                ModDevice device = update.getDevice();
+                catalog.put(device.getVendorId(), device.getProductId(), hashes);
+                FirmwareStoreProvider.getStore(context).setPinned(catalog.getImages());
+            }
+        });
+    }
+
+    /** Keep what the mod was last flashed with in its mod state */
+    private void rememberFirmware(FirmwareUpdate<ModDevice, Uri> update) {
+        ModDevice device = update.getDevice();
+        if (device.getUniqueId() == null) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Uri uri : update.getUris()) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(getFirmwareName(uri));
+        }
+        String mod = device.getUniqueId().toString();
+        ModStateStore store = MDKUtilityApplication.getModState(context);
+        store.putString(mod, STATE_FIRMWARE, sb.toString());
+        store.putLong(mod, STATE_FIRMWARE_TIME, System.currentTimeMillis());
+    }
+
+    /**
+     * Find the stored images the catalog has for the mod, null if any is
+     * missing or the catalog isn't loaded yet.
+     */
+    private List<Uri> resolveFirmware(ModDevice device) {
+        FirmwareStore store = FirmwareStoreProvider.getStore(context);
+        FirmwareCatalog catalog = FirmwareStoreProvider.getCatalog(context);
+        if (store == null || catalog == null) {
+            return null;
+        }
+        List<String> hashes = catalog.resolve(device.getVendorId(), device.getProductId());
+        if (hashes == null) {
+            return null;
+        }
+        List<Uri> uris = new ArrayList<>();
+        for (String hash : hashes) {
+            FirmwareStore.Entry entry = store.find(hash);
+            if (entry == null) {
+                return null;
+            }
+            uris.add(FirmwareStoreProvider.getUri(entry));
+        }
+        return uris;
+    }
+
+    /**
+     * A mod came up without firmware it can boot, supply it from the catalog
+     * right away. Only one mod is attached at a time, the selected one is the
+     * one asking. Returns false if the catalog has nothing for it.
+     */
+    private boolean supplyFirmware(ModDevice device) {
+        if (device == null) {
+            return false;
+        }
+        List<Uri> firmware = resolveFirmware(device);
+        if (firmware == null) {
+            return false;
+        }
+
+        Log.i(Constants.TAG, "Supplying firmware to " + device.getProductString());
+        updateQueue.submit(device, firmware);
+        return true;
     }
 
     /** Handle mod device event intents */
@@ -134,48 +515,43 @@ public class FirmwarePersonality extends Personality {
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
             if (ModManager.ACTION_MOD_FIRMWARE_UPDATE_DONE.equals(action)) {
-                /** The firmware update of the mod completed */
-
-                /** Revoke the URI permissions. */
-                if (pendingUri != null && pendingUri.size() != 0) {
-                    for (Uri u : pendingUri) {
-                        context.revokeUriPermission(u, Intent.FLAG_GRANT_READ_URI_PERMISSION);
-                    }
-                    pendingUri = null;
-                }
-
-                updateModList();
+                /** The firmware update of the mod completed, the firmware version changed */
+                requestModListUpdate(ModEnumerator.REASON_ENUMERATION_DONE);
                 int result = intent.getIntExtra(ModManager.EXTRA_RESULT_CODE, -1);
+                updateQueue.onUpdateDone(result);
                 notifyListeners(MSG_UPDATE_DONE, result);
             } else if (ModManager.ACTION_MOD_ENUMERATION_DONE.equals(action)) {
                 /** Phone has finished enumerating all the functionality of mod */
-                onModAttach(true);
+                requestModListUpdate(ModEnumerator.REASON_ENUMERATION_DONE);
+                timer.onEnumerationDone(SystemClock.elapsedRealtime());
             } else if (ModManager.ACTION_MOD_FIRMWARE_UPDATE_START.equals(action)) {
                 /** The device starts firmware update on an attached mod */
+                updateQueue.onUpdateStarted();
                 notifyListeners(MSG_UPDATE_START);
             } else if (ModManager.ACTION_MOD_REQUEST_FIRMWARE.equals(action)) {
                 /** The mod is being attached to the device but but is unable to boot due to
                  * missing or invalid firmware, and request userspace to give the firmware. */
 
-                /** Update Mod device info firstly */
-                updateModList();
+                /** Enumerate off the main thread, the broadcast waits for the answer */
+                final boolean ordered = isOrderedBroadcast();
+                final PendingResult pending = goAsync();
+                runOnEnumerator(new Runnable() {
+                    @Override
+                    public void run() {
+                        /** Update Mod device info firstly, then take the mod from it */
+                        updateModList();
+                        ModDevice device = findSelected(getModSnapshot());
 
-                // TODO: This intent is broadcast when a mod missing or invalid firmware.
-                // If you are developing the consumer mod, call abortBroadcast() here and
-                // provide the according consumer firmware for the mod.
-                /* Code Example:
-                if (consumerMod) {
-                    abortBroadcast();
+                        /** Supply the firmware from the catalog, before ModManager asks the user */
+                        boolean supplied = supplyFirmware(device);
+                        if (supplied && ordered) {
+                            pending.abortBroadcast();
+                        }
+                        pending.finish();
 
-                    if (modManager != null && modDevice != null) {
-                        modManager.requestUpdateFirmware(modDevice, consumerFirmwareUris);
+                        notifyListeners(MSG_REQUEST_FIRMWARE, supplied ? 1 : 0);
                     }
-                } else {
-                    // Notify UI that ModManager is requesting the firmware for this mod
-                }
-                */
-
-                notifyListeners(MSG_REQUEST_FIRMWARE);
+                });
             } else if (ModManager.ACTION_MOD_ERROR.equals(action)) {
                 /** An error happened to the mod */
                 int error = intent.getIntExtra(ModManager.EXTRA_MOD_ERROR, -1);
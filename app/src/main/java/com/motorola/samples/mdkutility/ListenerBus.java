@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility;
+
+/**
+ * Delivers events to a set of PersonalityListeners. The listeners are kept
+ * in a lock-free ListenerRegistry, so posting takes no lock and registering
+ * never blocks a post. One recycled event object is shared by all the
+ * listeners of a post, nothing is allocated per listener.
+ */
+public class ListenerBus {
+    /** Recycled events, enough for a few threads posting at once */
+    private static final int POOL_SIZE = 8;
+
+    private static final ListenerRegistry.Dispatcher<PersonalityListener, PersonalityEvent>
+            DISPATCHER = new ListenerRegistry.Dispatcher<PersonalityListener, PersonalityEvent>() {
+        @Override
+        public void dispatch(PersonalityListener listener, PersonalityEvent event) {
+            listener.onPersonalityEvent(event);
+        }
+    };
+
+    private final ListenerRegistry<PersonalityListener> listeners = new ListenerRegistry<>();
+
+    private final PersonalityEvent[] pool = new PersonalityEvent[POOL_SIZE];
+    private int pooled = 0;
+
+    public void add(PersonalityListener listener) {
+        listeners.add(listener);
+    }
+
+    /** Register the listener until nothing else holds it */
+    public void addWeak(PersonalityListener listener) {
+        listeners.addWeak(listener);
+    }
+
+    /** Register the listener under the key, see ListenerRegistry.add() */
+    public void add(PersonalityListener listener, Object key, boolean weak) {
+        listeners.add(listener, key, weak);
+    }
+
+    /** Unregister the listener, or the listener registered under the key */
+    public boolean remove(Object key) {
+        return listeners.remove(key);
+    }
+
+    public void clear() {
+        listeners.clear();
+    }
+
+    public int size() {
+        return listeners.size();
+    }
+
+    /** Call every listener registered when the post starts, on this thread */
+    public void post(int what, int arg1, int arg2, Object obj) {
+        PersonalityEvent event = obtain();
+        event.set(what, arg1, arg2, obj);
+        try {
+            listeners.dispatch(DISPATCHER, event);
+        } finally {
+            recycle(event);
+        }
+    }
+
+    private PersonalityEvent obtain() {
+        synchronized (pool) {
+            if (pooled > 0) {
+                PersonalityEvent event = pool[--pooled];
+                pool[pooled] = null;
+                return event;
+            }
+        }
+        return new PersonalityEvent();
+    }
+
+    private void recycle(PersonalityEvent event) {
+        event.obj = null;
+        synchronized (pool) {
+            if (pooled < POOL_SIZE) {
+                pool[pooled++] = event;
+            }
+        }
+    }
+}
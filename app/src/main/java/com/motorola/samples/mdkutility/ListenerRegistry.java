@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free copy-on-write set of listeners. Dispatch walks the array of the
+ * moment without a lock, so it is safe to register and unregister from any
+ * thread while events are firing. A listener registered weakly goes away
+ * with its key, such as a finished Activity's Handler; its entry is pruned
+ * on the next change or dispatch.
+ */
+public class ListenerRegistry<T> {
+    /** Calls one listener, kept by the caller so dispatch does not allocate */
+    public interface Dispatcher<T, E> {
+        void dispatch(T listener, E event);
+    }
+
+    private static final class Entry<T> {
+        /** Null when the listener is its own weak key */
+        private final T listener;
+        private final Object key;
+        private final WeakReference<Object> weakKey;
+
+        Entry(T listener, Object key, boolean weak) {
+            this.listener = weak && listener == key ? null : listener;
+            this.key = weak ? null : key;
+            this.weakKey = weak ? new WeakReference<>(key) : null;
+        }
+
+        Object key() {
+            return weakKey != null ? weakKey.get() : key;
+        }
+
+        @SuppressWarnings("unchecked")
+        T get() {
+            Object k = key();
+            if (k == null) {
+                return null;
+            }
+            return listener != null ? listener : (T) k;
+        }
+    }
+
+    private static final Entry<?>[] NO_ENTRIES = new Entry<?>[0];
+
+    private final AtomicReference<Entry<?>[]> entries =
+            new AtomicReference<Entry<?>[]>(NO_ENTRIES);
+
+    /** Register the listener, it is held until unregistered */
+    public void add(T listener) {
+        add(listener, listener, false);
+    }
+
+    /** Register the listener, it goes away once nothing else holds it */
+    public void addWeak(T listener) {
+        add(listener, listener, true);
+    }
+
+    /**
+     * Register the listener under the key, which remove() takes. With weak, the
+     * registration goes away once nothing else holds the key; the listener must
+     * not hold the key itself then.
+     */
+    public void add(T listener, Object key, boolean weak) {
+        Entry<T> entry = new Entry<>(listener, key, weak);
+        while (true) {
+            Entry<?>[] current = entries.get();
+            Entry<?>[] live = without(current, null);
+            Entry<?>[] next = Arrays.copyOf(live, live.length + 1);
+            next[live.length] = entry;
+            if (entries.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /** Unregister the listener, or the listener registered under the key */
+    public boolean remove(Object key) {
+        while (true) {
+            Entry<?>[] current = entries.get();
+            boolean found = false;
+            for (Entry<?> entry : current) {
+                if (entry.key() == key) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+            if (entries.compareAndSet(current, without(current, key))) {
+                return true;
+            }
+        }
+    }
+
+    public void clear() {
+        entries.set(NO_ENTRIES);
+    }
+
+    /** Number of the registered listeners which are still alive */
+    public int size() {
+        int live = 0;
+        for (Entry<?> entry : entries.get()) {
+            if (entry.key() != null) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    /** Call every listener registered when the dispatch starts, on this thread */
+    @SuppressWarnings("unchecked")
+    public <E> void dispatch(Dispatcher<T, E> dispatcher, E event) {
+        Entry<?>[] current = entries.get();
+        boolean cleared = false;
+        for (Entry<?> entry : current) {
+            T listener = (T) entry.get();
+            if (listener != null) {
+                dispatcher.dispatch(listener, event);
+            } else {
+                cleared = true;
+            }
+        }
+
+        if (cleared) {
+            prune(current);
+        }
+    }
+
+    /** Drop the entries whose weak key is gone, unless the array changed meanwhile */
+    private void prune(Entry<?>[] current) {
+        entries.compareAndSet(current, without(current, null));
+    }
+
+    /** The entries alive and not registered under the key */
+    private static Entry<?>[] without(Entry<?>[] entries, Object key) {
+        Entry<?>[] live = new Entry<?>[entries.length];
+        int count = 0;
+        for (Entry<?> entry : entries) {
+            Object k = entry.key();
+            if (k != null && k != key) {
+                live[count++] = entry;
+            }
+        }
+        return count == 0 ? NO_ENTRIES : Arrays.copyOf(live, count);
+    }
+}
@@ -29,10 +29,26 @@
 package com.motorola.samples.mdkutility;
 
 import android.app.Application;
+import android.content.Context;
+
+import java.io.File;
 
 public class MDKUtilityApplication extends Application {
+    private static final String MOD_STATE_FILE = "mod_state";
+
+    private ModStateStore modState;
+
     @Override
     public void onCreate() {
         super.onCreate();
+
+        /** Read in the background from now, it is ready by the time a mod attaches */
+        modState = new ModStateStore(new File(getFilesDir(), MOD_STATE_FILE),
+                ModStateStore.DEFAULT_WRITE_DELAY_MS);
+    }
+
+    /** Get the state of the mods, shared by the whole application */
+    public static ModStateStore getModState(Context context) {
+        return ((MDKUtilityApplication) context.getApplicationContext()).modState;
     }
 }
@@ -60,9 +60,11 @@ import android.widget.Toolbar;
 
 import com.motorola.mod.ModDevice;
 import com.motorola.mod.ModManager;
+import com.motorola.samples.mdkutility.firmware.FirmwareOrchestrator;
+import com.motorola.samples.mdkutility.firmware.FirmwareUpdate;
+import com.motorola.samples.mdkutility.firmware.FirmwareUpdateQueue;
 import com.motorola.samples.mdkutility.raw.RawPersonalityService;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -103,6 +105,32 @@ public class MainActivity extends Activity implements View.OnClickListener {
                     Toast.makeText(MainActivity.this,
                             getString(R.string.firmware_update_started), Toast.LENGTH_SHORT).show();
                     break;
+                case Personality.MSG_UPDATE_PROGRESS:
+                    /** The firmware update request failed before reaching the mod */
+                    if (msg.arg1 == FirmwareUpdate.STATE_DONE && msg.arg2 < 0
+                            && msg.arg2 != FirmwarePersonality.FIRMWARE_UPDATE_CANCELLED) {
+                        showFirmwareUpdateFailure(msg.arg2, (FirmwareUpdate<?, ?>) msg.obj);
+                    }
+                    break;
+                case Personality.MSG_FIRMWARE_STORED:
+                    /** Picked firmware files imported, or the last used one restored */
+                    @SuppressWarnings("unchecked")
+                    List<Uri> stored = (List<Uri>) msg.obj;
+                    if (fwPersonality != null) {
+                        onFirmwareStored(stored, msg.arg1 == 1);
+                    }
+                    break;
+                case Personality.MSG_UPDATE_JOB:
+                    /** One more mod flashed in fleet mode */
+                    if (msg.arg1 == FirmwareOrchestrator.JOB_SUCCEEDED && fwPersonality != null) {
+                        FirmwareOrchestrator<?, ?> orchestrator = fwPersonality.getOrchestrator();
+                        Toast.makeText(MainActivity.this,
+                                getString(R.string.firmware_fleet_progress,
+                                        orchestrator.getSucceededCount(),
+                                        orchestrator.getFlashesPerHour()),
+                                Toast.LENGTH_SHORT).show();
+                    }
+                    break;
                 case Personality.MSG_UPDATE_DONE:
                     /** Mod firmware update finished */
                     int result = msg.arg1;
@@ -112,8 +140,10 @@ public class MainActivity extends Activity implements View.OnClickListener {
                         break;
                     }
 
-                    if (result == 11) {
+                    if (result == FirmwareUpdateQueue.SERVICE_RESULT_IN_QUEUE) {
                         /** Update in queue */
+                        Toast.makeText(MainActivity.this,
+                                getString(R.string.firmware_update_queued), Toast.LENGTH_SHORT).show();
                         break;
                     }
 
@@ -141,8 +171,14 @@ public class MainActivity extends Activity implements View.OnClickListener {
                     break;
                 case Personality.MSG_REQUEST_FIRMWARE:
                     /** The mod request firmware due to missing or invalid firmware */
+                    if (msg.arg1 == 1) {
+                        /** Supplied from the firmware catalog, ModManager won't ask */
+                        Toast.makeText(MainActivity.this,
+                                getString(R.string.firmware_supplied), Toast.LENGTH_SHORT).show();
+                    } else {
                         /** Exit activity when ModManager is trying to reload firmware */
                         finish();
+                    }
                     break;
                 case RawPersonalityService.BLINKY_STATUS:
                     /** The LED light status is changed */
@@ -253,6 +289,15 @@ public class MainActivity extends Activity implements View.OnClickListener {
         button = (Button) findViewById(R.id.firmware_update_perform);
         if (button != null) {
             button.setOnClickListener(this);
+
+            /** Long press to flash every developer mod attached, one after another */
+            button.setOnLongClickListener(new View.OnLongClickListener() {
+                @Override
+                public boolean onLongClick(View v) {
+                    toggleFleetUpdate();
+                    return true;
+                }
+            });
         }
 
         /** Start background service to check LED light status */
@@ -300,6 +345,7 @@ public class MainActivity extends Activity implements View.OnClickListener {
         }
 
         if (null != rawService) {
+            rawService.unregisterListener(handler);
             unbindService(mConnection);
             rawService = null;
         }
@@ -379,7 +425,7 @@ public class MainActivity extends Activity implements View.OnClickListener {
                 }
 
                 /** Only allow firmware flashing when mod VID is VID_DEVELOPER */
-                if (fwPersonality.getModDevice().getVendorId() != Constants.VID_DEVELOPER) {
+                if (!Constants.MATCH_DEVELOPER.matches(fwPersonality.getModDevice())) {
                     showAlert(getString(R.string.mod_not_0x42));
                     return;
                 }
@@ -395,7 +441,7 @@ public class MainActivity extends Activity implements View.OnClickListener {
                 }
 
                 /** Only allow firmware flashing when mod VID is VID_DEVELOPER */
-                if (fwPersonality.getModDevice().getVendorId() != Constants.VID_DEVELOPER) {
+                if (!Constants.MATCH_DEVELOPER.matches(fwPersonality.getModDevice())) {
                     showAlert(getString(R.string.mod_not_0x42));
                     return;
                 }
@@ -409,11 +455,8 @@ public class MainActivity extends Activity implements View.OnClickListener {
                     return;
                 }
 
-                /** Send request to ModManager to flash firmware files */
-                int result = fwPersonality.performUpdate(this, pendingFirmware);
-                if (result != FirmwarePersonality.FIRMWARE_UPDATE_SUCCESS) {
-                    showFirmwareUpdateFailure(result);
-                }
+                /** Send request to ModManager to flash firmware files, the result comes later */
+                fwPersonality.performUpdate(pendingFirmware);
                 break;
             default:
                 Log.e(Constants.TAG, "MainActivity onClick is not handled: " + v.getId());
@@ -421,10 +464,37 @@ public class MainActivity extends Activity implements View.OnClickListener {
         }
     }
 
+    /**
+     * Start or stop flashing the pending firmware onto every developer mod attached
+     */
+    private void toggleFleetUpdate() {
+        if (fwPersonality == null) {
+            return;
+        }
+
+        if (fwPersonality.getOrchestrator().isFleetMode()) {
+            fwPersonality.performFleetUpdate(null);
+            Toast.makeText(this, getString(R.string.firmware_fleet_stopped),
+                    Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        if (null == pendingFirmware
+                || pendingFirmware.size() == 0) {
+            Toast.makeText(this, getString(R.string.select_files),
+                    Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        fwPersonality.performFleetUpdate(pendingFirmware);
+        Toast.makeText(this, getString(R.string.firmware_fleet_started),
+                Toast.LENGTH_LONG).show();
+    }
+
     /**
      * ModManager:requestUpdateFirmware() returned failed
      */
-    private void showFirmwareUpdateFailure(int result) {
+    private void showFirmwareUpdateFailure(int result, FirmwareUpdate<?, ?> update) {
         String reason = getString(R.string.firmware_update_failure);
         switch (result) {
             case FirmwarePersonality.FIRMWARE_UPDATE_ILLEGAL_EXCEPTION:
@@ -435,6 +505,10 @@ public class MainActivity extends Activity implements View.OnClickListener {
                 reason = getString(R.string.firmware_update_failed)
                     + getString(R.string.firmware_security_exception);
                 break;
+            case FirmwarePersonality.FIRMWARE_UPDATE_INVALID_IMAGE:
+                reason = getString(R.string.firmware_update_failed)
+                    + getString(R.string.firmware_invalid_image, update.getInvalidReason());
+                break;
         }
         Toast.makeText(MainActivity.this, reason, Toast.LENGTH_SHORT).show();
     }
@@ -485,65 +559,68 @@ public class MainActivity extends Activity implements View.OnClickListener {
             if (data != null) {
                 Uri uri = data.getData();
                 ClipData clip = data.getClipData();
+                List<Uri> picked = new ArrayList<>();
                 if (uri != null) {
-                    pendingFirmware = new ArrayList<>();
-                    pendingFirmware.add(uri);
+                    picked.add(uri);
                 } else if (clip != null) {
-                    pendingFirmware = new ArrayList<>();
                     int count = clip.getItemCount();
                     for (int i = 0; i < count; i++) {
-                        pendingFirmware.add(clip.getItemAt(i).getUri());
+                        picked.add(clip.getItemAt(i).getUri());
                     }
                 } else {
                     Log.e(Constants.TAG, "No file was selected.");
                     return;
                 }
 
-                if (null != pendingFirmware
-                        && pendingFirmware.size() != 0) {
-
-                    /** Get selected file names */
-                    boolean start = true;
-                    StringBuilder sb = new StringBuilder();
-                    for (Uri u : pendingFirmware) {
-                        String name = new File(u.getPath()).getName();
-                        name = name.substring(name.indexOf(':') + 1);
-                        if (!start) {
-                            sb.append("\n");
-                        }
-                        sb.append(name);
-                        start = false;
-                    }
-
-                    /** Update selected files on UI */
-                    TextView tv = (TextView) findViewById(R.id.firmware_update_file);
-                    tv.setText(sb.toString());
-
-                    /** Start firmware update */
-                    if (null != fwPersonality.getModDevice()
-                            && null != pendingFirmware
-                            && pendingFirmware.size() != 0
-                            && performUpdate) {
-                        performUpdate = false;
-                        int result = fwPersonality.performUpdate(this, pendingFirmware);
-                        if (result != FirmwarePersonality.FIRMWARE_UPDATE_SUCCESS) {
-                            showFirmwareUpdateFailure(result);
-                        }
-                    }
+                /** Keep the files in the firmware store, the update waits for MSG_FIRMWARE_STORED */
+                if (fwPersonality != null) {
+                    fwPersonality.importFirmware(picked);
                 }
             }
         }
     }
 
+    /**
+     * Firmware files ready to flash from the firmware store
+     */
+    private void onFirmwareStored(List<Uri> uris, boolean imported) {
+        /** The most recently used image only stands in until a file is picked */
+        if (uris == null || uris.size() == 0
+                || (!imported && pendingFirmware != null)) {
+            return;
+        }
+        pendingFirmware = uris;
+
+        /** Get selected file names */
+        boolean start = true;
+        StringBuilder sb = new StringBuilder();
+        for (Uri u : pendingFirmware) {
+            if (!start) {
+                sb.append("\n");
+            }
+            sb.append(fwPersonality.getFirmwareName(u));
+            start = false;
+        }
+
+        /** Update selected files on UI */
+        TextView tv = (TextView) findViewById(R.id.firmware_update_file);
+        tv.setText(sb.toString());
+
+        /** Start firmware update */
+        if (null != fwPersonality.getModDevice()
+                && performUpdate) {
+            performUpdate = false;
+            fwPersonality.performUpdate(pendingFirmware);
+        }
+    }
+
     /**
      * Mod device attach/detach
      */
     public void onModDevice(ModDevice device) {
         /** Request RAW permission for Blinky Personality Card, to create RAW I/O */
         if (device != null) {
-            if ((device.getVendorId() == Constants.VID_MDK
-                    && device.getProductId() == Constants.PID_BLINKY)
-                    || device.getVendorId() == Constants.VID_DEVELOPER) {
+            if (Constants.MATCH_BLINKY.matches(device)) {
                 checkRawPermission();
             }
         }
@@ -559,9 +636,7 @@ public class MainActivity extends Activity implements View.OnClickListener {
             if (null != device) {
                 tvName.setText(device.getProductString());
 
-                if ((device.getVendorId() == Constants.VID_MDK
-                        && device.getProductId() == Constants.PID_BLINKY)
-                        || device.getVendorId() == Constants.VID_DEVELOPER) {
+                if (Constants.MATCH_BLINKY.matches(device)) {
                     tvName.setTextColor(getColor(R.color.mod_match));
                 }
             } else {
@@ -631,8 +706,7 @@ public class MainActivity extends Activity implements View.OnClickListener {
         /** Show/hide the unable to flash reason */
         TextView tvUReason = (TextView) findViewById(R.id.no_update_reason);
         if (tvUReason != null) {
-            if ((device == null) ||
-                    (device.getVendorId() == Constants.VID_DEVELOPER)) {
+            if ((device == null) || Constants.MATCH_DEVELOPER.matches(device)) {
                 tvUReason.setVisibility(View.GONE);
             } else {
                 tvUReason.setVisibility(View.VISIBLE);
@@ -641,8 +715,7 @@ public class MainActivity extends Activity implements View.OnClickListener {
         /** Update Firmware Files/Update button status */
         Button btFiles = (Button) findViewById(R.id.firmware_update_select_file);
         if (btFiles != null) {
-            if ((device == null) ||
-                    (device.getVendorId() != Constants.VID_DEVELOPER)) {
+            if (!Constants.MATCH_DEVELOPER.matches(device)) {
                 btFiles.setEnabled(false);
             } else {
                 btFiles.setEnabled(true);
@@ -650,8 +723,7 @@ public class MainActivity extends Activity implements View.OnClickListener {
         }
         Button btFlash = (Button) findViewById(R.id.firmware_update_perform);
         if (btFlash != null) {
-            if ((device == null) ||
-                    (device.getVendorId() != Constants.VID_DEVELOPER)) {
+            if (!Constants.MATCH_DEVELOPER.matches(device)) {
                 btFlash.setEnabled(false);
             } else {
                 btFlash.setEnabled(true);
@@ -676,16 +748,8 @@ public class MainActivity extends Activity implements View.OnClickListener {
      * Check current mod whether in developer mode
      */
     private boolean isMDKMod(ModDevice device) {
-        if (device == null) {
-            /** Mod is not available */
-            return false;
-        } else if (device.getVendorId() == Constants.VID_DEVELOPER) {
-            // MDK in developer mode
-            return true;
-        } else {
-            // Check MDK
-            return device.getVendorId() == Constants.VID_MDK;
-        }
+        /** MDK in developer mode, or MDK */
+        return Constants.MATCH_MDK.matches(device);
     }
 
     /**
@@ -696,7 +760,7 @@ public class MainActivity extends Activity implements View.OnClickListener {
             return Constants.INVALID_ID;
         }
 
-        if (device.getVendorId() == Constants.VID_DEVELOPER) {
+        if (Constants.MATCH_DEVELOPER.matches(device)) {
             return Constants.MDK_MOD_DEVELOPER;
         } else if (isMDKMod(device)) {
             return Constants.MDK_MOD_EXAMPLE;
@@ -713,7 +777,7 @@ public class MainActivity extends Activity implements View.OnClickListener {
             return getString(R.string.na);
         }
 
-        if (device.getVendorId() == Constants.VID_DEVELOPER) {
+        if (Constants.MATCH_DEVELOPER.matches(device)) {
             return getString(R.string.developer_mode);
         } else if (isMDKMod(device)) {
             return getString(R.string.example_mode);
@@ -0,0 +1,252 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility;
+
+import com.motorola.mod.ModDevice;
+
+import java.util.regex.Pattern;
+
+/**
+ * Tells whether a mod device is one we care about, by VID / PID under masks,
+ * product string pattern and firmware version range. The criteria are
+ * compiled once when built, so matching a device is cheap enough to run on
+ * every mod event.
+ */
+public final class ModDeviceMatcher {
+    /** Matches any mod device */
+    public static final ModDeviceMatcher ANY = new Builder().build();
+
+    private final int vid;
+    private final int vidMask;
+    private final int pid;
+    private final int pidMask;
+    private final Pattern product;
+
+    /** Inclusive firmware version bounds as numeric segments, null if unbounded */
+    private final int[] minFirmware;
+    private final int[] maxFirmware;
+
+    /** Set for anyOf(), matches if any of these matches */
+    private final ModDeviceMatcher[] alternatives;
+
+    private ModDeviceMatcher(Builder builder) {
+        vid = builder.vid & builder.vidMask;
+        vidMask = builder.vidMask;
+        pid = builder.pid & builder.pidMask;
+        pidMask = builder.pidMask;
+        product = builder.product;
+        minFirmware = builder.minFirmware;
+        maxFirmware = builder.maxFirmware;
+        alternatives = null;
+    }
+
+    private ModDeviceMatcher(ModDeviceMatcher[] alternatives) {
+        vid = 0;
+        vidMask = 0;
+        pid = 0;
+        pidMask = 0;
+        product = null;
+        minFirmware = null;
+        maxFirmware = null;
+        this.alternatives = alternatives;
+    }
+
+    /**
+     * Match the VID / PID, with pid Constants.INVALID_ID any product of the vendor.
+     * With vid Constants.INVALID_ID any device, as selectDevice() always took it.
+     */
+    public static ModDeviceMatcher forProduct(int vid, int pid) {
+        if (vid == Constants.INVALID_ID) {
+            return ANY;
+        }
+        Builder builder = new Builder().vendor(vid);
+        if (pid != Constants.INVALID_ID) {
+            builder.product(pid);
+        }
+        return builder.build();
+    }
+
+    /** Match a device which any of the matchers matches */
+    public static ModDeviceMatcher anyOf(ModDeviceMatcher... matchers) {
+        return new ModDeviceMatcher(matchers.clone());
+    }
+
+    public boolean matches(ModDevice device) {
+        return device != null && matches(device.getVendorId(), device.getProductId(),
+                device.getProductString(), device.getFirmwareVersion());
+    }
+
+    public boolean matches(int vendorId, int productId, String productString,
+                           String firmwareVersion) {
+        if (alternatives != null) {
+            for (ModDeviceMatcher matcher : alternatives) {
+                if (matcher.matches(vendorId, productId, productString, firmwareVersion)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Cheapest checks first */
+        if ((vendorId & vidMask) != vid || (productId & pidMask) != pid) {
+            return false;
+        }
+        if (minFirmware != null || maxFirmware != null) {
+            if (firmwareVersion == null
+                    || (minFirmware != null && compareVersion(firmwareVersion, minFirmware) < 0)
+                    || (maxFirmware != null && compareVersion(firmwareVersion, maxFirmware) > 0)) {
+                return false;
+            }
+        }
+        if (product != null) {
+            return productString != null && product.matcher(productString).matches();
+        }
+        return true;
+    }
+
+    /** The VID this matcher requires, or Constants.INVALID_ID if not a single one */
+    public int getExactVendorId() {
+        return alternatives == null && vidMask == 0xFFFFFFFF ? vid : Constants.INVALID_ID;
+    }
+
+    /** The PID this matcher requires, or Constants.INVALID_ID if not a single one */
+    public int getExactProductId() {
+        return alternatives == null && pidMask == 0xFFFFFFFF ? pid : Constants.INVALID_ID;
+    }
+
+    /**
+     * Split a version such as "1.2.10" into its decimal segments, any other
+     * character separates them: "0x0103" is 0 and 103, not hex.
+     */
+    static int[] parseVersion(String version) {
+        int count = 0;
+        boolean inDigits = false;
+        for (int i = 0; i < version.length(); i++) {
+            boolean digit = Character.isDigit(version.charAt(i));
+            if (digit && !inDigits) {
+                count++;
+            }
+            inDigits = digit;
+        }
+
+        int[] segments = new int[count];
+        int n = -1;
+        inDigits = false;
+        for (int i = 0; i < version.length(); i++) {
+            char c = version.charAt(i);
+            boolean digit = Character.isDigit(c);
+            if (digit) {
+                if (!inDigits) {
+                    n++;
+                }
+                segments[n] = segments[n] * 10 + (c - '0');
+            }
+            inDigits = digit;
+        }
+        return segments;
+    }
+
+    /** Compare the version against parsed segments without allocating, missing segments are 0 */
+    static int compareVersion(String version, int[] bound) {
+        int segment = 0;
+        int value = 0;
+        boolean inDigits = false;
+        for (int i = 0; i <= version.length(); i++) {
+            char c = i < version.length() ? version.charAt(i) : '.';
+            if (Character.isDigit(c)) {
+                value = value * 10 + (c - '0');
+                inDigits = true;
+            } else if (inDigits) {
+                int other = segment < bound.length ? bound[segment] : 0;
+                if (value != other) {
+                    return value < other ? -1 : 1;
+                }
+                segment++;
+                value = 0;
+                inDigits = false;
+            }
+        }
+        for (; segment < bound.length; segment++) {
+            if (bound[segment] != 0) {
+                return -1;
+            }
+        }
+        return 0;
+    }
+
+    /** Collects the criteria, anything not given matches any value */
+    public static final class Builder {
+        private int vid = 0;
+        private int vidMask = 0;
+        private int pid = 0;
+        private int pidMask = 0;
+        private Pattern product;
+        private int[] minFirmware;
+        private int[] maxFirmware;
+
+        public Builder vendor(int vid) {
+            return vendor(vid, 0xFFFFFFFF);
+        }
+
+        /** Match the VID bits set in mask */
+        public Builder vendor(int vid, int mask) {
+            this.vid = vid;
+            this.vidMask = mask;
+            return this;
+        }
+
+        public Builder product(int pid) {
+            return product(pid, 0xFFFFFFFF);
+        }
+
+        /** Match the PID bits set in mask */
+        public Builder product(int pid, int mask) {
+            this.pid = pid;
+            this.pidMask = mask;
+            return this;
+        }
+
+        /** Match the whole product string against the regular expression */
+        public Builder productName(String regex) {
+            this.product = Pattern.compile(regex);
+            return this;
+        }
+
+        /** Match firmware versions from min up to max inclusive, null for no bound */
+        public Builder firmware(String min, String max) {
+            this.minFirmware = min != null ? parseVersion(min) : null;
+            this.maxFirmware = max != null ? parseVersion(max) : null;
+            return this;
+        }
+
+        public ModDeviceMatcher build() {
+            return new ModDeviceMatcher(this);
+        }
+    }
+}
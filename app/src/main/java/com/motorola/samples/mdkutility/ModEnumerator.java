@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the mod list enumeration on one thread, one at a time. Refresh
+ * requests are coalesced: a burst of attach / enumeration events results in
+ * one getModList() call once the burst goes quiet. The quiet window adapts,
+ * it doubles when a refresh turns out to be in the middle of a burst and
+ * halves after long silence.
+ */
+class ModEnumerator {
+    /** Runs the enumeration on the enumerator thread */
+    interface Task {
+        /** Enumerate, isStale(generation) tells whether a newer request came meanwhile */
+        void enumerate(int generation);
+    }
+
+    /** Why a refresh is requested */
+    static final int REASON_SERVICE = 0;
+    static final int REASON_ATTACH = 1;
+    static final int REASON_DETACH = 2;
+    static final int REASON_ENUMERATION_DONE = 3;
+
+    /** An attached mod is enumerated soon, ENUMERATION_DONE usually comes before this */
+    private static final long ATTACH_FALLBACK_MS = 1000;
+
+    /** Bounds of the quiet window, and the longest a request waits for a burst to end */
+    private static final long MIN_QUIET_MS = 20;
+    private static final long MAX_QUIET_MS = 320;
+    private static final long MAX_WAIT_MS = 1500;
+
+    private static final int MSG_REQUEST = 1;
+    private static final int MSG_REFRESH = 2;
+
+    private final Task task;
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    /** Bumped by every request, so an enumeration in progress knows it is stale */
+    private final AtomicInteger generation = new AtomicInteger();
+
+    /** Enumerator thread state */
+    private long firstRequest = -1;
+    private long lastRequest;
+    private long dueAt;
+    private long quietMs = MIN_QUIET_MS;
+    private long lastRefresh = -1;
+
+    ModEnumerator(Task task) {
+        this.task = task;
+        thread = new HandlerThread("modEnumerator");
+        thread.start();
+        handler = new EnumeratorHandler(thread.getLooper());
+    }
+
+    /** Request a mod list refresh, from any thread */
+    void request(int reason) {
+        generation.incrementAndGet();
+        handler.sendMessage(handler.obtainMessage(MSG_REQUEST, reason, 0,
+                SystemClock.uptimeMillis()));
+    }
+
+    /** Run on the enumerator thread, in order with the enumerations */
+    void execute(Runnable runnable) {
+        handler.post(runnable);
+    }
+
+    boolean isStale(int generation) {
+        return this.generation.get() != generation;
+    }
+
+    /** Drop the pending refresh and stop the thread */
+    void quit() {
+        generation.incrementAndGet();
+        handler.removeCallbacksAndMessages(null);
+        thread.quitSafely();
+    }
+
+    private class EnumeratorHandler extends Handler {
+        EnumeratorHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_REQUEST:
+                    onRequest(msg.arg1, (Long) msg.obj);
+                    break;
+                case MSG_REFRESH:
+                    onRefresh();
+                    break;
+            }
+        }
+    }
+
+    private void onRequest(int reason, long now) {
+        if (firstRequest < 0) {
+            if (lastRefresh >= 0 && now - lastRefresh < quietMs * 2) {
+                /** The last refresh ran in the middle of a burst, wait longer */
+                quietMs = Math.min(quietMs * 2, MAX_QUIET_MS);
+            } else if (lastRefresh >= 0 && now - lastRefresh > MAX_QUIET_MS * 4) {
+                quietMs = Math.max(quietMs / 2, MIN_QUIET_MS);
+            }
+            firstRequest = now;
+            dueAt = Long.MAX_VALUE;
+        }
+        lastRequest = now;
+        dueAt = Math.min(dueAt, now + (reason == REASON_ATTACH ? ATTACH_FALLBACK_MS : 0));
+
+        /** Not before the burst goes quiet, and not later than MAX_WAIT_MS */
+        long at = Math.min(Math.max(dueAt, lastRequest + quietMs), firstRequest + MAX_WAIT_MS);
+        handler.removeMessages(MSG_REFRESH);
+        handler.sendEmptyMessageAtTime(MSG_REFRESH, at);
+    }
+
+    private void onRefresh() {
+        firstRequest = -1;
+        task.enumerate(generation.get());
+        lastRefresh = SystemClock.uptimeMillis();
+    }
+}
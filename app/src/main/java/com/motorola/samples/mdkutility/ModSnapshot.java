@@ -0,0 +1,228 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility;
+
+import com.motorola.mod.ModDevice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable, versioned view of the attached mod devices, keyed by their
+ * unique id and indexed by VID / PID for constant time lookups. Two snapshots
+ * diff into attach / detach / change deltas, so the listeners only hear about
+ * a mod list that actually changed.
+ */
+public final class ModSnapshot {
+    public static final ModSnapshot EMPTY = of(0, null);
+
+    /** What happened to one mod device between two snapshots */
+    public static final class Delta {
+        public enum Type {
+            ATTACHED,
+            DETACHED,
+            /** Same unique id, but a different firmware, product etc. */
+            CHANGED
+        }
+
+        public final Type type;
+
+        /** The device in the older snapshot, null if ATTACHED */
+        public final ModDevice before;
+
+        /** The device in the newer snapshot, null if DETACHED */
+        public final ModDevice after;
+
+        Delta(Type type, ModDevice before, ModDevice after) {
+            this.type = type;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    private final long version;
+    private final Map<Object, ModDevice> devices;
+
+    /** The first device of each VID / PID, and of each VID */
+    private final Map<Long, ModDevice> byProduct;
+    private final Map<Integer, ModDevice> byVendor;
+
+    private ModSnapshot(long version, Map<Object, ModDevice> devices) {
+        this.version = version;
+        this.devices = devices;
+
+        byProduct = new HashMap<>();
+        byVendor = new HashMap<>();
+        for (ModDevice d : devices.values()) {
+            Long product = productOf(d.getVendorId(), d.getProductId());
+            if (!byProduct.containsKey(product)) {
+                byProduct.put(product, d);
+            }
+            if (!byVendor.containsKey(d.getVendorId())) {
+                byVendor.put(d.getVendorId(), d);
+            }
+        }
+    }
+
+    private static long productOf(int vid, int pid) {
+        return ((long) vid << 32) | (pid & 0xFFFFFFFFL);
+    }
+
+    /** Take a snapshot of the mod list from ModManager, null entries are skipped */
+    public static ModSnapshot of(long version, List<ModDevice> list) {
+        Map<Object, ModDevice> devices = new LinkedHashMap<>();
+        if (list != null) {
+            for (ModDevice d : list) {
+                if (d != null) {
+                    devices.put(keyOf(d), d);
+                }
+            }
+        }
+        return new ModSnapshot(version, Collections.unmodifiableMap(devices));
+    }
+
+    /** The unique id, or the VID / PID for a device which reports none */
+    public static Object keyOf(ModDevice d) {
+        Object id = d.getUniqueId();
+        return id != null ? id : productOf(d.getVendorId(), d.getProductId());
+    }
+
+    /** Increases with every change of the mod list */
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return devices.size();
+    }
+
+    public boolean isEmpty() {
+        return devices.isEmpty();
+    }
+
+    /** Get the device of the unique id, see keyOf() */
+    public ModDevice get(Object key) {
+        return devices.get(key);
+    }
+
+    /**
+     * Get the first device of the VID / PID. With pid Constants.INVALID_ID,
+     * any product of the vendor. Null if none attached.
+     */
+    public ModDevice find(int vid, int pid) {
+        if (pid == Constants.INVALID_ID) {
+            return byVendor.get(vid);
+        }
+        return byProduct.get(productOf(vid, pid));
+    }
+
+    /** Get the first device the matcher matches, null if none attached */
+    public ModDevice find(ModDeviceMatcher matcher) {
+        int vid = matcher.getExactVendorId();
+        int pid = matcher.getExactProductId();
+        if (vid != Constants.INVALID_ID) {
+            /** Look up the index, the other criteria still have to match */
+            ModDevice d = find(vid, pid);
+            if (d == null) {
+                return null;
+            }
+            if (matcher.matches(d)) {
+                return d;
+            }
+        }
+
+        for (ModDevice d : devices.values()) {
+            if (matcher.matches(d)) {
+                return d;
+            }
+        }
+        return null;
+    }
+
+    /** All the devices in ModManager order */
+    public Collection<ModDevice> getDevices() {
+        return devices.values();
+    }
+
+    /** The first device in ModManager order, null if none */
+    public ModDevice first() {
+        for (ModDevice d : devices.values()) {
+            return d;
+        }
+        return null;
+    }
+
+    /** Whether the deltas attach, detach or change the device of the key */
+    public static boolean touches(List<Delta> deltas, Object key) {
+        for (Delta delta : deltas) {
+            ModDevice d = delta.after != null ? delta.after : delta.before;
+            if (keyOf(d).equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The changes from this snapshot to the newer one, empty if nothing changed */
+    public List<Delta> diff(ModSnapshot newer) {
+        List<Delta> deltas = new ArrayList<>();
+        for (Map.Entry<Object, ModDevice> entry : devices.entrySet()) {
+            ModDevice after = newer.devices.get(entry.getKey());
+            if (after == null) {
+                deltas.add(new Delta(Delta.Type.DETACHED, entry.getValue(), null));
+            } else if (!sameDevice(entry.getValue(), after)) {
+                deltas.add(new Delta(Delta.Type.CHANGED, entry.getValue(), after));
+            }
+        }
+        for (Map.Entry<Object, ModDevice> entry : newer.devices.entrySet()) {
+            if (!devices.containsKey(entry.getKey())) {
+                deltas.add(new Delta(Delta.Type.ATTACHED, null, entry.getValue()));
+            }
+        }
+        return deltas;
+    }
+
+    /** Whether the device info shown to the user is the same */
+    private static boolean sameDevice(ModDevice a, ModDevice b) {
+        return a.getVendorId() == b.getVendorId()
+                && a.getProductId() == b.getProductId()
+                && equals(a.getProductString(), b.getProductString())
+                && equals(a.getFirmwareVersion(), b.getFirmwareVersion())
+                && equals(a.getFirmwareType(), b.getFirmwareType());
+    }
+
+    private static boolean equals(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
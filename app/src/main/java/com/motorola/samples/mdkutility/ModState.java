@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The stored state of one mod: named values of type boolean, int, long,
+ * String or byte[]. Immutable, a change to the mod makes a new one, so it
+ * can be read from any thread. A getter returns the default if the value
+ * is missing or of another type.
+ */
+public final class ModState {
+    public static final ModState EMPTY = new ModState(Collections.<String, Object>emptyMap(), 0);
+
+    private final Map<String, Object> values;
+    private final long version;
+
+    private ModState(Map<String, Object> values, long version) {
+        this.values = values;
+        this.version = version;
+    }
+
+    /** Grows with every change to the mod, 0 if nothing is stored */
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    public Set<String> names() {
+        return values.keySet();
+    }
+
+    public boolean contains(String name) {
+        return values.containsKey(name);
+    }
+
+    public boolean getBoolean(String name, boolean defValue) {
+        Object value = values.get(name);
+        return value instanceof Boolean ? (Boolean) value : defValue;
+    }
+
+    public int getInt(String name, int defValue) {
+        Object value = values.get(name);
+        return value instanceof Integer ? (Integer) value : defValue;
+    }
+
+    public long getLong(String name, long defValue) {
+        Object value = values.get(name);
+        return value instanceof Long ? (Long) value : defValue;
+    }
+
+    public String getString(String name, String defValue) {
+        Object value = values.get(name);
+        return value instanceof String ? (String) value : defValue;
+    }
+
+    /** A copy of the bytes, null if not set */
+    public byte[] getBytes(String name) {
+        Object value = values.get(name);
+        return value instanceof byte[] ? ((byte[]) value).clone() : null;
+    }
+
+    /** The value as stored, for ModStateStore */
+    Object get(String name) {
+        return values.get(name);
+    }
+
+    /** Get a copy with the value set, null removes it */
+    ModState with(String name, Object value) {
+        Map<String, Object> newValues = new HashMap<>(values);
+        if (value == null) {
+            newValues.remove(name);
+        } else {
+            newValues.put(name, value);
+        }
+        return new ModState(Collections.unmodifiableMap(newValues), version + 1);
+    }
+
+    /** Whether setting the value would change nothing */
+    boolean isSame(String name, Object value) {
+        Object old = values.get(name);
+        if (old instanceof byte[] && value instanceof byte[]) {
+            return Arrays.equals((byte[]) old, (byte[]) value);
+        }
+        return value == null ? old == null : value.equals(old);
+    }
+}
@@ -0,0 +1,699 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * State of every mod in one place, a ModState per mod UUID. Reads are a
+ * volatile read of an immutable map and one hash lookup, no lock and no
+ * disk. Writes replace the map and queue the change; a write behind on a
+ * background thread appends every change queued since the last one to a
+ * log file in one write.
+ *
+ * The file is read in the background too. Until then reads only see the
+ * changes made meanwhile, isLoaded() tells, and whenLoaded() calls back once
+ * the stored state is in.
+ *
+ * The log is a header and records checked by CRC32, so a record torn by a
+ * crash is dropped on the next load. A whole record of a newer version is
+ * skipped but kept, also through compaction. Once most records are overwritten the
+ * log is compacted: the live state is written to a new log which replaces
+ * the old one by rename, so a crash leaves either of them whole.
+ */
+public class ModStateStore {
+    /** "MODS" */
+    private static final int MAGIC = 0x4d4f4453;
+    /** 1 was a whole snapshot of String values, still read */
+    private static final int FORMAT_SNAPSHOT = 1;
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private static final byte TYPE_BOOLEAN = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    /** writeUTF(), up to 64 KB, still read */
+    private static final byte TYPE_STRING = 4;
+    private static final byte TYPE_BYTES = 5;
+    /** Length and UTF-8 bytes, for Strings of any size */
+    private static final byte TYPE_TEXT = 6;
+
+    /** Largest record accepted on load, anything larger is a torn length */
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    /**
+     * Limits of put(), so a record always fits: mod and name go by writeUTF(),
+     * at most 3 bytes a char, and the value takes up the rest.
+     */
+    public static final int MAX_KEY_LENGTH = 65535 / 3;
+    public static final int MAX_VALUE_SIZE = 512 * 1024;
+
+    /** Compact once the log holds this many more records than live values */
+    private static final int COMPACT_SLACK = 256;
+
+    public static final long DEFAULT_WRITE_DELAY_MS = 500;
+
+    /** A new value computed from the current one, see update() */
+    public interface Update {
+        /** Return the new value, null to remove; called with the store locked */
+        Object apply(Object value);
+    }
+
+    /** A change waiting to be logged, value null to remove */
+    private static final class Change {
+        final String mod;
+        final String name;
+        final Object value;
+        /** Computed value, applied again over the file if made before it was read */
+        final Update update;
+
+        Change(String mod, String name, Object value) {
+            this(mod, name, value, null);
+        }
+
+        Change(String mod, String name, Object value, Update update) {
+            this.mod = mod;
+            this.name = name;
+            this.value = value;
+            this.update = update;
+        }
+    }
+
+    private final File file;
+    private final long writeDelayMs;
+    private final ScheduledThreadPoolExecutor writer;
+
+    /** Immutable, replaced on every change */
+    private volatile Map<String, ModState> state = Collections.emptyMap();
+
+    /** Set once the file is read, guarded by this */
+    private boolean loaded = false;
+    private List<Runnable> onLoaded = new ArrayList<>();
+    private boolean closed = false;
+
+    /** Changes not logged yet, in order, guarded by this */
+    private List<Change> pending = new ArrayList<>();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+    /** Only touched on the writer */
+    private FileOutputStream log;
+    private int logRecords = 0;
+
+    /** Whole records this version can't decode, carried over by compact() */
+    private final List<byte[]> unknownRecords = new ArrayList<>();
+
+    private final Runnable write = new Runnable() {
+        @Override
+        public void run() {
+            writeScheduled.set(false);
+            writeNow();
+        }
+    };
+
+    /** Open the store, the file is read on the writer thread */
+    public ModStateStore(File file, long writeDelayMs) {
+        this.file = file;
+        this.writeDelayMs = writeDelayMs;
+        writer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "modState");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        /** close() writes everything itself, don't wait for the write behind */
+        writer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    private void load() {
+        Map<String, ModState> loadedState = new HashMap<>();
+        boolean compact = false;
+        try {
+            if (file.exists()) {
+                compact = read(loadedState);
+            } else {
+                compact = true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            loadedState.clear();
+            compact = true;
+        }
+
+        List<Runnable> callbacks;
+        synchronized (this) {
+            /** Changes made while loading win over the file, updates apply on top of it */
+            List<Change> changes = new ArrayList<>(pending.size());
+            for (Change change : pending) {
+                if (change.update != null) {
+                    try {
+                        change = resolve(loadedState, change.mod, change.name, change.update);
+                    } catch (IllegalArgumentException e) {
+                        /** Keep the value it made before the file was read */
+                        e.printStackTrace();
+                    }
+                }
+                apply(loadedState, change);
+                changes.add(change);
+            }
+            pending = changes;
+            state = Collections.unmodifiableMap(loadedState);
+            loaded = true;
+            callbacks = onLoaded;
+            onLoaded = null;
+        }
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+
+        if (compact) {
+            compact();
+        } else {
+            openLog();
+        }
+    }
+
+    /** Read the file into the map, returns true if it needs rewriting */
+    private boolean read(Map<String, ModState> mods) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Unknown mod state file");
+            }
+            int format = in.readInt();
+            if (format == FORMAT_SNAPSHOT) {
+                readSnapshot(in, mods);
+                return true;
+            } else if (format != FORMAT_VERSION) {
+                throw new IOException("Unknown mod state format " + format);
+            }
+
+            long good = HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        break;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                    crc.reset();
+                    crc.update(record, 0, length);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                good += 4 + record.length + 4;
+                logRecords++;
+
+                Change change;
+                try {
+                    change = decode(record);
+                } catch (IOException e) {
+                    /** Written by a newer version, whole; skip it but keep it in the log */
+                    e.printStackTrace();
+                    unknownRecords.add(record);
+                    continue;
+                }
+                apply(mods, change);
+            }
+
+            if (good < file.length()) {
+                /** Drop the torn tail, new records go after the last good one */
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(good);
+                } finally {
+                    raf.close();
+                }
+            }
+            return logRecords > liveValues(mods) + COMPACT_SLACK;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void readSnapshot(DataInputStream in, Map<String, ModState> mods)
+            throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String mod = in.readUTF();
+            int size = in.readInt();
+            for (int j = 0; j < size; j++) {
+                apply(mods, new Change(mod, in.readUTF(), in.readUTF()));
+            }
+        }
+    }
+
+    private static int liveValues(Map<String, ModState> mods) {
+        int count = 0;
+        for (ModState mod : mods.values()) {
+            count += mod.names().size();
+        }
+        return count;
+    }
+
+    private static void apply(Map<String, ModState> mods, Change change) {
+        ModState mod = mods.get(change.mod);
+        if (mod == null) {
+            mod = ModState.EMPTY;
+        }
+        mod = mod.with(change.name, change.value);
+        if (mod.isEmpty()) {
+            mods.remove(change.mod);
+        } else {
+            mods.put(change.mod, mod);
+        }
+    }
+
+    /** Whether the file was read, until then reads only see the changes made meanwhile */
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Run the callback once the file is read, on the writer thread; right
+     * away on this thread if it was already. Readers which found nothing
+     * before that can look again.
+     */
+    public void whenLoaded(Runnable callback) {
+        synchronized (this) {
+            if (!loaded) {
+                onLoaded.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /** Get the state of the mod, ModState.EMPTY if none */
+    public ModState getState(String mod) {
+        ModState s = state.get(mod);
+        return s == null ? ModState.EMPTY : s;
+    }
+
+    /** Number of mods with state */
+    public int size() {
+        return state.size();
+    }
+
+    /** Get a String value of the mod, null if not set */
+    public String get(String mod, String name) {
+        return getState(mod).getString(name, null);
+    }
+
+    public boolean getBoolean(String mod, String name, boolean defValue) {
+        return getState(mod).getBoolean(name, defValue);
+    }
+
+    /**
+     * Set a value of the mod, null removes it. The value is a Boolean,
+     * Integer, Long, String or byte[]. Written to the file later.
+     * @throws IllegalArgumentException for another type, a mod or name over
+     *         MAX_KEY_LENGTH chars, or a value over MAX_VALUE_SIZE bytes
+     */
+    public void put(String mod, String name, Object value) {
+        checkKey(mod, name);
+        change(new Change(mod, name, checkValue(name, value)));
+    }
+
+    /**
+     * Set a value of the mod from its current one, atomically, e.g. to add to
+     * a list. Made before the file is read, the update is applied again over
+     * the stored value once it is. Same values as put().
+     */
+    public void update(String mod, String name, Update update) {
+        checkKey(mod, name);
+        change(new Change(mod, name, null, update));
+    }
+
+    private void change(Change change) {
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Mod state store closed");
+            }
+            Map<String, ModState> current = state;
+            if (change.update != null) {
+                change = resolve(current, change.mod, change.name, change.update);
+            }
+            ModState old = current.get(change.mod);
+            if (loaded && (old == null ? ModState.EMPTY : old).isSame(change.name, change.value)) {
+                return;
+            }
+            Map<String, ModState> newState = new HashMap<>(current);
+            apply(newState, change);
+            state = Collections.unmodifiableMap(newState);
+            pending.add(change);
+        }
+
+        /** One write for every change until it runs */
+        if (writeScheduled.compareAndSet(false, true)) {
+            writer.schedule(write, writeDelayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** The change the update makes to the mods, keeping the update while not loaded */
+    private Change resolve(Map<String, ModState> mods, String mod, String name, Update update) {
+        ModState old = mods.get(mod);
+        Object value = (old == null ? ModState.EMPTY : old).get(name);
+        if (value instanceof byte[]) {
+            value = ((byte[]) value).clone();
+        }
+        value = checkValue(name, update.apply(value));
+        return new Change(mod, name, value, loaded ? null : update);
+    }
+
+    private static void checkKey(String mod, String name) {
+        if (mod.length() > MAX_KEY_LENGTH || name.length() > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Mod state key too long: " + name);
+        }
+    }
+
+    /** The value to store, byte[] copied */
+    private static Object checkValue(String name, Object value) {
+        if (value != null && !(value instanceof Boolean || value instanceof Integer
+                || value instanceof Long || value instanceof String || value instanceof byte[])) {
+            throw new IllegalArgumentException("Unsupported mod state type: " + value.getClass());
+        }
+        if (value instanceof byte[]) {
+            value = ((byte[]) value).clone();
+            if (((byte[]) value).length > MAX_VALUE_SIZE) {
+                throw new IllegalArgumentException("Mod state value too large: " + name);
+            }
+        } else if (value instanceof String && ((String) value).length() * 3 > MAX_VALUE_SIZE
+                && ((String) value).getBytes(StandardCharsets.UTF_8).length > MAX_VALUE_SIZE) {
+            throw new IllegalArgumentException("Mod state value too large: " + name);
+        }
+        return value;
+    }
+
+    public void putBoolean(String mod, String name, boolean value) {
+        put(mod, name, value);
+    }
+
+    public void putInt(String mod, String name, int value) {
+        put(mod, name, value);
+    }
+
+    public void putLong(String mod, String name, long value) {
+        put(mod, name, value);
+    }
+
+    public void putString(String mod, String name, String value) {
+        put(mod, name, value);
+    }
+
+    public void putBytes(String mod, String name, byte[] value) {
+        put(mod, name, value);
+    }
+
+    public void remove(String mod, String name) {
+        put(mod, name, null);
+    }
+
+    /**
+     * Write the pending changes and stop the writer thread, blocking until
+     * done. Reads still work, changes throw IllegalStateException.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeNow();
+                closeLog();
+            }
+        });
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Write the changes now rather than later, the Future is done once written */
+    public Future<?> flush() {
+        return writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                writeNow();
+            }
+        });
+    }
+
+    /** Append the pending changes in one write */
+    private void writeNow() {
+        List<Change> changes;
+        Map<String, ModState> snapshot;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            changes = pending;
+            pending = new ArrayList<>();
+            snapshot = state;
+        }
+
+        if (log == null) {
+            /** The log couldn't be opened, rewrite it whole */
+            compact();
+            return;
+        }
+        try {
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(batch);
+            for (Change change : changes) {
+                writeRecord(out, change);
+            }
+            out.flush();
+            log.write(batch.toByteArray());
+            log.getFD().sync();
+            logRecords += changes.size();
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeLog();
+            compact();
+            return;
+        }
+
+        if (logRecords > liveValues(snapshot) + COMPACT_SLACK) {
+            compact();
+        }
+    }
+
+    /** Rewrite the log with only the live state, replacing it by rename */
+    private void compact() {
+        Map<String, ModState> snapshot;
+        synchronized (this) {
+            /** The new log holds every change made so far */
+            snapshot = state;
+            pending = new ArrayList<>();
+        }
+
+        closeLog();
+        File temp = new File(file.getPath() + ".tmp");
+        int records = 0;
+        try {
+            FileOutputStream fos = new FileOutputStream(temp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                /** First, so the changes made by this version win over them */
+                for (byte[] record : unknownRecords) {
+                    writeRecord(out, record);
+                    records++;
+                }
+                for (Map.Entry<String, ModState> mod : snapshot.entrySet()) {
+                    for (String name : mod.getValue().names()) {
+                        writeRecord(out, new Change(mod.getKey(), name, mod.getValue().get(name)));
+                        records++;
+                    }
+                }
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot replace " + file);
+            }
+            logRecords = records;
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+        }
+        openLog();
+    }
+
+    private void openLog() {
+        try {
+            log = new FileOutputStream(file, true);
+        } catch (IOException e) {
+            e.printStackTrace();
+            log = null;
+        }
+    }
+
+    private void closeLog() {
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            log = null;
+        }
+    }
+
+    /** length, payload, CRC32 of the payload */
+    private static void writeRecord(DataOutputStream out, Change change) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(payload);
+        data.writeByte(change.value == null ? OP_REMOVE : OP_PUT);
+        data.writeUTF(change.mod);
+        data.writeUTF(change.name);
+        Object value = change.value;
+        if (value instanceof Boolean) {
+            data.writeByte(TYPE_BOOLEAN);
+            data.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            data.writeByte(TYPE_INT);
+            data.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            data.writeByte(TYPE_LONG);
+            data.writeLong((Long) value);
+        } else if (value instanceof String) {
+            byte[] text = ((String) value).getBytes(StandardCharsets.UTF_8);
+            data.writeByte(TYPE_TEXT);
+            data.writeInt(text.length);
+            data.write(text);
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            data.writeByte(TYPE_BYTES);
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        }
+        data.flush();
+        writeRecord(out, payload.toByteArray());
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        out.writeInt(record.length);
+        out.write(record);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static Change decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte op = in.readByte();
+        String mod = in.readUTF();
+        String name = in.readUTF();
+        if (op == OP_REMOVE) {
+            return new Change(mod, name, null);
+        } else if (op != OP_PUT) {
+            throw new IOException("Unknown mod state record " + op);
+        }
+
+        Object value;
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_BOOLEAN:
+                value = in.readBoolean();
+                break;
+            case TYPE_INT:
+                value = in.readInt();
+                break;
+            case TYPE_LONG:
+                value = in.readLong();
+                break;
+            case TYPE_STRING:
+                value = in.readUTF();
+                break;
+            case TYPE_TEXT:
+                byte[] text = new byte[in.readInt()];
+                in.readFully(text);
+                value = new String(text, StandardCharsets.UTF_8);
+                break;
+            case TYPE_BYTES:
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                value = bytes;
+                break;
+            default:
+                throw new IOException("Unknown mod state type " + type);
+        }
+        return new Change(mod, name, value);
+    }
+}
@@ -43,7 +43,8 @@ import com.motorola.mod.IModManager;
 import com.motorola.mod.ModDevice;
 import com.motorola.mod.ModManager;
 
-import java.util.ArrayList;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -63,10 +64,24 @@ public class Personality {
      */
     protected ModDevice modDevice;
 
+    /**
+     * The mod devices as of the last enumeration
+     */
+    private volatile ModSnapshot snapshot = ModSnapshot.EMPTY;
+
+    /**
+     * The preferred mod device, the first device is used if none attached
+     */
+    private volatile ModDeviceMatcher target;
+
+    /** Key of the device given to onModDevice(), guarded by this */
+    private Object selectedKey;
+    private boolean selectionReported = false;
+
     /**
      * Listeners to notify mod event and data
      */
-    List<Handler> listeners = new ArrayList<>();
+    private final ListenerBus listeners = new ListenerBus();
 
     /** Constructor */
     public Personality(Context context) {
@@ -92,6 +107,7 @@ public class Personality {
     /** Clean up */
     public void onDestroy() {
         listeners.clear();
+        enumerator.quit();
         context.unregisterReceiver(modReceiver);
         context.unbindService(mConnection);
     }
@@ -105,12 +121,58 @@ public class Personality {
     public final static int MSG_RAW_REQUEST_PERMISSION = 6;
     public final static int MSG_RAW_IO_READY = 7;
     public final static int MSG_RAW_DATA = 8;
+    /** A mod asked for firmware, msg.arg1 is 1 if it was supplied from the catalog */
     public final static int MSG_REQUEST_FIRMWARE = 9;
+    /** The mod list changed, msg.obj is the ModSnapshot and msg.arg1 the device count */
+    public final static int MSG_MOD_LIST = 10;
+    /**
+     * A firmware update progressed, msg.arg1 is the FirmwareUpdate state,
+     * msg.arg2 its result once done and msg.obj the FirmwareUpdate
+     */
+    public final static int MSG_UPDATE_PROGRESS = 11;
+    /**
+     * Firmware images are ready to flash from the firmware store, msg.obj is
+     * the List of URIs. msg.arg1 is 1 if they were imported, 0 if they are the
+     * most recently used images restored on start.
+     */
+    public final static int MSG_FIRMWARE_STORED = 12;
+    /**
+     * A job of the firmware update orchestrator changed, msg.arg1 is its
+     * JOB_ state, msg.arg2 the result of its last attempt and msg.obj the Job
+     */
+    public final static int MSG_UPDATE_JOB = 13;
 
+    /** Get the events as Messages on the Handler's looper */
     public void registerListener(Handler listener) {
+        listeners.add(new HandlerListener(listener, false), listener, false);
+    }
+
+    /**
+     * Get the events as Messages on the Handler's looper, until nothing else
+     * holds the Handler; so a finished Activity is not kept alive.
+     */
+    public void registerWeakListener(Handler listener) {
+        listeners.add(new HandlerListener(listener, true), listener, true);
+    }
+
+    public void unregisterListener(Handler listener) {
+        listeners.remove(listener);
+    }
+
+    /** Get the events right on the thread which raised them */
+    public void registerListener(PersonalityListener listener) {
         listeners.add(listener);
     }
 
+    /** Get the events right on the thread which raised them, until nothing else holds listener */
+    public void registerWeakListener(PersonalityListener listener) {
+        listeners.addWeak(listener);
+    }
+
+    public void unregisterListener(PersonalityListener listener) {
+        listeners.remove(listener);
+    }
+
     public ModDevice getModDevice() {
         return modDevice;
     }
@@ -120,25 +182,49 @@ public class Personality {
     }
     // Personality common interface - End
 
+    protected int getListenerCount() {
+        return listeners.size();
+    }
+
     protected void notifyListeners(int what) {
-        for (Handler handler : listeners) {
-            handler.sendEmptyMessage(what);
-        }
+        listeners.post(what, 0, 0, null);
     }
 
+    /** Notify the content of msg, which is recycled afterwards */
     protected void notifyListeners(Message msg) {
-        for (Handler handler : listeners) {
-            handler.sendMessage(msg);
-        }
+        listeners.post(msg.what, msg.arg1, msg.arg2, msg.obj);
+        msg.recycle();
     }
 
     protected void notifyListeners(int what, int arg) {
-        Message msg = Message.obtain();
-        msg.what = what;
-        msg.arg1 = arg;
+        listeners.post(what, arg, 0, null);
+    }
 
-        for (Handler handler : listeners) {
-            handler.sendMessage(msg);
+    protected void notifyListeners(int what, int arg1, int arg2, Object obj) {
+        listeners.post(what, arg1, arg2, obj);
+    }
+
+    /**
+     * Forward events to a Handler. A Message can only be queued once, so
+     * every Handler gets its own, taken from the Message pool.
+     */
+    private static class HandlerListener implements PersonalityListener {
+        /** A weak listener must not hold its Handler, the registry holds it weakly */
+        private final Handler handler;
+        private final WeakReference<Handler> weakHandler;
+
+        HandlerListener(Handler handler, boolean weak) {
+            this.handler = weak ? null : handler;
+            this.weakHandler = weak ? new WeakReference<>(handler) : null;
+        }
+
+        @Override
+        public void onPersonalityEvent(PersonalityEvent event) {
+            Handler target = handler != null ? handler : weakHandler.get();
+            if (target != null) {
+                target.sendMessage(Message.obtain(target, event.what, event.arg1, event.arg2,
+                        event.obj));
+            }
         }
     }
 
@@ -149,50 +235,143 @@ public class Personality {
                                        IBinder binder) {
             IModManager mMgrSrvc = IModManager.Stub.asInterface(binder);
             modManager = new ModManager(context, mMgrSrvc);
-            onModAttach(true);
+            requestModListUpdate(ModEnumerator.REASON_SERVICE);
         }
 
         public void onServiceDisconnected(ComponentName className) {
-            modDevice = null;
+            /** The enumeration without ModManager detaches all the mod devices */
             modManager = null;
-            onModAttach(false);
+            requestModListUpdate(ModEnumerator.REASON_SERVICE);
         }
     };
 
-    /** Query mod device when attach/detach event */
-    protected void onModAttach(boolean attach) {
-        new Thread(new Runnable() {
-            public void run() {
-                updateModList();
-            }
-        }).start();
+    /** Enumerates mod devices on its own thread, coalescing bursts of events */
+    private final ModEnumerator enumerator = new ModEnumerator(new ModEnumerator.Task() {
+        @Override
+        public void enumerate(int generation) {
+            updateModList(generation);
+        }
+    });
+
+    /**
+     * Query mod device on the enumerator thread, once a burst of events goes
+     * quiet. reason is one of the ModEnumerator.REASON_ values.
+     */
+    protected void requestModListUpdate(int reason) {
+        enumerator.request(reason);
+    }
+
+    /** Run on the enumerator thread, in order with onModSnapshot() and onModDevice() */
+    protected void runOnEnumerator(Runnable runnable) {
+        enumerator.execute(runnable);
     }
 
     /** Query and update mod device info */
     protected void updateModList() {
-        if (modManager == null) {
-            onModDevice(null);
+        updateModList(-1);
+    }
+
+    /** Query and update mod device info, skip the result if a newer request came meanwhile */
+    private void updateModList(int generation) {
+        List<ModDevice> l = null;
+        if (modManager != null) {
+            try {
+                /** Get currently mod device list from ModManager */
+                l = modManager.getModList(false);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+        if (generation >= 0 && enumerator.isStale(generation)) {
+            /** Already stale, the newer request enumerates again */
             return;
         }
 
-        try {
-            /** Get currently mod device list from ModManager */
-            List<ModDevice> l = modManager.getModList(false);
-            if (l == null || l.size() == 0) {
-                onModDevice(null);
+        synchronized (this) {
+            /** Only tell the listeners about a mod list which actually changed */
+            ModSnapshot last = snapshot;
+            ModSnapshot current = ModSnapshot.of(last.getVersion() + 1, l);
+            List<ModSnapshot.Delta> deltas = last.diff(current);
+            if (deltas.isEmpty() && last != ModSnapshot.EMPTY) {
                 return;
             }
+            snapshot = current;
+            onModSnapshot(current, deltas);
+        }
+    }
 
-            // TODO: simply get first mod device from list for this example.
-            // You may need consider to check expecting mod base on PID/VID or so on.
-            for (ModDevice d : l) {
-                if (d != null) {
-                    onModDevice(d);
+    /** Get the mod devices as of the last enumeration */
+    public ModSnapshot getModSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Operate on the mod device of the VID / PID when attached, else on the
+     * first one. With pid Constants.INVALID_ID, any product of the vendor.
+     */
+    public void selectDevice(int vid, int pid) {
+        selectDevice(ModDeviceMatcher.forProduct(vid, pid));
+    }
+
+    /** Operate on the first mod device the matcher matches, else on the first one */
+    public void selectDevice(ModDeviceMatcher matcher) {
+        target = matcher;
+
+        if (snapshot == ModSnapshot.EMPTY) {
+            /** Not enumerated yet, the first enumeration picks */
+            return;
+        }
+
+        /** Pick again from the cached mod list, no need to enumerate */
+        enumerator.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Personality.this) {
+                    onModSnapshot(snapshot, Collections.<ModSnapshot.Delta>emptyList());
                 }
             }
-        } catch (RemoteException e) {
-            e.printStackTrace();
+        });
+    }
+
+    /** Get the attached mod device of the VID / PID, see ModSnapshot.find() */
+    public ModDevice getModDevice(int vid, int pid) {
+        return snapshot.find(vid, pid);
+    }
+
+    /**
+     * The mod list changed, deltas tell how. Also called for the first
+     * enumeration even if no mod is attached. onModDevice() only hears about
+     * the selected device.
+     */
+    protected void onModSnapshot(ModSnapshot current, List<ModSnapshot.Delta> deltas) {
+        ModDevice selected = findSelected(current);
+
+        Object key = selected != null ? ModSnapshot.keyOf(selected) : null;
+        boolean changed = key == null ? selectedKey != null
+                : !key.equals(selectedKey) || ModSnapshot.touches(deltas, key);
+        if (changed || !selectionReported) {
+            selectedKey = key;
+            selectionReported = true;
+            onModDevice(selected);
+        }
+
+        if (!deltas.isEmpty()) {
+            notifyListeners(MSG_MOD_LIST, current.size(), 0, current);
+        }
+    }
+
+    /** The mod device of the snapshot to operate on, see selectDevice() */
+    protected ModDevice findSelected(ModSnapshot current) {
+        ModDevice selected = null;
+        ModDeviceMatcher matcher = target;
+        if (matcher != null) {
+            selected = current.find(matcher);
+        }
+        if (selected == null) {
+            selected = current.first();
         }
+        return selected;
     }
 
     /** Notify listeners the mod device info */
@@ -207,16 +386,11 @@ public class Personality {
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
             if (ModManager.ACTION_MOD_ATTACH.equals(action)) {
-                /** Mod device attached */
-                new Handler().postDelayed(new Runnable() {
-                    @Override
-                    public void run() {
-                        onModAttach(true);
-                    }
-                }, 1000);
+                /** Mod device attached, enumeration done will pull the refresh in */
+                requestModListUpdate(ModEnumerator.REASON_ATTACH);
             } else if (ModManager.ACTION_MOD_DETACH.equals(action)) {
                 /** Mod device detached */
-                onModAttach(false);
+                requestModListUpdate(ModEnumerator.REASON_DETACH);
             }
         }
     }
@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.firmware;
+
+import com.motorola.samples.mdkutility.Constants;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Which firmware images of the FirmwareStore to supply to a mod, by VID /
+ * PID, for mods that come up asking for firmware. Entries for a PID of
+ * Constants.INVALID_ID cover every product of the vendor. Kept in memory
+ * for lookups from a broadcast receiver, and saved to a properties file
+ * on every change.
+ */
+public class FirmwareCatalog {
+    private final File file;
+
+    /** Image hashes by product, see key(), guarded by this */
+    private final Map<Long, List<String>> images = new HashMap<>();
+
+    public FirmwareCatalog(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            Properties props = new Properties();
+            FileInputStream in = new FileInputStream(file);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            for (String name : props.stringPropertyNames()) {
+                try {
+                    images.put(Long.parseLong(name, 16),
+                            Collections.unmodifiableList(Arrays.asList(
+                                    props.getProperty(name).split(","))));
+                } catch (NumberFormatException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static long key(int vid, int pid) {
+        return ((long) vid << 32) | (pid & 0xFFFFFFFFL);
+    }
+
+    /** Supply the images, in flashing order, to mods of the VID / PID */
+    public synchronized void put(int vid, int pid, List<String> hashes) {
+        images.put(key(vid, pid), Collections.unmodifiableList(new ArrayList<>(hashes)));
+        save();
+    }
+
+    public synchronized boolean remove(int vid, int pid) {
+        if (images.remove(key(vid, pid)) == null) {
+            return false;
+        }
+        save();
+        return true;
+    }
+
+    /** Get the images for the VID / PID, else for any product of the vendor, else null */
+    public synchronized List<String> resolve(int vid, int pid) {
+        List<String> hashes = images.get(key(vid, pid));
+        if (hashes == null) {
+            hashes = images.get(key(vid, Constants.INVALID_ID));
+        }
+        return hashes;
+    }
+
+    /** Get every image the catalog refers to */
+    public synchronized Set<String> getImages() {
+        Set<String> all = new HashSet<>();
+        for (List<String> hashes : images.values()) {
+            all.addAll(hashes);
+        }
+        return all;
+    }
+
+    private void save() {
+        Properties props = new Properties();
+        for (Map.Entry<Long, List<String>> entry : images.entrySet()) {
+            StringBuilder sb = new StringBuilder();
+            for (String hash : entry.getValue()) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(hash);
+            }
+            props.setProperty(Long.toHexString(entry.getKey()), sb.toString());
+        }
+
+        try {
+            File temp = new File(file.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                props.store(out, null);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
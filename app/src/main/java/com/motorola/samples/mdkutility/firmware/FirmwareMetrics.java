@@ -0,0 +1,271 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.firmware;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Timings of firmware updates, kept in a fixed size ring of records in one
+ * file so it never grows. Devices and images are stored as 64 bit ids, see
+ * idOf(), and summaries are taken per device, per image or over all.
+ */
+public class FirmwareMetrics {
+    /** "FWMT" */
+    private static final int MAGIC = 0x46574d54;
+    private static final int FORMAT_VERSION = 1;
+
+    /** magic, version, capacity, count, next sequence */
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8;
+    /** time, device, image, request to start, flash, total, re-enumeration, result */
+    private static final int RECORD_SIZE = 8 + 8 + 8 + 4 + 4 + 4 + 4 + 4;
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /** Matches any device or image in summarize() */
+    public static final long ANY = 0;
+
+    /** The timing of one update, durations in ms, -1 if not seen */
+    public static final class Record {
+        /** Wall clock time of the request */
+        public final long time;
+        public final long deviceId;
+        public final long imageId;
+        /** From the request to the mod starting to flash */
+        public final int startMs;
+        /** From the mod starting to flash to it being done */
+        public final int flashMs;
+        /** From the request to the mod being done */
+        public final int totalMs;
+        /** From the mod being done to it being enumerated again */
+        public final int reenumerationMs;
+        public final int result;
+
+        public Record(long time, long deviceId, long imageId, int startMs, int flashMs,
+                      int totalMs, int reenumerationMs, int result) {
+            this.time = time;
+            this.deviceId = deviceId;
+            this.imageId = imageId;
+            this.startMs = startMs;
+            this.flashMs = flashMs;
+            this.totalMs = totalMs;
+            this.reenumerationMs = reenumerationMs;
+            this.result = result;
+        }
+    }
+
+    /** Latency percentiles in ms, -1 without samples */
+    public static final class Percentiles {
+        public final int count;
+        public final int p50;
+        public final int p95;
+        public final int p99;
+
+        Percentiles(int[] samples, int count) {
+            Arrays.sort(samples, 0, count);
+            this.count = count;
+            this.p50 = percentile(samples, count, 50);
+            this.p95 = percentile(samples, count, 95);
+            this.p99 = percentile(samples, count, 99);
+        }
+    }
+
+    /** Summary of the matching records */
+    public static final class Summary {
+        public final int updates;
+        public final int failures;
+        public final Percentiles flash;
+        public final Percentiles total;
+        public final Percentiles reenumeration;
+
+        Summary(int updates, int failures, Percentiles flash, Percentiles total,
+                Percentiles reenumeration) {
+            this.updates = updates;
+            this.failures = failures;
+            this.flash = flash;
+            this.total = total;
+            this.reenumeration = reenumeration;
+        }
+    }
+
+    private final FileChannel channel;
+    private final int capacity;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+
+    /** Records from oldest to newest, mirrored in memory, guarded by this */
+    private final Record[] ring;
+    private int count = 0;
+    private long next = 0;
+
+    public FirmwareMetrics(File file, int capacity) throws IOException {
+        this.capacity = capacity;
+        this.ring = new Record[capacity];
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        if (!load()) {
+            count = 0;
+            next = 0;
+            channel.truncate(0);
+            writeHeader();
+        }
+    }
+
+    /** Read the ring back, false if the file is new or of another format */
+    private boolean load() throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION
+                || header.getInt() != capacity) {
+            return false;
+        }
+        int stored = header.getInt();
+        long sequence = header.getLong();
+        if (stored < 0 || stored > capacity || sequence < stored
+                || channel.size() < HEADER_SIZE + (long) stored * RECORD_SIZE) {
+            return false;
+        }
+
+        for (long s = sequence - stored; s < sequence; s++) {
+            record.clear();
+            channel.read(record, position(s));
+            record.flip();
+            ring[(int) (s % capacity)] = new Record(record.getLong(), record.getLong(),
+                    record.getLong(), record.getInt(), record.getInt(), record.getInt(),
+                    record.getInt(), record.getInt());
+        }
+        count = stored;
+        next = sequence;
+        return true;
+    }
+
+    private long position(long sequence) {
+        return HEADER_SIZE + (sequence % capacity) * RECORD_SIZE;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(capacity).putInt(count).putLong(next);
+        header.flip();
+        channel.write(header, 0);
+    }
+
+    /** Add a record, overwriting the oldest once full */
+    public synchronized void append(Record r) throws IOException {
+        record.clear();
+        record.putLong(r.time).putLong(r.deviceId).putLong(r.imageId).putInt(r.startMs)
+                .putInt(r.flashMs).putInt(r.totalMs).putInt(r.reenumerationMs).putInt(r.result);
+        record.flip();
+        channel.write(record, position(next));
+
+        ring[(int) (next % capacity)] = r;
+        next++;
+        count = Math.min(count + 1, capacity);
+        writeHeader();
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /** Summarize the records of the device and image, ANY for all */
+    public synchronized Summary summarize(long deviceId, long imageId) {
+        int[] flash = new int[count];
+        int[] total = new int[count];
+        int[] reenumeration = new int[count];
+        int flashes = 0, totals = 0, reenumerations = 0;
+        int updates = 0, failures = 0;
+
+        for (long s = next - count; s < next; s++) {
+            Record r = ring[(int) (s % capacity)];
+            if ((deviceId != ANY && r.deviceId != deviceId)
+                    || (imageId != ANY && r.imageId != imageId)) {
+                continue;
+            }
+            updates++;
+            if (r.result != FirmwareUpdate.RESULT_SUCCESS) {
+                failures++;
+                continue;
+            }
+            if (r.flashMs >= 0) {
+                flash[flashes++] = r.flashMs;
+            }
+            if (r.totalMs >= 0) {
+                total[totals++] = r.totalMs;
+            }
+            if (r.reenumerationMs >= 0) {
+                reenumeration[reenumerations++] = r.reenumerationMs;
+            }
+        }
+        return new Summary(updates, failures, new Percentiles(flash, flashes),
+                new Percentiles(total, totals), new Percentiles(reenumeration, reenumerations));
+    }
+
+    /** Write every record as CSV, oldest first */
+    public synchronized void dump(Writer out) throws IOException {
+        out.write("time,device,image,start_ms,flash_ms,total_ms,reenumeration_ms,result\n");
+        for (long s = next - count; s < next; s++) {
+            Record r = ring[(int) (s % capacity)];
+            out.write(String.format(Locale.US, "%d,%016x,%016x,%d,%d,%d,%d,%d\n", r.time,
+                    r.deviceId, r.imageId, r.startMs, r.flashMs, r.totalMs, r.reenumerationMs,
+                    r.result));
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /** 64 bit FNV-1a of a device key or image name, never ANY */
+    public static long idOf(String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == ANY ? 1 : hash;
+    }
+
+    /** Nearest rank percentile of the sorted samples */
+    static int percentile(int[] sorted, int count, int p) {
+        if (count == 0) {
+            return -1;
+        }
+        int rank = (int) Math.ceil(p / 100.0 * count);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
@@ -0,0 +1,369 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.firmware;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs firmware update jobs for many mods through one FirmwareUpdateQueue.
+ * Jobs queue per device, keyed like ModSnapshot.keyOf(). The job of every
+ * attached device is submitted at once, so the queue requests the next
+ * update as soon as the previous mod is done. After a flash the device
+ * settles until onDevices() reports it enumerated again before its next job
+ * runs; an enumeration of another mod doesn't release it. Transient
+ * failures are retried, and completed flashes are counted for throughput.
+ *
+ * In fleet mode every device that shows up gets a job with the fleet image,
+ * once, which is how a bench of mods is flashed one after another. Once is
+ * per key: mods which report no unique id are keyed by VID / PID, so only
+ * the first mod of such a product is flashed until setFleetImage() is
+ * called again, e.g. for the next mod on the bench.
+ *
+ * The owner of the queue forwards its progress to onProgress().
+ */
+public class FirmwareOrchestrator<D, U> {
+    /** Called with the orchestrator locked, don't block */
+    public interface Listener<D, U> {
+        void onJobChanged(Job<D, U> job);
+    }
+
+    public static final int JOB_PENDING = 0;
+    public static final int JOB_RUNNING = 1;
+    public static final int JOB_SUCCEEDED = 2;
+    public static final int JOB_FAILED = 3;
+    public static final int JOB_CANCELLED = 4;
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    /**
+     * Mod result codes, errno values, worth another try. Not EAGAIN, 11 is
+     * FirmwareUpdateQueue.SERVICE_RESULT_IN_QUEUE from ModManager.
+     */
+    private static final int ERRNO_EIO = 5;
+    private static final int ERRNO_EBUSY = 16;
+    private static final int ERRNO_ETIMEDOUT = 110;
+
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    /** One update of one device */
+    public static final class Job<D, U> {
+        final Object key;
+        final List<U> uris;
+        private int state = JOB_PENDING;
+        private int attempts = 0;
+        private int result = FirmwareUpdate.RESULT_SUCCESS;
+        private FirmwareUpdate<D, U> update;
+
+        Job(Object key, List<U> uris) {
+            this.key = key;
+            this.uris = uris;
+        }
+
+        public Object getKey() {
+            return key;
+        }
+
+        public List<U> getUris() {
+            return uris;
+        }
+
+        public int getState() {
+            return state;
+        }
+
+        /** Requests made so far, retries included */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /** Result of the last attempt */
+        public int getResult() {
+            return result;
+        }
+
+        /** Update of the last attempt, null before the first */
+        public FirmwareUpdate<D, U> getUpdate() {
+            return update;
+        }
+    }
+
+    private final FirmwareUpdateQueue<D, U> queue;
+    private final Listener<D, U> listener;
+    private final int maxAttempts;
+
+    /** Waiting jobs per device, in order */
+    private final Map<Object, ArrayDeque<Job<D, U>>> pending = new LinkedHashMap<>();
+    private final Map<Object, Job<D, U>> running = new HashMap<>();
+
+    /** Flashed devices waiting to be enumerated again */
+    private final Set<Object> settling = new HashSet<>();
+    private Map<Object, D> attached = Collections.emptyMap();
+
+    /** Fleet image and the device keys it was queued for */
+    private List<U> fleetUris;
+    private final Set<Object> fleetDone = new HashSet<>();
+
+    /** Completion times of successful flashes in the last hour */
+    private final ArrayDeque<Long> flashTimes = new ArrayDeque<>();
+    private long firstRequestTime = -1;
+    private int succeeded = 0;
+    private int failed = 0;
+
+    public FirmwareOrchestrator(FirmwareUpdateQueue<D, U> queue, Listener<D, U> listener,
+                                int maxAttempts) {
+        this.queue = queue;
+        this.listener = listener;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /** Queue an update of the device of the key, run once it is attached */
+    public synchronized Job<D, U> enqueue(Object key, List<U> uris) {
+        Job<D, U> job = new Job<>(key, new ArrayList<>(uris));
+        ArrayDeque<Job<D, U>> jobs = pending.get(key);
+        if (jobs == null) {
+            jobs = new ArrayDeque<>();
+            pending.put(key, jobs);
+        }
+        jobs.add(job);
+        listener.onJobChanged(job);
+        dispatch();
+        return job;
+    }
+
+    /**
+     * Flash the image onto every device attached from now on, once per key.
+     * Null stops queueing, jobs already queued still run.
+     */
+    public synchronized void setFleetImage(List<U> uris) {
+        fleetUris = uris == null ? null : new ArrayList<>(uris);
+        fleetDone.clear();
+        if (fleetUris != null) {
+            queueFleet();
+            dispatch();
+        }
+    }
+
+    public synchronized boolean isFleetMode() {
+        return fleetUris != null;
+    }
+
+    /** Drop the jobs not requested yet */
+    public synchronized void cancelPending() {
+        for (ArrayDeque<Job<D, U>> jobs : pending.values()) {
+            for (Job<D, U> job : jobs) {
+                job.state = JOB_CANCELLED;
+                listener.onJobChanged(job);
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * The attached devices changed, by key. A device counts as enumerated
+     * again if it is not equals() to the one of its key before.
+     */
+    public synchronized void onDevices(Map<Object, D> devices) {
+        List<Object> changed = new ArrayList<>();
+        for (Map.Entry<Object, D> device : devices.entrySet()) {
+            D before = attached.get(device.getKey());
+            if (before == null || !before.equals(device.getValue())) {
+                changed.add(device.getKey());
+            }
+        }
+        onDevices(devices, changed);
+    }
+
+    /**
+     * The attached devices changed, by key. Only the changed ones, e.g. the
+     * ones a ModSnapshot diff touches, are enumerated again and stop settling.
+     */
+    public synchronized void onDevices(Map<Object, D> devices, Collection<?> changed) {
+        attached = new HashMap<>(devices);
+        settling.removeAll(changed);
+        settling.retainAll(attached.keySet());
+        queueFleet();
+        dispatch();
+    }
+
+    /** Progress of the updates of the queue, forwarded by its owner */
+    public synchronized void onProgress(FirmwareUpdate<D, U> update) {
+        if (update.getState() != FirmwareUpdate.STATE_DONE) {
+            return;
+        }
+        Job<D, U> job = null;
+        for (Job<D, U> j : running.values()) {
+            if (j.update == update) {
+                job = j;
+                break;
+            }
+        }
+        if (job == null) {
+            return;
+        }
+        running.remove(job.key);
+
+        int result = update.getResult();
+        job.result = result;
+        if (result == FirmwareUpdate.RESULT_SUCCESS) {
+            job.state = JOB_SUCCEEDED;
+            succeeded++;
+            flashTimes.add(now());
+            /** The mod reboots into the new firmware, wait for it */
+            settling.add(job.key);
+        } else if (result == FirmwareUpdate.RESULT_CANCELLED) {
+            job.state = JOB_CANCELLED;
+        } else if (isTransient(result) && job.attempts < maxAttempts) {
+            /** Again first, before the later jobs of the device */
+            job.state = JOB_PENDING;
+            ArrayDeque<Job<D, U>> jobs = pending.get(job.key);
+            if (jobs == null) {
+                jobs = new ArrayDeque<>();
+                pending.put(job.key, jobs);
+            }
+            jobs.addFirst(job);
+            if (result > 0) {
+                /** Failed on the mod side, the mod restarts before it can take another */
+                settling.add(job.key);
+            }
+        } else {
+            job.state = JOB_FAILED;
+            failed++;
+        }
+        listener.onJobChanged(job);
+        dispatch();
+    }
+
+    /** Submit the next job of every attached device that has none running */
+    private void dispatch() {
+        Iterator<Map.Entry<Object, ArrayDeque<Job<D, U>>>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Object, ArrayDeque<Job<D, U>>> entry = it.next();
+            Object key = entry.getKey();
+            D device = attached.get(key);
+            if (device == null || running.containsKey(key) || settling.contains(key)) {
+                continue;
+            }
+
+            Job<D, U> job = entry.getValue().poll();
+            if (entry.getValue().isEmpty()) {
+                it.remove();
+            }
+            if (job == null) {
+                continue;
+            }
+            if (firstRequestTime < 0) {
+                firstRequestTime = now();
+            }
+            job.state = JOB_RUNNING;
+            job.attempts++;
+            running.put(key, job);
+            job.update = queue.submit(device, job.uris);
+            listener.onJobChanged(job);
+        }
+    }
+
+    private void queueFleet() {
+        if (fleetUris == null) {
+            return;
+        }
+        for (Object key : attached.keySet()) {
+            if (fleetDone.add(key)) {
+                Job<D, U> job = new Job<>(key, fleetUris);
+                ArrayDeque<Job<D, U>> jobs = pending.get(key);
+                if (jobs == null) {
+                    jobs = new ArrayDeque<>();
+                    pending.put(key, jobs);
+                }
+                jobs.add(job);
+                listener.onJobChanged(job);
+            }
+        }
+    }
+
+    static boolean isTransient(int result) {
+        switch (result) {
+            case FirmwareUpdate.RESULT_FAILED:
+            case FirmwareUpdate.RESULT_TIMEOUT:
+            case ERRNO_EIO:
+            case ERRNO_EBUSY:
+            case ERRNO_ETIMEDOUT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Successful flashes per hour, over the last hour or since the first request */
+    public synchronized double getFlashesPerHour() {
+        long now = now();
+        while (!flashTimes.isEmpty() && now - flashTimes.peek() > HOUR_MS) {
+            flashTimes.poll();
+        }
+        if (firstRequestTime < 0) {
+            return 0;
+        }
+        long window = Math.min(now - firstRequestTime, HOUR_MS);
+        if (window <= 0) {
+            return 0;
+        }
+        return flashTimes.size() * (double) HOUR_MS / window;
+    }
+
+    public synchronized int getSucceededCount() {
+        return succeeded;
+    }
+
+    /** Jobs failed for good, after their retries */
+    public synchronized int getFailedCount() {
+        return failed;
+    }
+
+    /** Jobs waiting, for a device or for their turn */
+    public synchronized int getPendingCount() {
+        int count = 0;
+        for (ArrayDeque<Job<D, U>> jobs : pending.values()) {
+            count += jobs.size();
+        }
+        return count;
+    }
+
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+}
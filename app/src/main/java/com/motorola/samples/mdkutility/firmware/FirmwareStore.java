@@ -0,0 +1,319 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.firmware;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Content addressed store of firmware images in a private directory. Every
+ * image is kept once, in a file named by its SHA-256, whatever it was
+ * imported from. The least recently used images are deleted once the store
+ * is over its size budget, the use order is the modification time of the
+ * files so it survives restarts.
+ */
+public class FirmwareStore {
+    /** Original file names of the images, by hash */
+    private static final String INDEX_FILE = "index.properties";
+    private static final String TEMP_PREFIX = "import";
+
+    public static final long DEFAULT_BUDGET_BYTES = 64 * 1024 * 1024;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /** One stored image */
+    public static final class Entry {
+        /** SHA-256 of the image in lower case hex, also its file name */
+        public final String hash;
+        public final File file;
+        public final String name;
+        public final long size;
+
+        Entry(String hash, File file, String name, long size) {
+            this.hash = hash;
+            this.file = file;
+            this.name = name;
+            this.size = size;
+        }
+    }
+
+    private final File dir;
+    private final long budgetBytes;
+    private final ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+
+    /** Images from least to most recently used, guarded by this */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Properties names = new Properties();
+    private Set<String> pinned = Collections.emptySet();
+    private long totalBytes = 0;
+
+    public FirmwareStore(File dir, long budgetBytes) throws IOException {
+        this.dir = dir;
+        this.budgetBytes = budgetBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        load();
+    }
+
+    /** Rebuild the entries from the directory, oldest use first */
+    private void load() throws IOException {
+        File index = new File(dir, INDEX_FILE);
+        if (index.exists()) {
+            FileInputStream in = new FileInputStream(index);
+            try {
+                names.load(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(TEMP_PREFIX)) {
+                /** Left over by an interrupted import */
+                file.delete();
+            } else if (isHash(name)) {
+                entries.put(name, new Entry(name, file, names.getProperty(name, name),
+                        file.length()));
+                totalBytes += file.length();
+            }
+        }
+    }
+
+    /**
+     * Copy the image into the store, hashing it on the way. An image already
+     * stored is only marked as used. The name is what the image is shown as.
+     */
+    public Entry put(ReadableByteChannel in, String name) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        File temp = File.createTempFile(TEMP_PREFIX, null, dir);
+        try {
+            long size = copy(in, temp, digest);
+            String hash = FirmwareValidator.toHex(digest.digest());
+            synchronized (this) {
+                Entry entry = entries.get(hash);
+                if (entry != null) {
+                    if (entry.file.exists()) {
+                        touch(entry);
+                        return entry;
+                    }
+                    /** Deleted behind our back, replaced below */
+                    forget(entry);
+                }
+                File file = new File(dir, hash);
+                if (!temp.renameTo(file)) {
+                    throw new IOException("cannot store " + file);
+                }
+                entry = new Entry(hash, file, name, size);
+                entries.put(hash, entry);
+                totalBytes += size;
+                names.setProperty(hash, name);
+                evict(hash);
+                saveIndex();
+                return entry;
+            }
+        } finally {
+            /** Gone already if renamed */
+            temp.delete();
+        }
+    }
+
+    private long copy(ReadableByteChannel in, File to, MessageDigest digest) throws IOException {
+        FileOutputStream out = new FileOutputStream(to);
+        try {
+            FileChannel channel = out.getChannel();
+            long size = 0;
+            synchronized (chunk) {
+                while (true) {
+                    chunk.clear();
+                    int read = in.read(chunk);
+                    if (read < 0) {
+                        break;
+                    }
+                    size += read;
+                    chunk.flip();
+                    digest.update(chunk);
+                    chunk.rewind();
+                    while (chunk.hasRemaining()) {
+                        channel.write(chunk);
+                    }
+                }
+            }
+            out.getFD().sync();
+            return size;
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Get the image of the hash and mark it as used, null if not stored */
+    public synchronized Entry get(String hash) {
+        Entry entry = entries.get(hash);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.file.exists()) {
+            forget(entry);
+            return null;
+        }
+        touch(entry);
+        return entry;
+    }
+
+    /** Get the image of the hash without marking it as used, null if not stored */
+    public synchronized Entry find(String hash) {
+        /** Plain iteration, a map lookup would reorder the access order */
+        for (Entry entry : entries.values()) {
+            if (entry.hash.equals(hash)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /** Get the stored images, the most recently used first */
+    public synchronized List<Entry> list() {
+        List<Entry> list = new ArrayList<>(entries.values());
+        Collections.reverse(list);
+        return list;
+    }
+
+    public synchronized boolean remove(String hash) {
+        Entry entry = entries.get(hash);
+        if (entry == null) {
+            return false;
+        }
+        forget(entry);
+        entry.file.delete();
+        saveIndex();
+        return true;
+    }
+
+    /** Never evict the images of the hashes, replaces the hashes pinned before */
+    public synchronized void setPinned(Collection<String> hashes) {
+        pinned = new HashSet<>(hashes);
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Delete the least recently used images until within budget, but not the
+     * one just stored or the pinned ones. ModService keeps reading an image deleted while it has
+     * it open, the file is only unlinked.
+     */
+    private void evict(String keep) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (totalBytes > budgetBytes && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.hash.equals(keep) || pinned.contains(entry.hash)) {
+                continue;
+            }
+            it.remove();
+            totalBytes -= entry.size;
+            names.remove(entry.hash);
+            entry.file.delete();
+        }
+    }
+
+    private void touch(Entry entry) {
+        entry.file.setLastModified(System.currentTimeMillis());
+    }
+
+    private void forget(Entry entry) {
+        entries.remove(entry.hash);
+        totalBytes -= entry.size;
+        names.remove(entry.hash);
+    }
+
+    private void saveIndex() {
+        try {
+            File temp = new File(dir, TEMP_PREFIX + INDEX_FILE);
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                names.store(out, null);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(new File(dir, INDEX_FILE))) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static boolean isHash(String name) {
+        if (name.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.digit(name.charAt(i), 16) < 0 || Character.isUpperCase(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
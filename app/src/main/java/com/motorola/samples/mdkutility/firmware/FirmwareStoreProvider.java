@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.firmware;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import com.motorola.samples.mdkutility.Constants;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Serves the images of the FirmwareStore read only, as
+ * content://AUTHORITY/<sha256>. Not exported, ModService reads an image
+ * through the URI permission granted for the update.
+ */
+public class FirmwareStoreProvider extends ContentProvider {
+    public static final String AUTHORITY = "com.motorola.samples.mdkutility.firmware";
+
+    private static final String STORE_DIR = "firmware";
+    private static final String CATALOG_FILE = "catalog.properties";
+    private static FirmwareStore store;
+    private static FirmwareCatalog catalog;
+
+    /** Get the store of the application, null if it can't be opened */
+    public static synchronized FirmwareStore getStore(Context context) {
+        if (store == null) {
+            try {
+                store = new FirmwareStore(new File(context.getFilesDir(), STORE_DIR),
+                        FirmwareStore.DEFAULT_BUDGET_BYTES);
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Cannot open the firmware store.");
+                e.printStackTrace();
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Get the firmware catalog of the application, null if it can't be opened.
+     * The images it refers to are pinned in the store.
+     */
+    public static synchronized FirmwareCatalog getCatalog(Context context) {
+        FirmwareStore store = getStore(context);
+        if (catalog == null && store != null) {
+            try {
+                catalog = new FirmwareCatalog(new File(new File(context.getFilesDir(), STORE_DIR),
+                        CATALOG_FILE));
+                store.setPinned(catalog.getImages());
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Cannot open the firmware catalog.");
+                e.printStackTrace();
+            }
+        }
+        return catalog;
+    }
+
+    /** Get the content URI of a stored image */
+    public static Uri getUri(FirmwareStore.Entry entry) {
+        return new Uri.Builder().scheme("content").authority(AUTHORITY)
+                .appendPath(entry.hash).build();
+    }
+
+    /** Get the stored image of the URI, null if it is not one */
+    public static FirmwareStore.Entry getEntry(Context context, Uri uri) {
+        FirmwareStore store = getStore(context);
+        if (store == null || !AUTHORITY.equals(uri.getAuthority())
+                || uri.getPathSegments().size() != 1) {
+            return null;
+        }
+        return store.get(uri.getLastPathSegment());
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new SecurityException("Firmware images are read only");
+        }
+        FirmwareStore.Entry entry = getEntry(getContext(), uri);
+        if (entry == null) {
+            throw new FileNotFoundException(uri.toString());
+        }
+        return ParcelFileDescriptor.open(entry.file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection,
+                        String[] selectionArgs, String sortOrder) {
+        FirmwareStore.Entry entry = getEntry(getContext(), uri);
+        if (entry == null) {
+            return null;
+        }
+        if (projection == null) {
+            projection = new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        Object[] row = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            if (OpenableColumns.DISPLAY_NAME.equals(projection[i])) {
+                row[i] = entry.name;
+            } else if (OpenableColumns.SIZE.equals(projection[i])) {
+                row[i] = entry.size;
+            }
+        }
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return "application/octet-stream";
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Firmware images are read only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Firmware images are read only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Firmware images are read only");
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.firmware;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Handle of one firmware update submitted to a FirmwareUpdateQueue. get()
+ * returns the result code once the update is done: RESULT_SUCCESS, one of
+ * the RESULT_ failures, or the result code of the mod firmware update.
+ */
+public final class FirmwareUpdate<D, U> implements Future<Integer> {
+    /** Progress states, in order */
+    public static final int STATE_QUEUED = 0;
+    /** The images are validated, the URIs granted and the update requested */
+    public static final int STATE_REQUESTING = 1;
+    /** ModManager accepted the request */
+    public static final int STATE_REQUESTED = 2;
+    /** The mod started flashing */
+    public static final int STATE_STARTED = 3;
+    public static final int STATE_DONE = 4;
+
+    /** Result codes of the request, same as ModManager.requestUpdateFirmware() */
+    public static final int RESULT_SUCCESS = 0;
+    public static final int RESULT_FAILED = -1;
+    public static final int RESULT_ILLEGAL_EXCEPTION = -2;
+    public static final int RESULT_SECURITY_EXCEPTION = -3;
+    /** No done event from the mod in time */
+    public static final int RESULT_TIMEOUT = -4;
+    public static final int RESULT_CANCELLED = -5;
+    /** A firmware image failed validation, see getInvalidReason() */
+    public static final int RESULT_INVALID_IMAGE = -6;
+
+    final D device;
+    final List<U> uris;
+
+    private volatile int state = STATE_QUEUED;
+    private volatile int result = RESULT_FAILED;
+    private volatile boolean cancelled = false;
+    private volatile String invalidReason;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    FirmwareUpdate(D device, List<U> uris) {
+        this.device = device;
+        this.uris = uris;
+    }
+
+    public D getDevice() {
+        return device;
+    }
+
+    public List<U> getUris() {
+        return uris;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    /** Only meaningful once isDone() */
+    public int getResult() {
+        return result;
+    }
+
+    /** Why an image was rejected, null unless the result is RESULT_INVALID_IMAGE */
+    public String getInvalidReason() {
+        return invalidReason;
+    }
+
+    void setInvalidReason(String reason) {
+        this.invalidReason = reason;
+    }
+
+    void setState(int state) {
+        this.state = state;
+    }
+
+    /** Returns false if already done, call signalDone() after cleaning up */
+    synchronized boolean finish(int result) {
+        if (state == STATE_DONE) {
+            return false;
+        }
+        this.result = result;
+        state = STATE_DONE;
+        return true;
+    }
+
+    /** Release the get() waiters */
+    void signalDone() {
+        done.countDown();
+    }
+
+    /** Cancel an update still queued, one already requested can't be taken back */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (state != STATE_QUEUED) {
+                return false;
+            }
+            cancelled = true;
+            finish(RESULT_CANCELLED);
+        }
+        signalDone();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return state == STATE_DONE;
+    }
+
+    @Override
+    public Integer get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result;
+    }
+
+    @Override
+    public Integer get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result;
+    }
+
+    /** Wait for the update to be done, false on timeout */
+    boolean await(long timeoutMs) throws InterruptedException {
+        return done.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+}
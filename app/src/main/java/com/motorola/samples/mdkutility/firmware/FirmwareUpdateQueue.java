@@ -0,0 +1,233 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.firmware;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs firmware updates one at a time off the caller's thread. The URI
+ * grants and the requestUpdateFirmware() binder call happen on the executor,
+ * and every state change is reported to the ProgressListener. The mod side
+ * of the update is reported back through onUpdateStarted() / onUpdateDone(),
+ * from the firmware update broadcasts. With a Validator, every image is
+ * checked before anything is granted or requested, so a bad image fails in
+ * milliseconds instead of after a flash attempt.
+ *
+ * D is the mod device and U the firmware URI type, so the queue runs
+ * against a fake Backend in tests.
+ */
+public class FirmwareUpdateQueue<D, U> {
+    /** What the queue needs from ModManager and the Context */
+    public interface Backend<D, U> {
+        void grantUriPermission(U uri);
+
+        void revokeUriPermission(U uri);
+
+        /** Same as ModManager.requestUpdateFirmware() */
+        int requestUpdateFirmware(D device, List<U> uris) throws Exception;
+    }
+
+    /** Checks a firmware image before the update is requested, on the executor */
+    public interface Validator<U> {
+        /** Returns null if the image may be flashed, or why not */
+        String validate(U uri);
+    }
+
+    /** Called on the executor or the thread reporting the mod events */
+    public interface ProgressListener<D, U> {
+        void onProgress(FirmwareUpdate<D, U> update);
+    }
+
+    /** ModManager reports the update as queued on its side, not done yet */
+    public static final int SERVICE_RESULT_IN_QUEUE = 11;
+
+    /** How long to wait for the mod to report the update done */
+    public static final long DEFAULT_DONE_TIMEOUT_MS = 10 * 60 * 1000;
+
+    private final Backend<D, U> backend;
+    private final Executor executor;
+    private final ProgressListener<D, U> listener;
+    private final long doneTimeoutMs;
+    private final Validator<U> validator;
+
+    /** The update requested from ModManager and not done yet */
+    private volatile FirmwareUpdate<D, U> current;
+
+    public FirmwareUpdateQueue(Backend<D, U> backend, Executor executor,
+                               ProgressListener<D, U> listener, long doneTimeoutMs) {
+        this(backend, executor, listener, doneTimeoutMs, null);
+    }
+
+    public FirmwareUpdateQueue(Backend<D, U> backend, Executor executor,
+                               ProgressListener<D, U> listener, long doneTimeoutMs,
+                               Validator<U> validator) {
+        this.validator = validator;
+        this.backend = backend;
+        this.executor = executor;
+        this.listener = listener;
+        this.doneTimeoutMs = doneTimeoutMs;
+    }
+
+    /**
+     * Queue an update of the device with the firmware files. The executor must
+     * run one task at a time, an update holds it until the mod is done.
+     */
+    public FirmwareUpdate<D, U> submit(D device, List<U> uris) {
+        final FirmwareUpdate<D, U> update = new FirmwareUpdate<>(device, uris);
+        listener.onProgress(update);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                perform(update);
+            }
+        });
+        return update;
+    }
+
+    /** Get the update being flashed, null if none */
+    public FirmwareUpdate<D, U> getCurrent() {
+        return current;
+    }
+
+    private void perform(FirmwareUpdate<D, U> update) {
+        synchronized (update) {
+            if (!update.isCancelled()) {
+                update.setState(FirmwareUpdate.STATE_REQUESTING);
+            }
+        }
+        listener.onProgress(update);
+        if (update.isCancelled()) {
+            return;
+        }
+
+        /** Reject bad images before touching ModManager */
+        if (validator != null) {
+            for (U uri : update.uris) {
+                String reason = validator.validate(uri);
+                if (reason != null) {
+                    update.setInvalidReason(reason);
+                    if (update.finish(FirmwareUpdate.RESULT_INVALID_IMAGE)) {
+                        listener.onProgress(update);
+                        update.signalDone();
+                    }
+                    return;
+                }
+            }
+        }
+
+        /** Generate the URI permissions for ModService to access */
+        for (U uri : update.uris) {
+            backend.grantUriPermission(uri);
+        }
+
+        int result;
+        try {
+            /** Provide the firmware file uris to ModManager for update */
+            current = update;
+            result = backend.requestUpdateFirmware(update.device, update.uris);
+        } catch (IllegalArgumentException e) {
+            result = FirmwareUpdate.RESULT_ILLEGAL_EXCEPTION;
+            e.printStackTrace();
+        } catch (SecurityException e) {
+            result = FirmwareUpdate.RESULT_SECURITY_EXCEPTION;
+            e.printStackTrace();
+        } catch (Exception e) {
+            result = FirmwareUpdate.RESULT_FAILED;
+            e.printStackTrace();
+        }
+
+        if (result != FirmwareUpdate.RESULT_SUCCESS) {
+            complete(update, result);
+            return;
+        }
+
+        boolean requested = false;
+        synchronized (update) {
+            /** The mod may have reported in during the binder call */
+            if (update.getState() == FirmwareUpdate.STATE_REQUESTING) {
+                update.setState(FirmwareUpdate.STATE_REQUESTED);
+                requested = true;
+            }
+        }
+        if (requested) {
+            listener.onProgress(update);
+        }
+
+        /** Hold the queue until the mod is done, ModManager flashes one at a time */
+        try {
+            if (!update.await(doneTimeoutMs)) {
+                complete(update, FirmwareUpdate.RESULT_TIMEOUT);
+            }
+        } catch (InterruptedException e) {
+            complete(update, FirmwareUpdate.RESULT_FAILED);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** The mod started flashing, from ACTION_MOD_FIRMWARE_UPDATE_START */
+    public void onUpdateStarted() {
+        FirmwareUpdate<D, U> update = current;
+        if (update == null) {
+            return;
+        }
+        synchronized (update) {
+            if (update.isDone()) {
+                return;
+            }
+            update.setState(FirmwareUpdate.STATE_STARTED);
+        }
+        listener.onProgress(update);
+    }
+
+    /** The mod finished flashing, from ACTION_MOD_FIRMWARE_UPDATE_DONE */
+    public void onUpdateDone(int result) {
+        FirmwareUpdate<D, U> update = current;
+        if (update == null || result == SERVICE_RESULT_IN_QUEUE) {
+            return;
+        }
+        complete(update, result);
+    }
+
+    private void complete(FirmwareUpdate<D, U> update, int result) {
+        if (!update.finish(result)) {
+            return;
+        }
+        if (current == update) {
+            current = null;
+        }
+
+        /** Revoke the URI permissions */
+        for (U uri : update.uris) {
+            backend.revokeUriPermission(uri);
+        }
+        listener.onProgress(update);
+        update.signalDone();
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.firmware;
+
+/**
+ * Times the firmware update in progress from its FirmwareUpdateQueue
+ * progress: requested, started and done on the mod, then enumerated again.
+ * Times are from a monotonic clock, passed in by the caller.
+ */
+public class FirmwareUpdateTimer {
+    /** Takes the finished records, on the thread reporting the last event */
+    public interface Sink {
+        void onRecord(FirmwareMetrics.Record record);
+    }
+
+    private final Sink sink;
+
+    /** The update being timed, guarded by this */
+    private FirmwareUpdate<?, ?> update;
+    private long deviceId;
+    private long imageId;
+    private long wallTime;
+    private long requestedAt = -1;
+    private long startedAt = -1;
+    private long doneAt = -1;
+
+    public FirmwareUpdateTimer(Sink sink) {
+        this.sink = sink;
+    }
+
+    /** Progress of an update, from the queue's ProgressListener */
+    public synchronized void onProgress(FirmwareUpdate<?, ?> update, long deviceId,
+                                        long imageId, long now) {
+        switch (update.getState()) {
+            case FirmwareUpdate.STATE_REQUESTING:
+                /** A done update still waiting for its enumeration won't get it now */
+                finish(-1);
+                this.update = update;
+                this.deviceId = deviceId;
+                this.imageId = imageId;
+                this.wallTime = System.currentTimeMillis();
+                requestedAt = now;
+                startedAt = -1;
+                doneAt = -1;
+                break;
+            case FirmwareUpdate.STATE_STARTED:
+                if (update == this.update && startedAt < 0) {
+                    startedAt = now;
+                }
+                break;
+            case FirmwareUpdate.STATE_DONE:
+                if (update != this.update || doneAt >= 0) {
+                    break;
+                }
+                doneAt = now;
+                if (update.getResult() != FirmwareUpdate.RESULT_SUCCESS) {
+                    /** No reboot into new firmware to wait for */
+                    finish(-1);
+                }
+                break;
+        }
+    }
+
+    /** The mods were enumerated, from ACTION_MOD_ENUMERATION_DONE */
+    public synchronized void onEnumerationDone(long now) {
+        if (update != null && doneAt >= 0) {
+            finish(now);
+        }
+    }
+
+    private void finish(long enumeratedAt) {
+        if (update == null) {
+            return;
+        }
+        sink.onRecord(new FirmwareMetrics.Record(wallTime, deviceId, imageId,
+                span(requestedAt, startedAt), span(startedAt, doneAt), span(requestedAt, doneAt),
+                span(doneAt, enumeratedAt), update.isDone() ? update.getResult()
+                : FirmwareUpdate.RESULT_FAILED));
+        update = null;
+    }
+
+    private static int span(long from, long to) {
+        if (from < 0 || to < 0) {
+            return -1;
+        }
+        return (int) Math.min(to - from, Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.firmware;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Checks a firmware image before it is handed to ModManager: size bounds, the
+ * TFTF header, and a SHA-256 of the whole image. The image is streamed once
+ * in chunks through one direct buffer; a bad header rejects it after the
+ * first chunk. Verdicts are cached by image key, size and modification time,
+ * so the same image flashed again is not read again.
+ */
+public class FirmwareValidator {
+    /** Mod firmware images start with the TFTF sentinel and the header size */
+    private static final byte[] TFTF_SENTINEL = {'T', 'F', 'T', 'F'};
+    private static final int TFTF_MIN_HEADER_SIZE = 8;
+
+    public static final long MAX_IMAGE_SIZE = 32 * 1024 * 1024;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int CACHE_SIZE = 64;
+
+    /** The result of validating one image */
+    public static final class Verdict {
+        public final boolean valid;
+
+        /** Why the image was rejected, null if valid */
+        public final String reason;
+
+        /** SHA-256 in lower case hex, null if rejected before hashing */
+        public final String sha256;
+        public final long size;
+
+        Verdict(boolean valid, String reason, String sha256, long size) {
+            this.valid = valid;
+            this.reason = reason;
+            this.sha256 = sha256;
+            this.size = size;
+        }
+
+        static Verdict reject(String reason, long size) {
+            return new Verdict(false, reason, null, size);
+        }
+    }
+
+    private final ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+    /** Least recently used verdicts, guarded by itself */
+    private final Map<String, Verdict> verdicts =
+            new LinkedHashMap<String, Verdict>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Verdict> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    /** Statistics */
+    private long cacheHits = 0;
+    private long imagesRead = 0;
+
+    /** Get the cached verdict of the image, null if not validated as it is now */
+    public Verdict getCached(String key, long size, long mtime) {
+        synchronized (verdicts) {
+            Verdict verdict = verdicts.get(cacheKey(key, size, mtime));
+            if (verdict != null) {
+                cacheHits++;
+            }
+            return verdict;
+        }
+    }
+
+    /**
+     * Validate the image of the key, size and modification time, reading it
+     * from the channel only if no verdict is cached.
+     */
+    public Verdict validate(String key, long size, long mtime, ReadableByteChannel channel)
+            throws IOException {
+        Verdict verdict = getCached(key, size, mtime);
+        if (verdict == null) {
+            verdict = check(channel, size);
+            synchronized (verdicts) {
+                verdicts.put(cacheKey(key, size, mtime), verdict);
+            }
+        }
+        return verdict;
+    }
+
+    /** Stream the image once, checking the header on the first chunk */
+    private synchronized Verdict check(ReadableByteChannel channel, long size) throws IOException {
+        if (size <= 0) {
+            return Verdict.reject("empty image", size);
+        }
+        if (size > MAX_IMAGE_SIZE) {
+            return Verdict.reject("image larger than " + MAX_IMAGE_SIZE + " bytes", size);
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        imagesRead++;
+        long total = 0;
+        boolean first = true;
+        while (true) {
+            chunk.clear();
+            int read = fill(channel);
+            if (read == 0) {
+                break;
+            }
+            chunk.flip();
+            if (first) {
+                String reason = checkHeader(chunk, size);
+                if (reason != null) {
+                    return Verdict.reject(reason, size);
+                }
+                first = false;
+            }
+            total += read;
+            if (total > size) {
+                return Verdict.reject("image grew while reading", size);
+            }
+            digest.update(chunk);
+        }
+
+        if (total != size) {
+            return Verdict.reject("read " + total + " of " + size + " bytes", size);
+        }
+        return new Verdict(true, null, toHex(digest.digest()), size);
+    }
+
+    /** Fill the chunk as far as the channel goes, returns the bytes read */
+    private int fill(ReadableByteChannel channel) throws IOException {
+        int read = 0;
+        while (chunk.hasRemaining()) {
+            int n = channel.read(chunk);
+            if (n < 0) {
+                break;
+            }
+            read += n;
+        }
+        return read;
+    }
+
+    /** Check the TFTF header at the start of the image, null if sane */
+    private static String checkHeader(ByteBuffer header, long size) {
+        if (header.remaining() < TFTF_MIN_HEADER_SIZE) {
+            return "image too short for a TFTF header";
+        }
+        for (int i = 0; i < TFTF_SENTINEL.length; i++) {
+            if (header.get(i) != TFTF_SENTINEL[i]) {
+                return "not a TFTF image";
+            }
+        }
+        long headerSize = header.getInt(TFTF_SENTINEL.length) & 0xFFFFFFFFL;
+        if (headerSize < TFTF_MIN_HEADER_SIZE || headerSize > size) {
+            return "invalid TFTF header size " + headerSize;
+        }
+        return null;
+    }
+
+    private static String cacheKey(String key, long size, long mtime) {
+        return key + '|' + size + '|' + mtime;
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    public long getCacheHitCount() {
+        synchronized (verdicts) {
+            return cacheHits;
+        }
+    }
+
+    /** Number of images streamed, that is validations which missed the cache */
+    public synchronized long getReadCount() {
+        return imagesRead;
+    }
+}
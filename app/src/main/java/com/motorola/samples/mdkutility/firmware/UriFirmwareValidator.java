@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.firmware;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+
+import com.motorola.samples.mdkutility.Constants;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Validates firmware images behind content URIs with a FirmwareValidator,
+ * keyed by the URI and the size and modification time of the opened file.
+ */
+public class UriFirmwareValidator implements FirmwareUpdateQueue.Validator<Uri> {
+    private final ContentResolver resolver;
+    private final FirmwareValidator validator;
+
+    public UriFirmwareValidator(ContentResolver resolver, FirmwareValidator validator) {
+        this.resolver = resolver;
+        this.validator = validator;
+    }
+
+    @Override
+    public String validate(Uri uri) {
+        ParcelFileDescriptor pfd = null;
+        FileInputStream in = null;
+        try {
+            pfd = resolver.openFileDescriptor(uri, "r");
+            if (pfd == null) {
+                return "cannot open " + uri;
+            }
+
+            StructStat stat = Os.fstat(pfd.getFileDescriptor());
+            if (!OsConstants.S_ISREG(stat.st_mode)) {
+                /** Streamed by the provider, leave it to ModManager */
+                Log.w(Constants.TAG, "Firmware not a regular file, not validated: " + uri);
+                return null;
+            }
+
+            in = new FileInputStream(pfd.getFileDescriptor());
+            FileChannel channel = in.getChannel();
+            FirmwareValidator.Verdict verdict = validator.validate(uri.toString(),
+                    stat.st_size, stat.st_mtime, channel);
+            if (!verdict.valid) {
+                Log.e(Constants.TAG, "Firmware rejected: " + uri + " " + verdict.reason);
+                return verdict.reason;
+            }
+            return null;
+        } catch (IOException | ErrnoException | SecurityException e) {
+            e.printStackTrace();
+            return "cannot read " + uri;
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+                if (pfd != null) {
+                    pfd.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+/**
+ * Consistent Overhead Byte Stuffing: the payload is encoded without zero
+ * bytes, and every frame ends with a zero. Costs one byte per 254 bytes.
+ */
+public class CobsCodec implements RawFrameCodec {
+    private static final byte DELIMITER = 0;
+    private static final int MAX_CODE = 0xFF;
+
+    @Override
+    public Decoder newDecoder(int maxFrameSize) {
+        return new DelimitedDecoder(DELIMITER, maxEncodedLength(maxFrameSize) - 1) {
+            @Override
+            int decode(byte[] data, int offset, int length) {
+                int end = offset + length;
+                int read = offset;
+                int write = offset;
+                while (read < end) {
+                    int code = data[read++] & 0xFF;
+                    if (code == 0 || read + code - 1 > end) {
+                        return -1;
+                    }
+
+                    /** The output never passes the input, so copy forward in place */
+                    for (int i = 1; i < code; i++) {
+                        data[write++] = data[read++];
+                    }
+                    if (code < MAX_CODE && read < end) {
+                        data[write++] = 0;
+                    }
+                }
+                return write - offset;
+            }
+        };
+    }
+
+    @Override
+    public int maxEncodedLength(int length) {
+        return length + length / (MAX_CODE - 1) + 2;
+    }
+
+    @Override
+    public int encode(byte[] payload, int offset, int length, byte[] out, int outOffset) {
+        int write = outOffset;
+        int codeAt = write++;
+        int code = 1;
+        for (int i = offset; i < offset + length; i++) {
+            if (payload[i] == 0) {
+                out[codeAt] = (byte) code;
+                codeAt = write++;
+                code = 1;
+            } else {
+                out[write++] = payload[i];
+                if (++code == MAX_CODE) {
+                    out[codeAt] = (byte) code;
+                    codeAt = write++;
+                    code = 1;
+                }
+            }
+        }
+        out[codeAt] = (byte) code;
+        out[write++] = DELIMITER;
+        return write - outOffset;
+    }
+}
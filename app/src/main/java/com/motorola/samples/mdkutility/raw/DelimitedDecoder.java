@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+/**
+ * Decoder for codecs which end each frame with a delimiter byte. A frame which
+ * lies within one chunk is decoded in place; a frame split across chunks is
+ * collected in the partial buffer first.
+ */
+abstract class DelimitedDecoder implements RawFrameCodec.Decoder {
+    private final byte delimiter;
+    private final byte[] partial;
+    private int partialLength = 0;
+    private boolean overflow = false;
+    private long errors = 0;
+
+    DelimitedDecoder(byte delimiter, int maxEncodedLength) {
+        this.delimiter = delimiter;
+        partial = new byte[maxEncodedLength];
+    }
+
+    /**
+     * Decode one encoded frame, without the delimiter, in place.
+     * @return the decoded length, or -1 if malformed
+     */
+    abstract int decode(byte[] data, int offset, int length);
+
+    @Override
+    public void feed(byte[] data, int offset, int length, RawFrameCodec.FrameListener listener) {
+        int end = offset + length;
+        int start = offset;
+        for (int i = offset; i < end; i++) {
+            if (data[i] != delimiter) {
+                continue;
+            }
+
+            if (partialLength > 0 || overflow) {
+                /** End of a frame split across chunks */
+                if (append(data, start, i - start)) {
+                    deliver(partial, 0, partialLength, listener);
+                }
+                partialLength = 0;
+                overflow = false;
+            } else {
+                deliver(data, start, i - start, listener);
+            }
+            start = i + 1;
+        }
+
+        /** Keep the beginning of the next frame */
+        if (start < end) {
+            append(data, start, end - start);
+        }
+    }
+
+    private boolean append(byte[] data, int offset, int length) {
+        if (overflow) {
+            return false;
+        }
+
+        if (partialLength + length > partial.length) {
+            /** Too long, drop it up to the next delimiter */
+            overflow = true;
+            partialLength = 0;
+            errors++;
+            return false;
+        }
+
+        System.arraycopy(data, offset, partial, partialLength, length);
+        partialLength += length;
+        return true;
+    }
+
+    private void deliver(byte[] data, int offset, int length,
+                         RawFrameCodec.FrameListener listener) {
+        if (length == 0) {
+            return;
+        }
+
+        if (length > partial.length) {
+            errors++;
+            return;
+        }
+
+        int decoded = decode(data, offset, length);
+        if (decoded < 0) {
+            errors++;
+        } else if (decoded > 0) {
+            listener.onFrame(data, offset, decoded);
+        }
+    }
+
+    @Override
+    public void reset() {
+        partialLength = 0;
+        overflow = false;
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors;
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+/**
+ * Every frame is preceded by its payload length, 2 bytes big endian.
+ */
+public class LengthPrefixCodec implements RawFrameCodec {
+    private static final int HEADER_SIZE = 2;
+    public static final int MAX_FRAME_SIZE = 0xFFFF;
+
+    private static class LengthDecoder implements Decoder {
+        private static final int STATE_HEADER = 0;
+        private static final int STATE_BODY = 1;
+        private static final int STATE_SKIP = 2;
+
+        private final byte[] frame;
+        private int state = STATE_HEADER;
+        private int headerBytes = 0;
+        private int frameLength = 0;
+        private int have = 0;
+        private long errors = 0;
+
+        LengthDecoder(int maxFrameSize) {
+            frame = new byte[maxFrameSize];
+        }
+
+        @Override
+        public void feed(byte[] data, int offset, int length, FrameListener listener) {
+            int i = offset;
+            int end = offset + length;
+            while (i < end) {
+                if (state == STATE_HEADER) {
+                    frameLength = (frameLength << 8) | (data[i++] & 0xFF);
+                    if (++headerBytes < HEADER_SIZE) {
+                        continue;
+                    }
+
+                    headerBytes = 0;
+                    have = 0;
+                    if (frameLength > frame.length) {
+                        /** Too long, skip over its payload */
+                        errors++;
+                        state = STATE_SKIP;
+                    } else if (frameLength > 0) {
+                        state = STATE_BODY;
+                    } else {
+                        frameLength = 0;
+                    }
+                } else if (state == STATE_BODY) {
+                    int available = end - i;
+                    if (have == 0 && available >= frameLength) {
+                        /** The whole frame is in this chunk, no copy */
+                        listener.onFrame(data, i, frameLength);
+                        i += frameLength;
+                        nextFrame();
+                    } else {
+                        int n = Math.min(available, frameLength - have);
+                        System.arraycopy(data, i, frame, have, n);
+                        have += n;
+                        i += n;
+                        if (have == frameLength) {
+                            listener.onFrame(frame, 0, frameLength);
+                            nextFrame();
+                        }
+                    }
+                } else {
+                    int n = Math.min(end - i, frameLength - have);
+                    have += n;
+                    i += n;
+                    if (have == frameLength) {
+                        nextFrame();
+                    }
+                }
+            }
+        }
+
+        private void nextFrame() {
+            state = STATE_HEADER;
+            frameLength = 0;
+            have = 0;
+        }
+
+        @Override
+        public void reset() {
+            headerBytes = 0;
+            nextFrame();
+        }
+
+        @Override
+        public long getErrorCount() {
+            return errors;
+        }
+    }
+
+    @Override
+    public Decoder newDecoder(int maxFrameSize) {
+        return new LengthDecoder(Math.min(maxFrameSize, MAX_FRAME_SIZE));
+    }
+
+    @Override
+    public int maxEncodedLength(int length) {
+        return length + HEADER_SIZE;
+    }
+
+    @Override
+    public int encode(byte[] payload, int offset, int length, byte[] out, int outOffset) {
+        if (length > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Frame too long: " + length);
+        }
+
+        out[outOffset] = (byte) (length >> 8);
+        out[outOffset + 1] = (byte) length;
+        System.arraycopy(payload, offset, out, outOffset + HEADER_SIZE, length);
+        return length + HEADER_SIZE;
+    }
+}
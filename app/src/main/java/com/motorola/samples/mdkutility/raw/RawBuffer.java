@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A RAW receive buffer leased from a RawBufferPool. A MSG_RAW_DATA listener
+ * finds its data from msg.arg2 for msg.arg1 bytes; without framing that is
+ * the whole read, from index 0 up to length(). Every listener that gets a
+ * MSG_RAW_DATA must call release() once it no longer reads the data, so the
+ * buffer can be reused.
+ */
+public class RawBuffer {
+    /** The received bytes */
+    public final byte[] data;
+
+    /** The pool to return to, null for a one-off buffer */
+    private final RawBufferPool pool;
+
+    /** Valid data length */
+    int length;
+
+    /** Index of the RAW interface the data came from */
+    int channel;
+
+    /** Outstanding holders of this buffer */
+    private final AtomicInteger refs = new AtomicInteger();
+
+    RawBuffer(RawBufferPool pool, int size) {
+        this.pool = pool;
+        this.data = new byte[size];
+    }
+
+    /** Get the valid data length */
+    public int length() {
+        return length;
+    }
+
+    /** Get the index of the RAW interface the data came from */
+    public int getChannel() {
+        return channel;
+    }
+
+    /** Set how many holders must release this buffer before it goes back to the pool */
+    void setHolders(int holders) {
+        refs.set(holders);
+    }
+
+    /** Add holders, each must release */
+    void retain(int holders) {
+        refs.addAndGet(holders);
+    }
+
+    /** Done with the data, the buffer returns to its pool after the last release */
+    public void release() {
+        int left = refs.decrementAndGet();
+        if (left == 0) {
+            if (pool != null) {
+                pool.recycle(this);
+            }
+        } else if (left < 0) {
+            throw new IllegalStateException("RawBuffer released more than once");
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import java.util.ArrayDeque;
+
+/**
+ * A fixed set of RAW receive buffers shared by the read thread and the listeners.
+ * The read thread leases a buffer for every read and listeners release it after
+ * processing, so the steady state receive path does not allocate and a buffer is
+ * never overwritten while a listener still reads it.
+ */
+public class RawBufferPool {
+    /** What lease() does when every buffer is still held by listeners */
+    public enum Policy {
+        /** Allocate a one-off buffer, which is left to GC after release */
+        ALLOCATE,
+        /** Block the read thread, and so every RAW I/O, until a listener releases a buffer */
+        WAIT,
+        /** Return null, the caller drops the incoming data */
+        DROP
+    }
+
+    public static final int DEFAULT_POOL_SIZE = 8;
+
+    private final ArrayDeque<RawBuffer> free;
+    private final int bufferSize;
+    private final Policy policy;
+    private boolean closed = false;
+
+    /** Statistics */
+    private long leased = 0;
+    private long exhausted = 0;
+    private long allocated = 0;
+    private long dropped = 0;
+
+    public RawBufferPool(int poolSize, int bufferSize, Policy policy) {
+        if (poolSize <= 0 || bufferSize <= 0) {
+            throw new IllegalArgumentException("Invalid pool size " + poolSize + "x" + bufferSize);
+        }
+
+        this.bufferSize = bufferSize;
+        this.policy = policy;
+        free = new ArrayDeque<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            free.push(new RawBuffer(this, bufferSize));
+        }
+    }
+
+    /**
+     * Lease a buffer for the next read. Returns null when the pool is closed, or
+     * when the pool is exhausted under Policy.DROP.
+     */
+    public RawBuffer lease() {
+        synchronized (this) {
+            while (!closed) {
+                RawBuffer buffer = free.poll();
+                if (buffer != null) {
+                    leased++;
+                    buffer.length = 0;
+                    buffer.setHolders(1);
+                    return buffer;
+                }
+
+                exhausted++;
+                if (policy == Policy.DROP) {
+                    dropped++;
+                    return null;
+                } else if (policy == Policy.ALLOCATE) {
+                    allocated++;
+                    break;
+                }
+
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            if (closed) {
+                return null;
+            }
+        }
+
+        /** Not owned by the pool, release() just leaves it to GC */
+        RawBuffer buffer = new RawBuffer(null, bufferSize);
+        buffer.setHolders(1);
+        return buffer;
+    }
+
+    /** Put a released buffer back */
+    synchronized void recycle(RawBuffer buffer) {
+        if (!closed) {
+            free.push(buffer);
+            notify();
+        }
+    }
+
+    /** Wake up and fail any waiting lease(), buffers released later are dropped */
+    public synchronized void close() {
+        closed = true;
+        free.clear();
+        notifyAll();
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public synchronized int getFreeCount() {
+        return free.size();
+    }
+
+    public synchronized long getLeaseCount() {
+        return leased;
+    }
+
+    public synchronized long getExhaustedCount() {
+        return exhausted;
+    }
+
+    public synchronized long getAllocatedCount() {
+        return allocated;
+    }
+
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+}
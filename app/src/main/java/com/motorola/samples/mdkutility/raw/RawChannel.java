@@ -0,0 +1,77 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import android.os.ParcelFileDescriptor;
+
+import com.motorola.mod.ModInterfaceDelegation;
+
+import java.io.IOException;
+
+/**
+ * One opened RAW interface of the attached mod device.
+ */
+class RawChannel {
+    /** Index in the RAW interface list of the mod device */
+    final int index;
+    final ModInterfaceDelegation delegation;
+    final ParcelFileDescriptor parcelFD;
+    final RawTransport transport;
+
+    /** Pending commands for this interface */
+    final RawWriteQueue writeQueue;
+
+    /** Framing state of this interface, null if not framed */
+    volatile RawFrameCodec.Decoder frameDecoder;
+
+    /** Registration with RawReactor, null until polled */
+    volatile RawReactor.Key key;
+
+    /** Set once the interface hangs up or is closed */
+    volatile boolean closed = false;
+
+    RawChannel(int index, ModInterfaceDelegation delegation, ParcelFileDescriptor parcelFD,
+               RawTransport transport, RawWriteQueue writeQueue) {
+        this.index = index;
+        this.delegation = delegation;
+        this.parcelFD = parcelFD;
+        this.transport = transport;
+        this.writeQueue = writeQueue;
+    }
+
+    void close() {
+        closed = true;
+        writeQueue.clear();
+        try {
+            parcelFD.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * RawTransport over NIO channels. Reads go through a direct buffer allocated
+ * once, and a batch of frames is copied once into direct buffers, one per
+ * frame, then written with a single writev(). The stream transport copies
+ * the batch twice: into the coalescing array, then into native memory.
+ */
+public class RawChannelTransport implements RawTransport, RawTransport.Gathering {
+    /** Frames in one gathering write, well below IOV_MAX */
+    public static final int MAX_FRAMES = 64;
+
+    /** Smallest frame buffer, so small commands don't keep reallocating */
+    private static final int MIN_FRAME_CAPACITY = 256;
+
+    private final ReadableByteChannel in;
+    private final GatheringByteChannel out;
+    private final ByteBuffer readBuffer;
+
+    /** One direct buffer per frame of a batch, grown to the largest frame and kept */
+    private final ByteBuffer[] frames = new ByteBuffer[MAX_FRAMES];
+
+    public RawChannelTransport(ReadableByteChannel in, GatheringByteChannel out,
+                               int readBufferSize) {
+        this.in = in;
+        this.out = out;
+        readBuffer = ByteBuffer.allocateDirect(readBufferSize);
+    }
+
+    /** Open over the RAW channel, the caller keeps owning the file descriptor */
+    public static RawChannelTransport open(FileDescriptor fd, int readBufferSize) {
+        return new RawChannelTransport(new FileInputStream(fd).getChannel(),
+                new FileOutputStream(fd).getChannel(), readBufferSize);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        readBuffer.clear();
+        readBuffer.limit(Math.min(length, readBuffer.capacity()));
+        int n = in.read(readBuffer);
+        if (n > 0) {
+            readBuffer.flip();
+            readBuffer.get(buffer, offset, n);
+        }
+        return n;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        frame(0, length).put(data, offset, length);
+        writeFrames(1);
+    }
+
+    @Override
+    public int getMaxFrames() {
+        return MAX_FRAMES;
+    }
+
+    @Override
+    public ByteBuffer frame(int index, int size) {
+        ByteBuffer frame = frames[index];
+        if (frame == null || frame.capacity() < size) {
+            frame = ByteBuffer.allocateDirect(Math.max(size, MIN_FRAME_CAPACITY));
+            frames[index] = frame;
+        }
+        frame.clear();
+        return frame;
+    }
+
+    @Override
+    public void writeFrames(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            frames[i].flip();
+        }
+        /** A short write leaves the rest of the frames for the next writev() */
+        int first = 0;
+        while (first < count) {
+            out.write(frames, first, count - first);
+            while (first < count && !frames[first].hasRemaining()) {
+                first++;
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The last-known RAW command of each slot of a mod, e.g. the LED command
+ * under "led". Recording a slot again replaces its command but keeps its
+ * place, so replaying the set brings the mod to the last state in the
+ * order the slots were first set.
+ */
+public final class RawCommandSet {
+    private static final int VERSION = 1;
+
+    private final LinkedHashMap<String, byte[]> commands = new LinkedHashMap<>();
+
+    public RawCommandSet() {
+    }
+
+    /** Record the command of the slot, null to forget the slot */
+    public void record(String slot, byte[] cmd) {
+        if (cmd == null) {
+            commands.remove(slot);
+        } else {
+            commands.put(slot, cmd.clone());
+        }
+    }
+
+    public byte[] get(String slot) {
+        byte[] cmd = commands.get(slot);
+        return cmd == null ? null : cmd.clone();
+    }
+
+    public boolean contains(String slot) {
+        return commands.containsKey(slot);
+    }
+
+    public int size() {
+        return commands.size();
+    }
+
+    public boolean isEmpty() {
+        return commands.isEmpty();
+    }
+
+    /** The commands to replay, in slot order */
+    public List<byte[]> commands() {
+        List<byte[]> list = new ArrayList<>(commands.size());
+        for (byte[] cmd : commands.values()) {
+            list.add(cmd.clone());
+        }
+        return list;
+    }
+
+    /** The set as one mod state value: a version, then the slot and command of each */
+    public byte[] encode() {
+        List<byte[]> slots = new ArrayList<>(commands.size());
+        int size = 1;
+        for (Map.Entry<String, byte[]> entry : commands.entrySet()) {
+            byte[] slot = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            slots.add(slot);
+            size += 2 + slot.length + 2 + entry.getValue().length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put((byte) VERSION);
+        int i = 0;
+        for (byte[] cmd : commands.values()) {
+            byte[] slot = slots.get(i++);
+            buffer.putShort((short) slot.length).put(slot);
+            buffer.putShort((short) cmd.length).put(cmd);
+        }
+        return buffer.array();
+    }
+
+    /** Read an encode()d set, empty for null or a value it can't read */
+    public static RawCommandSet decode(byte[] encoded) {
+        RawCommandSet set = new RawCommandSet();
+        if (encoded == null || encoded.length == 0 || encoded[0] != VERSION) {
+            return set;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(encoded, 1, encoded.length - 1);
+        try {
+            while (buffer.hasRemaining()) {
+                byte[] slot = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(slot);
+                byte[] cmd = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(cmd);
+                set.commands.put(new String(slot, StandardCharsets.UTF_8), cmd);
+            }
+        } catch (BufferUnderflowException e) {
+            /** Keep the slots read before the damage */
+            e.printStackTrace();
+        }
+        return set;
+    }
+}
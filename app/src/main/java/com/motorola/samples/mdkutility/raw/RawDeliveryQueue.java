@@ -0,0 +1,301 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import android.os.Handler;
+import android.os.Message;
+
+import com.motorola.samples.mdkutility.Personality;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * A bounded queue of MSG_RAW_DATA between the reactor thread and one listener
+ * Handler. At most one drain is posted to the listener's looper at a time, so
+ * a slow listener holds at most capacity buffers and its looper queue does not
+ * grow with the mod output. A weak listener's Handler is held weakly, and the
+ * queue closes once it is collected.
+ */
+public class RawDeliveryQueue {
+    /** What offer() does when the listener has capacity buffers pending */
+    public enum Policy {
+        /**
+         * Block the reactor thread, and so every RAW I/O, until the listener catches up.
+         * A listener which waits on the RAW I/O itself, e.g. RawReliableStream.write()
+         * or RawRpc.Call.get(), deadlocks with it.
+         */
+        BLOCK,
+        /** Drop the oldest pending data to make room */
+        DROP_OLDEST,
+        /** Drop the incoming data */
+        DROP_NEWEST,
+        /** Keep only the most recent data, the capacity is one */
+        LATEST
+    }
+
+    public static final int DEFAULT_CAPACITY = 32;
+
+    /** Where the data goes, the listener Handler's looper */
+    interface Target {
+        /** Run the drain on the listener's thread, false if the listener is gone */
+        boolean post(Runnable drain);
+
+        /** Hand one data to the listener, false if the listener is gone */
+        boolean deliver(RawBuffer buffer, int offset, int length);
+
+        /** The listener, null once a weak listener was collected */
+        Handler getHandler();
+    }
+
+    /** Deliver MSG_RAW_DATA to a Handler, see Personality.HandlerListener */
+    private static class HandlerTarget implements Target {
+        /** A weak listener must not hold its Handler */
+        private final Handler handler;
+        private final WeakReference<Handler> weakHandler;
+
+        HandlerTarget(Handler handler, boolean weak) {
+            this.handler = weak ? null : handler;
+            this.weakHandler = weak ? new WeakReference<>(handler) : null;
+        }
+
+        @Override
+        public boolean post(Runnable drain) {
+            Handler target = getHandler();
+            return target != null && target.post(drain);
+        }
+
+        @Override
+        public boolean deliver(RawBuffer buffer, int offset, int length) {
+            Handler target = getHandler();
+            if (target == null) {
+                return false;
+            }
+            Message msg = Message.obtain(target, Personality.MSG_RAW_DATA, length, offset, buffer);
+            target.dispatchMessage(msg);
+            msg.recycle();
+            return true;
+        }
+
+        @Override
+        public Handler getHandler() {
+            return handler != null ? handler : weakHandler.get();
+        }
+    }
+
+    private final Target target;
+    private final Policy policy;
+
+    /** Ring of pending data */
+    private final RawBuffer[] buffers;
+    private final int[] offsets;
+    private final int[] lengths;
+    private int head = 0;
+    private int depth = 0;
+
+    private boolean drainPosted = false;
+    private boolean closed = false;
+
+    /** Statistics */
+    private long delivered = 0;
+    private long dropped = 0;
+    private int maxDepth = 0;
+
+    public RawDeliveryQueue(Handler listener, int capacity, Policy policy) {
+        this(listener, capacity, policy, false);
+    }
+
+    /** Constructor, a weak queue doesn't keep the listener from being collected */
+    public RawDeliveryQueue(Handler listener, int capacity, Policy policy, boolean weak) {
+        this(new HandlerTarget(listener, weak), capacity, policy);
+    }
+
+    RawDeliveryQueue(Target target, int capacity, Policy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid delivery queue capacity " + capacity);
+        }
+
+        this.target = target;
+        this.policy = policy;
+        if (policy == Policy.LATEST) {
+            capacity = 1;
+        }
+        buffers = new RawBuffer[capacity];
+        offsets = new int[capacity];
+        lengths = new int[capacity];
+    }
+
+    /** Get the listener, null once a weak listener was collected */
+    public Handler getListener() {
+        return target.getHandler();
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Queue the data for the listener. The caller has retained the buffer for
+     * this listener; the queue releases it if the data is dropped.
+     */
+    void offer(RawBuffer buffer, int offset, int length) {
+        RawBuffer drop = null;
+        boolean post = false;
+        synchronized (this) {
+            if (depth == buffers.length && !closed) {
+                switch (policy) {
+                    case BLOCK:
+                        while (depth == buffers.length && !closed) {
+                            try {
+                                wait();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                break;
+                            }
+                        }
+                        break;
+                    case DROP_NEWEST:
+                        dropped++;
+                        drop = buffer;
+                        break;
+                    case DROP_OLDEST:
+                    case LATEST:
+                        dropped++;
+                        drop = buffers[head];
+                        buffers[head] = null;
+                        head = (head + 1) % buffers.length;
+                        depth--;
+                        break;
+                }
+            }
+
+            if (closed || depth == buffers.length) {
+                /** Closed, or the blocked reader was interrupted */
+                drop = buffer;
+            } else if (drop != buffer) {
+                int tail = (head + depth) % buffers.length;
+                buffers[tail] = buffer;
+                offsets[tail] = offset;
+                lengths[tail] = length;
+                depth++;
+                if (depth > maxDepth) {
+                    maxDepth = depth;
+                }
+                if (!drainPosted) {
+                    drainPosted = true;
+                    post = true;
+                }
+            }
+        }
+
+        if (drop != null) {
+            drop.release();
+        }
+        if (post && !target.post(drain)) {
+            /** The listener's looper has quit, or the weak listener is gone */
+            close();
+        }
+    }
+
+    /**
+     * Deliver the pending data on the listener's looper, one message at a time.
+     * At most capacity messages per run, so other work on the looper gets a turn.
+     */
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            for (int i = 0; i < buffers.length; i++) {
+                RawBuffer buffer;
+                int offset;
+                int length;
+                synchronized (RawDeliveryQueue.this) {
+                    if (depth == 0) {
+                        drainPosted = false;
+                        return;
+                    }
+                    buffer = buffers[head];
+                    offset = offsets[head];
+                    length = lengths[head];
+                    buffers[head] = null;
+                    head = (head + 1) % buffers.length;
+                    depth--;
+                    delivered++;
+                    RawDeliveryQueue.this.notifyAll();
+                }
+
+                if (!target.deliver(buffer, offset, length)) {
+                    /** The weak listener is gone, nobody releases the data but us */
+                    buffer.release();
+                    close();
+                    return;
+                }
+            }
+
+            /** Still busy, come back after the other work on the looper */
+            if (!target.post(this)) {
+                close();
+            }
+        }
+    };
+
+    /** Release all the pending data and drop any later offer */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            while (depth > 0) {
+                buffers[head].release();
+                buffers[head] = null;
+                head = (head + 1) % buffers.length;
+                depth--;
+            }
+            notifyAll();
+        }
+    }
+
+    /** Closed, or its listener is gone; it drops every offer */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /** Number of data pending for the listener */
+    public synchronized int getDepth() {
+        return depth;
+    }
+
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public synchronized long getDeliveredCount() {
+        return delivered;
+    }
+
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+}
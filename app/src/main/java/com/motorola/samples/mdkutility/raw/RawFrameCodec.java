@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+/**
+ * A framing scheme for messages over the RAW channel. The RAW channel is a
+ * byte stream, so a mod message may be split across reads or several messages
+ * may come in one read; the decoder restores the message boundaries.
+ */
+public interface RawFrameCodec {
+    /** Receives the decoded frames */
+    interface FrameListener {
+        /**
+         * Got a complete frame. The data is only valid during this call, and
+         * may point into the array given to Decoder.feed().
+         */
+        void onFrame(byte[] data, int offset, int length);
+    }
+
+    /** Streaming decoder, one for each RAW channel */
+    interface Decoder {
+        /**
+         * Parse the next chunk of the stream. Frames which are complete within
+         * the chunk are decoded in place, so the chunk content may be changed;
+         * only frames split across chunks are copied. Empty frames are skipped.
+         */
+        void feed(byte[] data, int offset, int length, FrameListener listener);
+
+        /** Drop any partial frame */
+        void reset();
+
+        /** Number of malformed or oversized frames dropped */
+        long getErrorCount();
+    }
+
+    /** Create a decoder for frames of up to maxFrameSize decoded bytes */
+    Decoder newDecoder(int maxFrameSize);
+
+    /** The largest encoded size of a frame with length bytes of payload */
+    int maxEncodedLength(int length);
+
+    /**
+     * Encode one frame into out, which must have maxEncodedLength(length) bytes
+     * from outOffset.
+     * @return the encoded length
+     */
+    int encode(byte[] payload, int offset, int length, byte[] out, int outOffset);
+}
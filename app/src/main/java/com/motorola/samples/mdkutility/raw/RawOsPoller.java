@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import com.motorola.samples.mdkutility.Constants;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * RawReactor.Poller over Os.poll(), with a pipe to wake it up. The
+ * StructPollfd array is only rebuilt when the reactor passes new fds.
+ */
+final class RawOsPoller implements RawReactor.Poller {
+    /** Pipe to wake up the poll when registrations or write requests change */
+    private final FileDescriptor[] wakePipe;
+    private final AtomicBoolean wakePending = new AtomicBoolean(false);
+    private final byte[] wakeSignal = {(byte) 0xFF};
+    private final byte[] wakeBuffer = new byte[1];
+
+    /** pollfds[0] watches the wake pipe, pollfds[i + 1] polledFds[i] */
+    private FileDescriptor[] polledFds;
+    private StructPollfd[] pollfds;
+
+    RawOsPoller() throws ErrnoException {
+        wakePipe = Os.pipe();
+
+        StructPollfd wakeFd = new StructPollfd();
+        wakeFd.fd = wakePipe[0];
+        wakeFd.events = (short) OsConstants.POLLIN;
+        pollfds = new StructPollfd[]{wakeFd};
+        polledFds = new FileDescriptor[0];
+    }
+
+    @Override
+    public void poll(FileDescriptor[] fds, int[] events, int[] revents, int timeoutMs) {
+        if (fds != polledFds) {
+            StructPollfd[] next = new StructPollfd[fds.length + 1];
+            next[0] = pollfds[0];
+            for (int i = 0; i < fds.length; i++) {
+                next[i + 1] = new StructPollfd();
+                next[i + 1].fd = fds[i];
+            }
+            pollfds = next;
+            polledFds = fds;
+        }
+
+        for (int i = 0; i < fds.length; i++) {
+            short mask = 0;
+            if ((events[i] & READABLE) != 0) {
+                mask |= OsConstants.POLLIN;
+            }
+            if ((events[i] & WRITABLE) != 0) {
+                mask |= OsConstants.POLLOUT;
+            }
+            pollfds[i + 1].events = mask;
+            pollfds[i + 1].revents = 0;
+        }
+        pollfds[0].revents = 0;
+
+        try {
+            Os.poll(pollfds, timeoutMs);
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.EINTR) {
+                Log.e(Constants.TAG, "ErrnoException in RawReactor poll: " + e);
+            }
+            return;
+        }
+
+        if ((pollfds[0].revents & OsConstants.POLLIN) != 0) {
+            /** Let the next wakeup() write again before draining its signal */
+            wakePending.set(false);
+            try {
+                Os.read(wakePipe[0], wakeBuffer, 0, 1);
+            } catch (ErrnoException e) {
+                e.printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        for (int i = 0; i < fds.length; i++) {
+            short ready = pollfds[i + 1].revents;
+            int result = 0;
+            if ((ready & OsConstants.POLLIN) != 0) {
+                result |= READABLE;
+            }
+            if ((ready & OsConstants.POLLOUT) != 0) {
+                result |= WRITABLE;
+            }
+            if ((ready & OsConstants.POLLHUP) != 0) {
+                result |= HANGUP;
+            }
+            if ((ready & (OsConstants.POLLERR | OsConstants.POLLNVAL)) != 0) {
+                result |= ERROR;
+            }
+            revents[i] = result;
+        }
+    }
+
+    /** At most one signal is pending at a time */
+    @Override
+    public void wakeup() {
+        if (wakePending.compareAndSet(false, true)) {
+            try {
+                Os.write(wakePipe[1], wakeSignal, 0, wakeSignal.length);
+            } catch (ErrnoException e) {
+                e.printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -31,124 +31,207 @@ package com.motorola.samples.mdkutility.raw;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
-import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.system.ErrnoException;
-import android.system.Os;
-import android.system.OsConstants;
-import android.system.StructPollfd;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.motorola.mod.ModDevice;
 import com.motorola.mod.ModInterfaceDelegation;
 import com.motorola.mod.ModManager;
 import com.motorola.mod.ModProtocol;
 import com.motorola.samples.mdkutility.Constants;
+import com.motorola.samples.mdkutility.ModDeviceMatcher;
+import com.motorola.samples.mdkutility.ModSnapshot;
 import com.motorola.samples.mdkutility.Personality;
 
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 /**
- * A class to represent the Moto Mod RAW protocol interface.
+ * A class to represent the Moto Mod RAW protocol interface. Every RAW
+ * interface of the attached mod device is opened, and read / written by the
+ * process-wide RawReactor thread.
  */
 public class RawPersonality extends Personality {
-    private static final int SEND_RAW_CMD = 1;
-    private Handler handler;
+    /** How pending commands are batched, and how long a batch may wait to fill */
+    private int maxBatchBytes = 0;
+    private int batchDelayMs = 0;
+    private RawWriteQueue.BatchListener batchListener;
 
-    /**
-     * Result indicator for Os.poll()
-     */
-    private static final int POLL_TYPE_READ_DATA = 1;
-    private static final int POLL_TYPE_EXIT = 2;
+    /** The opened RAW interfaces, indexed as ModManager lists them */
+    private volatile RawChannel[] channels = new RawChannel[0];
 
-    /** Output stream end indicator */
-    private static final int EXIT_BYTE = 0xFF;
+    /** Reads the RAW interfaces when the reactor finds them readable */
+    private RawReceiver receiver;
 
-    /** File descriptor for RAW I/O */
-    private ParcelFileDescriptor parcelFD;
+    /** The expected mod devices, RAW I/O is not opened for others */
+    private final ModDeviceMatcher matcher;
 
-    /**
-     * File descriptor pipes for RAW I/O. For further details,
-     * refer to http://man7.org/linux/man-pages/man2/pipe.2.html
-     */
-    private FileDescriptor[] syncPipes;
+    /** The mod device whose RAW interfaces are open */
+    private ModDevice openedDevice;
+
+    /** How the RAW I/O is read and written */
+    private final RawTransport.Type transportType;
+
+    /** Receive buffers, created for each opened RAW I/O */
+    private final int poolSize;
+    private final RawBufferPool.Policy poolPolicy;
+    private RawBufferPool bufferPool;
+
+    /** Optional framing, each RAW interface keeps its own decoder */
+    private RawFrameCodec frameCodec;
+
+    /** The buffer being decoded on the read thread */
+    private RawBuffer decodingBuffer;
+
+    /** Bounded data queues to the listeners of all the RAW interfaces */
+    private volatile RawDeliveryQueue[] dataQueues = new RawDeliveryQueue[0];
 
-    /** Work thread for read / write data via RAW I/O */
-    private Thread receiveThread = null;
-    private HandlerThread sendingThread = null;
-    private FileOutputStream outputStream;
+    /** Bounded data queues to the listeners of one RAW interface, guarded by itself */
+    private final SparseArray<RawDeliveryQueue[]> channelQueues = new SparseArray<>();
 
-    /** The expected mod device PID / VID */
-    private int targetPID = Constants.INVALID_ID;
-    private int targetVID = Constants.INVALID_ID;
+    /** RPC endpoint of each RAW interface, guarded by itself */
+    private final SparseArray<RawRpc> rpcs = new SparseArray<>();
+
+    /** Reliable stream of each RAW interface, guarded by rpcs */
+    private final SparseArray<RawReliableStream> streams = new SparseArray<>();
+
+    /** Runs the RPC and reliable stream timeouts, created with the first of them */
+    private ScheduledExecutorService timer;
+
+    /** Queue for the listeners registered without their own */
+    private int deliveryCapacity = RawDeliveryQueue.DEFAULT_CAPACITY;
+    private RawDeliveryQueue.Policy deliveryPolicy = RawDeliveryQueue.Policy.DROP_OLDEST;
 
     /** Constructor */
     public RawPersonality(Context context, int vid, int pid) {
+        this(context, vid, pid, RawBufferPool.DEFAULT_POOL_SIZE, RawBufferPool.Policy.ALLOCATE);
+    }
+
+    /** Constructor for the mod devices the matcher matches */
+    public RawPersonality(Context context, ModDeviceMatcher matcher) {
+        this(context, matcher, RawBufferPool.DEFAULT_POOL_SIZE, RawBufferPool.Policy.ALLOCATE);
+    }
+
+    /**
+     * Constructor with the receive buffer pool size, and the behavior when all
+     * the receive buffers are still held by listeners.
+     */
+    public RawPersonality(Context context, int vid, int pid,
+                          int poolSize, RawBufferPool.Policy poolPolicy) {
+        this(context, ModDeviceMatcher.forProduct(vid, pid), poolSize, poolPolicy);
+    }
+
+    /** Constructor for the mod devices the matcher matches, see the constructor above */
+    public RawPersonality(Context context, ModDeviceMatcher matcher,
+                          int poolSize, RawBufferPool.Policy poolPolicy) {
+        this(context, matcher, poolSize, poolPolicy, RawTransport.Type.STREAM);
+    }
+
+    /**
+     * Constructor with the transport too. CHANNEL writes every batch with one
+     * gathering write from direct buffers, without coalescing it first.
+     */
+    public RawPersonality(Context context, ModDeviceMatcher matcher,
+                          int poolSize, RawBufferPool.Policy poolPolicy,
+                          RawTransport.Type transportType) {
         super(context);
-        targetPID = pid;
-        targetVID = vid;
+        this.matcher = matcher;
+        /** Prefer the expected mod device when several are attached */
+        selectDevice(matcher);
+        this.poolSize = poolSize;
+        this.poolPolicy = poolPolicy;
+        this.transportType = transportType;
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
 
+        /** Return the data still pending to the pool */
+        synchronized (channelQueues) {
+            for (RawDeliveryQueue queue : dataQueues) {
+                queue.close();
+            }
+            dataQueues = new RawDeliveryQueue[0];
+            for (int i = 0; i < channelQueues.size(); i++) {
+                for (RawDeliveryQueue queue : channelQueues.valueAt(i)) {
+                    queue.close();
+                }
+            }
+            channelQueues.clear();
+        }
+
         /** Don't forget close the I/O and work threads */
         closeRawDeviceifAvailable();
+
+        /** Fail the RPC calls outside the lock, their callbacks may call back in */
+        List<RawRpc> closing = new ArrayList<>();
+        synchronized (rpcs) {
+            for (int i = 0; i < rpcs.size(); i++) {
+                closing.add(rpcs.valueAt(i));
+            }
+            rpcs.clear();
+        }
+        for (RawRpc rpc : closing) {
+            rpc.close();
+        }
+        synchronized (rpcs) {
+            if (timer != null) {
+                timer.shutdownNow();
+                timer = null;
+            }
+        }
     }
 
-    /** Close RAW I/O and work threads */
+    /** Close RAW I/O */
     private void closeRawDeviceifAvailable() {
-        /** Exit write thread */
-        if (null != sendingThread) {
-            sendingThread.quitSafely();
+        /** Wake up the reactor if it waits for a free buffer */
+        if (null != bufferPool) {
+            bufferPool.close();
+            bufferPool = null;
         }
 
-        /** Exit read thread */
-        if (null != receiveThread) {
-            signalReadThreadToExit();
+        /** Stop polling, the reactor closes each file descriptor once it let go of it */
+        RawChannel[] opened = channels;
+        channels = new RawChannel[0];
+        for (RawChannel channel : opened) {
+            channel.closed = true;
+            if (channel.key != null) {
+                channel.key.cancel();
+            } else {
+                channel.close();
+            }
         }
 
-        /** Close the file descriptor pipes */
-        if (null != syncPipes) {
-            synchronized (syncPipes) {
-                try {
-                    Os.close(syncPipes[0]);
-                    Os.close(syncPipes[1]);
-                } catch (ErrnoException e) {
-                    e.printStackTrace();
-                }
-                syncPipes = null;
+        receiver = null;
+        openedDevice = null;
+
+        /** No reply will come over the closed RAW I/O */
+        List<RawRpc> open = new ArrayList<>();
+        List<RawReliableStream> broken = new ArrayList<>();
+        synchronized (rpcs) {
+            for (int i = 0; i < rpcs.size(); i++) {
+                open.add(rpcs.valueAt(i));
+            }
+            for (int i = 0; i < streams.size(); i++) {
+                broken.add(streams.valueAt(i));
             }
+            streams.clear();
         }
-
-        /** Close the file descriptor */
-        if (parcelFD != null) try {
-            parcelFD.close();
-            parcelFD = null;
-        } catch (IOException e) {
-            e.printStackTrace();
+        for (RawRpc rpc : open) {
+            rpc.failPending(new IOException("RAW I/O closed"));
         }
-
-        sendingThread = null;
-        receiveThread = null;
-    }
-
-    /** Write exit signal */
-    private void signalReadThreadToExit() {
-        FileOutputStream out = new FileOutputStream(syncPipes[1]);
-        try {
-            out.write(EXIT_BYTE);
-            out.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        /** The mod starts its stream over after reattach, so must we */
+        for (RawReliableStream stream : broken) {
+            stream.close();
         }
     }
 
@@ -158,28 +241,360 @@ public class RawPersonality extends Personality {
         super.onModDevice(d);
 
         if (modDevice != null) {
+            if (openedDevice != null
+                    && !ModSnapshot.keyOf(openedDevice).equals(ModSnapshot.keyOf(modDevice))) {
+                /** Another mod device is selected, move the RAW I/O over */
+                closeRawDeviceifAvailable();
+            }
             openRawDeviceifAvailable();
         } else {
             closeRawDeviceifAvailable();
         }
     }
 
-    /**  Put the RAW command into event queue to execute */
+    /**  Put the RAW command into write queue of the first RAW interface to execute */
     public boolean executeRaw(byte[] cmd) {
-        if (null != handler) {
-            Message msg = Message.obtain(handler, SEND_RAW_CMD);
-            msg.obj = cmd;
-            handler.sendMessage(msg);
+        return executeRaw(0, cmd);
+    }
 
-            return true;
-        } else {
+    /**  Put the RAW command into write queue of the RAW interface to execute */
+    public boolean executeRaw(int channel, byte[] cmd) {
+        RawChannel[] opened = channels;
+        if (channel < 0 || channel >= opened.length || opened[channel].closed
+                || opened[channel].key == null) {
+            return false;
+        }
+
+        RawChannel target = opened[channel];
+        RawWriteQueue queue = target.writeQueue;
+        if (queue.offer(cmd)) {
+            /** First pending command, let the batch fill up within the delay */
+            target.key.requestWrite(batchDelayMs);
+        } else if (batchDelayMs > 0 && queue.isBatchFull()) {
+            /** The batch is full, don't wait for the delay */
+            target.key.requestWrite(0);
+        }
+
+        return true;
+    }
+
+    /**
+     * Put the RAW commands into the write queue of the RAW interface as one
+     * pipelined batch: all are queued before the sending thread is woken, with
+     * no batch delay and no wait for replies in between.
+     * @param onWritten run on the sending thread once all commands are written,
+     *                  may be null
+     */
+    public boolean executeRawBatch(int channel, List<byte[]> cmds, Runnable onWritten) {
+        return executeRawBatch(channel, cmds, onWritten, null);
+    }
+
+    /**
+     * Pipelined batch as above.
+     * @param onFailed run instead of onWritten if the RAW interface fails or
+     *                 closes before all commands are written, may be null
+     */
+    public boolean executeRawBatch(int channel, List<byte[]> cmds, Runnable onWritten,
+                                   Runnable onFailed) {
+        RawChannel[] opened = channels;
+        if (channel < 0 || channel >= opened.length || opened[channel].closed
+                || opened[channel].key == null) {
             return false;
         }
+
+        RawChannel target = opened[channel];
+        RawWriteQueue queue = target.writeQueue;
+        for (byte[] cmd : cmds) {
+            queue.offer(cmd);
+        }
+        if (onWritten != null || onFailed != null) {
+            queue.mark(onWritten, onFailed);
+        }
+        if (!cmds.isEmpty()) {
+            target.key.requestWrite(0);
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the RPC endpoint of the RAW interface, created on first use with up
+     * to maxInFlight requests sent ahead of their replies. Its reply frames
+     * are matched on the read thread and not given to the listeners. Needs a
+     * frame codec, see setFrameCodec(), and stays open across mod reattach.
+     */
+    public RawRpc openRpc(final int channel, int maxInFlight) {
+        if (frameCodec == null) {
+            throw new IllegalStateException("RAW RPC needs a frame codec");
+        }
+
+        synchronized (rpcs) {
+            RawRpc rpc = rpcs.get(channel);
+            if (rpc == null) {
+                rpc = new RawRpc(new RawRpc.Sender() {
+                    @Override
+                    public boolean send(byte[] frame) {
+                        return executeRaw(channel, frame);
+                    }
+                }, getTimer(), maxInFlight);
+                rpcs.put(channel, rpc);
+            }
+            return rpc;
+        }
+    }
+
+    /**
+     * Open a reliable stream over the opened RAW interface: segments written
+     * to it reach the listener of the mod in order despite lost frames, see
+     * RawReliableStream. Its frames are handled on the read thread and not
+     * given to the listeners. Needs a frame codec, and is closed with the RAW
+     * I/O as the mod starts its stream over.
+     * @param window segments in flight, up to RawReliableStream.MAX_WINDOW
+     */
+    public RawReliableStream openReliableStream(final int channel,
+                                                RawReliableStream.Listener listener,
+                                                int window) {
+        if (frameCodec == null) {
+            throw new IllegalStateException("RAW reliable stream needs a frame codec");
+        }
+        RawChannel[] opened = channels;
+        if (channel < 0 || channel >= opened.length || opened[channel].closed) {
+            throw new IllegalStateException("RAW interface " + channel + " is not open");
+        }
+
+        RawReliableStream stream = new RawReliableStream(new RawReliableStream.Sender() {
+            @Override
+            public boolean send(byte[] frame) {
+                return executeRaw(channel, frame);
+            }
+        }, listener, getTimer(), window, Math.min(RawReliableStream.DEFAULT_SEGMENT_SIZE,
+                MAX_BYTES - RawReliableStream.DATA_HEADER_SIZE), 2 * window);
+        RawReliableStream previous;
+        synchronized (rpcs) {
+            previous = streams.get(channel);
+            streams.put(channel, stream);
+        }
+        if (previous != null) {
+            previous.close();
+        }
+        return stream;
+    }
+
+    /** Close the reliable stream of the RAW interface, dropping what is not acked */
+    public void closeReliableStream(int channel) {
+        RawReliableStream stream;
+        synchronized (rpcs) {
+            stream = streams.get(channel);
+            streams.remove(channel);
+        }
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    /** The timer thread of the RPC endpoints and the reliable streams */
+    private ScheduledExecutorService getTimer() {
+        synchronized (rpcs) {
+            if (timer == null) {
+                timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "rawTimer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return timer;
+        }
+    }
+
+    /** Close the RPC endpoint of the RAW interface, failing its pending calls */
+    public void closeRpc(int channel) {
+        RawRpc rpc;
+        synchronized (rpcs) {
+            rpc = rpcs.get(channel);
+            rpcs.remove(channel);
+        }
+        if (rpc != null) {
+            rpc.close();
+        }
+    }
+
+    /**
+     * Coalesce pending RAW commands into one write of up to maxBatchBytes, waiting
+     * at most maxDelayMs for a batch to fill. By default every command is written
+     * on its own, as the mod may treat each write as one message; only enable
+     * batching for mods which frame their commands. The opened RAW interfaces
+     * keep their pending commands, marks and totals.
+     */
+    public void setWriteBatching(int maxBatchBytes, int maxDelayMs) {
+        this.maxBatchBytes = maxBatchBytes;
+        batchDelayMs = Math.max(maxDelayMs, 0);
+        for (RawChannel channel : channels) {
+            channel.writeQueue.setMaxBatchBytes(maxBatchBytes);
+        }
+    }
+
+    /** Get a report for every batch written, called on the sending thread */
+    public void setBatchListener(RawWriteQueue.BatchListener listener) {
+        batchListener = listener;
+        for (RawChannel channel : channels) {
+            channel.writeQueue.setBatchListener(listener);
+        }
+    }
+
+    /** Get the write batch totals of the RAW interface */
+    public RawWriteQueue.Stats getWriteStats(int channel) {
+        RawChannel[] opened = channels;
+        if (channel < 0 || channel >= opened.length) {
+            return new RawWriteQueue.Stats();
+        }
+        return opened[channel].writeQueue.getStats();
+    }
+
+    private RawWriteQueue createWriteQueue() {
+        RawWriteQueue queue = new RawWriteQueue(maxBatchBytes);
+        queue.setBatchListener(batchListener);
+        queue.setFrameCodec(frameCodec);
+        return queue;
+    }
+
+    /**
+     * Set the data queue of the listeners registered afterwards without one.
+     * By default a listener has up to DEFAULT_CAPACITY data pending, and a
+     * full queue drops the oldest data so a slow listener never stalls the
+     * reactor, and with it every RAW I/O.
+     */
+    public void setDeliveryPolicy(int capacity, RawDeliveryQueue.Policy policy) {
+        deliveryCapacity = capacity;
+        deliveryPolicy = policy;
+    }
+
+    @Override
+    public void registerListener(Handler listener) {
+        registerListener(listener, deliveryCapacity, deliveryPolicy);
+    }
+
+    /**
+     * Register a listener to the events and the data of all the RAW interfaces,
+     * with a bounded data queue of its own.
+     */
+    public RawDeliveryQueue registerListener(Handler listener, int capacity,
+                                             RawDeliveryQueue.Policy policy) {
+        super.registerListener(listener);
+        return addDeliveryQueue(new RawDeliveryQueue(listener, capacity, policy));
+    }
+
+    /** Register a listener until nothing else holds it, its data queue holds it weakly too */
+    @Override
+    public void registerWeakListener(Handler listener) {
+        super.registerWeakListener(listener);
+        addDeliveryQueue(new RawDeliveryQueue(listener, deliveryCapacity, deliveryPolicy, true));
+    }
+
+    /** Unregister the listener and close all its data queues, the pending data is released */
+    @Override
+    public void unregisterListener(Handler listener) {
+        super.unregisterListener(listener);
+        removeDeliveryQueues(listener);
+    }
+
+    private RawDeliveryQueue addDeliveryQueue(RawDeliveryQueue queue) {
+        synchronized (channelQueues) {
+            dataQueues = append(dataQueues, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * Register a listener to the data of one RAW interface only, the listeners
+     * registered by registerListener() get the data of all the interfaces.
+     */
+    public RawDeliveryQueue registerListener(int channel, Handler listener) {
+        return registerListener(channel, listener, deliveryCapacity, deliveryPolicy);
+    }
+
+    /** Register a listener to the data of one RAW interface, with its own data queue */
+    public RawDeliveryQueue registerListener(int channel, Handler listener, int capacity,
+                                             RawDeliveryQueue.Policy policy) {
+        RawDeliveryQueue queue = new RawDeliveryQueue(listener, capacity, policy);
+        synchronized (channelQueues) {
+            RawDeliveryQueue[] queues = channelQueues.get(channel);
+            channelQueues.put(channel,
+                    append(queues != null ? queues : new RawDeliveryQueue[0], queue));
+        }
+        return queue;
+    }
+
+    /** Get the data queue of the listener, for its depth and drop counters */
+    public RawDeliveryQueue getDeliveryQueue(Handler listener) {
+        for (RawDeliveryQueue queue : dataQueues) {
+            if (queue.getListener() == listener) {
+                return queue;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Close and drop the queues of the listener, of all the RAW interfaces and
+     * of each one. A null listener drops the queues already closed, e.g. those
+     * of a collected weak listener.
+     */
+    private void removeDeliveryQueues(Handler listener) {
+        synchronized (channelQueues) {
+            dataQueues = remove(dataQueues, listener);
+            for (int i = channelQueues.size() - 1; i >= 0; i--) {
+                RawDeliveryQueue[] queues = remove(channelQueues.valueAt(i), listener);
+                if (queues.length == 0) {
+                    channelQueues.removeAt(i);
+                } else {
+                    channelQueues.setValueAt(i, queues);
+                }
+            }
+        }
+    }
+
+    private static RawDeliveryQueue[] remove(RawDeliveryQueue[] queues, Handler listener) {
+        int kept = 0;
+        RawDeliveryQueue[] next = new RawDeliveryQueue[queues.length];
+        for (RawDeliveryQueue queue : queues) {
+            if (queue.isClosed() || (listener != null && queue.getListener() == listener)) {
+                queue.close();
+            } else {
+                next[kept++] = queue;
+            }
+        }
+        if (kept == queues.length) {
+            return queues;
+        }
+        RawDeliveryQueue[] trimmed = new RawDeliveryQueue[kept];
+        System.arraycopy(next, 0, trimmed, 0, kept);
+        return trimmed;
+    }
+
+    private static RawDeliveryQueue[] append(RawDeliveryQueue[] queues, RawDeliveryQueue queue) {
+        RawDeliveryQueue[] next = new RawDeliveryQueue[queues.length + 1];
+        System.arraycopy(queues, 0, next, 0, queues.length);
+        next[queues.length] = queue;
+        return next;
+    }
+
+    /** Get the number of opened RAW interfaces */
+    public int getRawInterfaceCount() {
+        return channels.length;
+    }
+
+    /** Get the RAW interface of the index */
+    public ModInterfaceDelegation getRawInterface(int channel) {
+        RawChannel[] opened = channels;
+        return channel >= 0 && channel < opened.length ? opened[channel].delegation : null;
     }
 
     /** Check RAW I/O status, open I/O streams if not yet */
     public void checkRawInterface() {
-        if (null != sendingThread && null != receiveThread) {
+        if (isRawInterfaceReady()) {
             onRawInterfaceReady();
         } else {
             openRawDeviceifAvailable();
@@ -188,33 +603,99 @@ public class RawPersonality extends Personality {
 
     /** Check RAW I/O status */
     public boolean isRawInterfaceReady() {
-        return sendingThread != null && receiveThread != null;
+        return receiver != null && channels.length > 0;
+    }
+
+    /**  Write the pending commands via RAW I/O to Moto Mod device, one write per batch */
+    private void drain(RawChannel channel) {
+        RawWriteQueue queue = channel.writeQueue;
+        while (!queue.isEmpty()) {
+            if (channel.closed) {
+                /** Never written, fail whoever waits for them */
+                queue.clear();
+                return;
+            }
+            try {
+                /** Write data into RAW I/O, which mod device will get */
+                queue.writeNext(channel.transport);
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "IOException while writing to raw file" + e);
+                queue.clear();
+                onIOException();
+                return;
+            }
+        }
     }
 
-    /**  Write the command byte array data via RAW I/O to Moto Mod device */
-    private class SendHandler extends Handler {
-        public SendHandler(Looper looper) {
-            super(looper);
+    /** RAW I/O readiness, called on the reactor thread */
+    private final RawReactor.Callback reactorCallback = new RawReactor.Callback() {
+        @Override
+        public void onReadable(RawReactor.Key key) {
+            RawReceiver current = receiver;
+            if (current != null) {
+                current.receive(((RawChannel) key.attachment).index);
+            }
+        }
+
+        @Override
+        public void onWritable(RawReactor.Key key) {
+            drain((RawChannel) key.attachment);
         }
 
         @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case SEND_RAW_CMD:
-                    try {
-                        /** Write data into RAW I/O, which mod device will get */
-                        if (null != outputStream) {
-                            outputStream.write((byte[]) msg.obj);
-                        }
-                    } catch (IOException e) {
-                        Log.e(Constants.TAG, "IOException while writing to raw file" + e);
+        public void onHangup(RawReactor.Key key) {
+            /** RAW driver existing */
+            ((RawChannel) key.attachment).closed = true;
+
+            final RawChannel[] opened = channels;
+            for (RawChannel channel : opened) {
+                if (!channel.closed) {
+                    return;
+                }
+            }
+
+            /**
+             * Every RAW interface hung up, e.g. the mod reboots after a flash.
+             * Drop them where attach / detach open and close the RAW I/O, so
+             * the next enumeration or checkRawInterface() opens it again.
+             */
+            runOnEnumerator(new Runnable() {
+                @Override
+                public void run() {
+                    if (channels == opened && opened.length > 0) {
+                        closeRawDeviceifAvailable();
                         onIOException();
                     }
-                    return;
+                }
+            });
+        }
+
+        @Override
+        public void onCancelled(RawReactor.Key key) {
+            ((RawChannel) key.attachment).close();
+        }
+    };
+
+    /** The RAW interfaces as read by the receiver, polling is left to the reactor */
+    private final RawSource channelSource = new RawSource() {
+        @Override
+        public int read(int channel, byte[] buffer, int offset, int length) throws IOException {
+            RawChannel[] opened = channels;
+            if (channel >= opened.length || opened[channel].closed) {
+                return 0;
             }
-            super.handleMessage(msg);
+            return opened[channel].transport.read(buffer, offset, length);
         }
-    }
+
+        @Override
+        public void remove(int channel) {
+            RawChannel[] opened = channels;
+            if (channel < opened.length) {
+                opened[channel].closed = true;
+                opened[channel].key.cancel();
+            }
+        }
+    };
 
     /** I/O exception */
     private void onIOException() {
@@ -231,14 +712,119 @@ public class RawPersonality extends Personality {
         notifyListeners(MSG_RAW_IO_READY);
     }
 
-    /** Got data from RAW I/O from mod device */
-    private void onRawData(byte[] buffer, int length) {
-        Message msg = Message.obtain();
-        msg.what = MSG_RAW_DATA;
-        msg.arg1 = length;
-        msg.obj = buffer;
+    /**
+     * Got data from RAW I/O from mod device. The listeners get a RawBuffer
+     * in msg.obj and must release() it after processing; getChannel() tells
+     * which RAW interface the data came from.
+     */
+    private void onRawData(RawBuffer buffer) {
+        RawChannel[] opened = channels;
+        RawFrameCodec.Decoder decoder = buffer.channel < opened.length
+                ? opened[buffer.channel].frameDecoder : null;
+        if (decoder == null) {
+            deliverRawData(buffer, 0, buffer.length());
+        } else {
+            /** Listeners get whole frames instead of read-sized chunks */
+            decodingBuffer = buffer;
+            decoder.feed(buffer.data, 0, buffer.length(), frameListener);
+            decodingBuffer = null;
+        }
+
+        /** Drop the read thread's own hold */
+        buffer.release();
+    }
+
+    /**
+     * Queue data in the buffer to every listener of its RAW interface, each holds
+     * the buffer. Offers run outside the lock, as a BLOCK queue may wait there.
+     */
+    private void deliverRawData(RawBuffer buffer, int offset, int length) {
+        RawRpc rpc;
+        RawReliableStream stream;
+        synchronized (rpcs) {
+            rpc = rpcs.get(buffer.channel);
+            stream = streams.get(buffer.channel);
+        }
+        if (rpc != null && rpc.onFrame(buffer.data, offset, length)) {
+            /** An RPC reply, completed its call already */
+            return;
+        }
+        if (stream != null && stream.onFrame(buffer.data, offset, length)) {
+            /** Reliable stream data or ack, its listener gets the data in order */
+            return;
+        }
+
+        RawDeliveryQueue[] all = dataQueues;
+        RawDeliveryQueue[] routed;
+        synchronized (channelQueues) {
+            routed = channelQueues.get(buffer.channel);
+        }
+        int holders = all.length + (routed != null ? routed.length : 0);
+        if (holders == 0) {
+            return;
+        }
+        buffer.retain(holders);
+
+        boolean gone = false;
+        for (RawDeliveryQueue queue : all) {
+            queue.offer(buffer, offset, length);
+            gone |= queue.isClosed();
+        }
+        if (routed != null) {
+            for (RawDeliveryQueue queue : routed) {
+                queue.offer(buffer, offset, length);
+                gone |= queue.isClosed();
+            }
+        }
+
+        /** A weak listener was collected, or its looper quit */
+        if (gone) {
+            removeDeliveryQueues(null);
+        }
+    }
+
+    /** Got a decoded frame on the read thread */
+    private final RawFrameCodec.FrameListener frameListener = new RawFrameCodec.FrameListener() {
+        @Override
+        public void onFrame(byte[] data, int offset, int length) {
+            RawBuffer buffer = decodingBuffer;
+            if (data == buffer.data) {
+                /** Decoded in place, share the read buffer */
+                deliverRawData(buffer, offset, length);
+                return;
+            }
+
+            /** The frame was split across reads, give it a buffer of its own */
+            RawBufferPool pool = bufferPool;
+            RawBuffer frame = pool != null ? pool.lease() : null;
+            if (frame == null) {
+                Log.e(Constants.TAG, "No buffer for RAW frame, dropped " + length + " bytes");
+                return;
+            }
+            System.arraycopy(data, offset, frame.data, 0, length);
+            frame.length = length;
+            frame.channel = buffer.channel;
+            deliverRawData(frame, 0, length);
+            frame.release();
+        }
+    };
+
+    /**
+     * Frame the RAW data with the codec: every executeRaw() command is sent as one
+     * frame, and listeners get one MSG_RAW_DATA per received frame. Set null to
+     * pass the data as is. Frames are limited to MAX_BYTES, and the receive pool
+     * needs at least 2 buffers for frames split across reads.
+     */
+    public void setFrameCodec(RawFrameCodec codec) {
+        frameCodec = codec;
+        for (RawChannel channel : channels) {
+            channel.frameDecoder = codec != null ? codec.newDecoder(MAX_BYTES) : null;
+            channel.writeQueue.setFrameCodec(codec);
+        }
+    }
 
-        notifyListeners(msg);
+    public RawFrameCodec getFrameCodec() {
+        return frameCodec;
     }
 
     /** Create RAW I/O for attached mod device */
@@ -248,15 +834,15 @@ public class RawPersonality extends Personality {
             return false;
         }
 
-        /**
-         * Check whether expecting mod attached based on PID / VID.
-         * For this example we ask for MDK Blinky.
-         */
-//        if (targetPID != Constants.INVALID_ID && targetVID != Constants.INVALID_ID) {
-//            if (modDevice.getVendorId() != targetVID || modDevice.getProductId() != targetPID) {
-//                return false;
-//            }
-//        }
+        /** Don't open RAW I/O or request the permission for a mod we don't expect */
+        if (!matcher.matches(modDevice)) {
+            return false;
+        }
+
+        /** Already opened for this mod device */
+        if (isRawInterfaceReady()) {
+            return true;
+        }
 
         try {
             /** Query ModManager with RAW protocol */
@@ -264,10 +850,6 @@ public class RawPersonality extends Personality {
                     modManager.getModInterfaceDelegationsByProtocol(modDevice,
                             ModProtocol.Protocol.RAW);
             if (devices != null && !devices.isEmpty()) {
-                // TODO: go through the whole devices list for multi connected devices.
-                // Here simply operate the first device for this example.
-                ModInterfaceDelegation device = devices.get(0);
-
                 /**
                  * Be care to strict follow Android policy, you need visibly asking for
                  * grant permission.
@@ -276,9 +858,8 @@ public class RawPersonality extends Personality {
                         != PackageManager.PERMISSION_GRANTED) {
                     onRequestRawPermission();
                 } else {
-                    /** The RAW_PROTOCOL permission already granted, open RAW I/O */
-                    getRawPfd(device);
-                    return true;
+                    /** The RAW_PROTOCOL permission already granted, open all the RAW I/O */
+                    return openRawChannels(devices);
                 }
             }
         } catch (RemoteException e) {
@@ -287,149 +868,77 @@ public class RawPersonality extends Personality {
         return false;
     }
 
-    /** Get file description via ModManager for attached Moto Mod, to create RAW I/O */
-    private void getRawPfd(ModInterfaceDelegation device) {
-        try {
-            /** Get file description of this mod device */
-            parcelFD = modManager.openModInterface(device,
-                    ParcelFileDescriptor.MODE_READ_WRITE);
-            if (parcelFD != null) {
-                try {
-                    /**
-                     * Get read / write file descriptor, For further details,
-                     * refer to http://man7.org/linux/man-pages/man2/pipe.2.html
-                     */
-                    syncPipes = Os.pipe();
-                } catch (ErrnoException e) {
-                    e.printStackTrace();
-                } catch (Exception e) {
-                    e.printStackTrace();
+    /** Get file descriptions via ModManager for attached Moto Mod, to create RAW I/O */
+    private boolean openRawChannels(List<ModInterfaceDelegation> devices) {
+        List<RawChannel> opened = new ArrayList<>();
+        for (ModInterfaceDelegation device : devices) {
+            try {
+                /** Get file description of this mod device interface */
+                ParcelFileDescriptor parcelFD = modManager.openModInterface(device,
+                        ParcelFileDescriptor.MODE_READ_WRITE);
+                if (parcelFD == null) {
+                    Log.e(Constants.TAG, "getRawPfd PFD null ");
+                    continue;
                 }
 
-                /** Create work threads for read / write data */
-                createSendingThread();
-                createReceivingThread();
-
-                if (null != sendingThread && null != receiveThread) {
-                    /** Notify that RAW I/O is ready to use */
-                    onRawInterfaceReady();
+                /** Create the transport for read / write data */
+                FileDescriptor fd = parcelFD.getFileDescriptor();
+                RawTransport transport = transportType == RawTransport.Type.CHANNEL
+                        ? RawChannelTransport.open(fd, MAX_BYTES)
+                        : RawStreamTransport.open(fd);
+
+                RawChannel channel = new RawChannel(opened.size(), device, parcelFD,
+                        transport, createWriteQueue());
+                if (frameCodec != null) {
+                    channel.frameDecoder = frameCodec.newDecoder(MAX_BYTES);
                 }
-            } else {
-                Log.e(Constants.TAG, "getRawPfd PFD null ");
+                opened.add(channel);
+            } catch (RemoteException e) {
+                Log.e(Constants.TAG, "openRawDevice exception " + e);
             }
-        } catch (RemoteException e) {
-            Log.e(Constants.TAG, "openRawDevice exception " + e);
         }
-    }
-
-    /**
-     * Create the RAW data write stream based on the file description
-     * for attached mod device.
-     */
-    private void createSendingThread() {
-        if (sendingThread == null) {
-            FileDescriptor fd = parcelFD.getFileDescriptor();
-            outputStream = new FileOutputStream(fd);
-            sendingThread = new HandlerThread("sendingThread");
-            sendingThread.start();
-            handler = new SendHandler(sendingThread.getLooper());
+        if (opened.isEmpty()) {
+            return false;
         }
-    }
 
-    /**
-     * Create the RAW data read stream based on the file description
-     * for attached mod device.
-     */
-    public static int MAX_BYTES = 1024;
+        RawReactor reactor;
+        try {
+            reactor = RawReactor.get();
+        } catch (ErrnoException e) {
+            e.printStackTrace();
+            for (RawChannel channel : opened) {
+                channel.close();
+            }
+            return false;
+        }
 
-    private void createReceivingThread() {
-        if (receiveThread != null) return;
-        receiveThread = new Thread() {
+        /** Create receive buffers, and let the reactor poll the RAW I/O */
+        if (bufferPool == null) {
+            bufferPool = new RawBufferPool(poolSize, MAX_BYTES, poolPolicy);
+        }
+        receiver = new RawReceiver(channelSource, bufferPool, new RawReceiver.Sink() {
             @Override
-            public void run() {
-                byte[] buffer = new byte[MAX_BYTES];
-                FileDescriptor fd = parcelFD.getFileDescriptor();
-                FileInputStream inputStream = new FileInputStream(fd);
-                int ret = 0;
-                synchronized (syncPipes) {
-                    while (ret >= 0) {
-                        try {
-                            /** Poll on the exit pipe and the raw channel */
-                            int polltype = blockRead();
-                            if (polltype == POLL_TYPE_READ_DATA) {
-                                ret = inputStream.read(buffer, 0, MAX_BYTES);
-                                if (ret > 0) {
-                                    /**  Got raw data */
-                                    onRawData(buffer, ret);
-                                }
-                            } else if (polltype == POLL_TYPE_EXIT) {
-                                break;
-                            }
-                        } catch (IOException e) {
-                            Log.e(Constants.TAG, "IOException while reading from raw file" + e);
-                            onIOException();
-                        } catch (Exception e) {
-                            Log.e(Constants.TAG, "Exception while reading from raw file" + e);
-                            e.printStackTrace();
-                        }
-                    }
-                    receiveThread = null;
-                }
+            public void onRawData(RawBuffer buffer) {
+                RawPersonality.this.onRawData(buffer);
             }
-        };
-
-        receiveThread.start();
-    }
-
-    /** Read the RAW I/O input pipe, the data is written by attached mod device */
-    private int blockRead() {
-        /** Poll on the pipe to see whether signal to exit, or any data on raw fd to read */
-        StructPollfd[] pollfds = new StructPollfd[2];
-
-        /** readRawFd will watch whether data is available on the raw channel */
-        StructPollfd readRawFd = new StructPollfd();
-        pollfds[0] = readRawFd;
-        readRawFd.fd = parcelFD.getFileDescriptor();
-        readRawFd.events = (short) (OsConstants.POLLIN | OsConstants.POLLHUP);
 
-        /** syncFd will watch whether any exit signal */
-        StructPollfd syncFd = new StructPollfd();
-        pollfds[1] = syncFd;
-        syncFd.fd = syncPipes[0];
-        syncFd.events = (short) OsConstants.POLLIN;
-
-        try {
-            /** Waits for file descriptors pollfds to become ready to perform I/O */
-            int ret = Os.poll(pollfds, -1);
-            if (ret > 0) {
-                if (syncFd.revents == OsConstants.POLLIN) {
-                    /** POLLIN on the syncFd as signal to exit */
-                    byte[] buffer = new byte[1];
-                    new FileInputStream(syncPipes[0]).read(buffer, 0, 1);
-                    return POLL_TYPE_EXIT;
-                } else if ((readRawFd.revents & OsConstants.POLLHUP) != 0) {
-                    /** RAW driver existing */
-                    return POLL_TYPE_EXIT;
-                } else if ((readRawFd.revents & OsConstants.POLLIN) != 0) {
-                    /** Finally data ready to read */
-                    return POLL_TYPE_READ_DATA;
-                } else {
-                    /** Unexcpected error */
-                    Log.e(Constants.TAG, "unexpected events in blockRead rawEvents:"
-                            + readRawFd.revents + " syncEvents:" + syncFd.revents);
-                    return POLL_TYPE_EXIT;
-                }
-            } else {
-                /** Error */
-                Log.e(Constants.TAG, "Error in blockRead: " + ret);
+            @Override
+            public void onIOException(int channel) {
+                RawPersonality.this.onIOException();
             }
-        } catch (ErrnoException e) {
-            Log.e(Constants.TAG, "ErrnoException in blockRead: " + e);
-            e.printStackTrace();
-        } catch (IOException e) {
-            Log.e(Constants.TAG, "IOException in blockRead: " + e);
-            e.printStackTrace();
+        });
+        channels = opened.toArray(new RawChannel[opened.size()]);
+        openedDevice = modDevice;
+        for (RawChannel channel : channels) {
+            channel.key = reactor.register(channel.parcelFD.getFileDescriptor(),
+                    reactorCallback, channel);
         }
-        return POLL_TYPE_EXIT;
+
+        /** Notify that RAW I/O is ready to use */
+        onRawInterfaceReady();
+        return true;
     }
-}
\ No newline at end of file
+
+    /** Max bytes of one RAW read */
+    public static int MAX_BYTES = 1024;
+}
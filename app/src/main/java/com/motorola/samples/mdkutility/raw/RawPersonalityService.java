@@ -33,7 +33,6 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
@@ -43,11 +42,14 @@ import android.widget.Toast;
 
 import com.motorola.mod.ModDevice;
 import com.motorola.samples.mdkutility.Constants;
+import com.motorola.samples.mdkutility.ListenerRegistry;
+import com.motorola.samples.mdkutility.MDKUtilityApplication;
 import com.motorola.samples.mdkutility.MainActivity;
+import com.motorola.samples.mdkutility.ModState;
+import com.motorola.samples.mdkutility.ModStateStore;
 import com.motorola.samples.mdkutility.Personality;
 import com.motorola.samples.mdkutility.R;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -64,6 +66,19 @@ public class RawPersonalityService extends Service {
     public static final String BLINKY_OFF = "off";
     public static final String CANCEL_NOTI = "cancel_notification";
 
+    /** Mod state: the RawCommandSet replayed to the mod whenever its RAW I/O is ready */
+    public static final String RAW_RESTORE = "raw_restore";
+    /** RawCommandSet slot of the LED command */
+    public static final String SLOT_LED = "led";
+
+    /** Give up waiting for a replay to be written and acked */
+    private static final long REPLAY_TIMEOUT_MS = 2000;
+
+    /** The replay in flight, only touched on the main thread */
+    private RawReplay replay;
+    private RawReplay.AckMatcher ackMatcher;
+    private volatile RawReplay.Result lastRestore;
+
     private boolean cancelNoti = false;
 
     private RawPersonality rawPersonality;
@@ -75,16 +90,27 @@ public class RawPersonalityService extends Service {
         }
     }
 
-    List<Handler> listeners = new ArrayList<>();
+    /** UI listeners, held weakly so a finished Activity is not kept by the service */
+    private final ListenerRegistry<Handler> listeners = new ListenerRegistry<>();
+
+    private static final ListenerRegistry.Dispatcher<Handler, Integer> SEND_EMPTY_MESSAGE =
+            new ListenerRegistry.Dispatcher<Handler, Integer>() {
+                @Override
+                public void dispatch(Handler listener, Integer what) {
+                    listener.sendEmptyMessage(what);
+                }
+            };
 
     public void registerListener(Handler listener) {
-        listeners.add(listener);
+        listeners.addWeak(listener);
+    }
+
+    public void unregisterListener(Handler listener) {
+        listeners.remove(listener);
     }
 
     protected void notifyListeners(int what) {
-        for (Handler handler : listeners) {
-            handler.sendEmptyMessage(what);
-        }
+        listeners.dispatch(SEND_EMPTY_MESSAGE, what);
     }
 
     @Override
@@ -119,9 +145,10 @@ public class RawPersonalityService extends Service {
                 if (rawPersonality != null
                         && rawPersonality.getModDevice() != null
                         && rawPersonality.getModDevice().getUniqueId() != null) {
-                    SharedPreferences preference = getSharedPreferences(
-                            rawPersonality.getModDevice().getUniqueId().toString(), MODE_PRIVATE);
-                    preference.edit().putBoolean(BLINKY, blinking).apply();
+                    String uid = rawPersonality.getModDevice().getUniqueId().toString();
+                    MDKUtilityApplication.getModState(this).putBoolean(uid, BLINKY, blinking);
+                    recordCommand(uid, SLOT_LED,
+                            blinking ? Constants.RAW_CMD_LED_ON : Constants.RAW_CMD_LED_OFF);
                 }
             }
         }
@@ -147,6 +174,9 @@ public class RawPersonalityService extends Service {
         notificationManager.cancelAll();
 
         releasePersonality();
+
+        /** Don't leave the LED state to a write that may never run */
+        MDKUtilityApplication.getModState(this).flush();
     }
 
     /**
@@ -211,7 +241,7 @@ public class RawPersonalityService extends Service {
     private void initPersonality() {
         if (null == rawPersonality) {
             /** For this example we expect to use MDK Blinky mod */
-            rawPersonality = new RawPersonality(this, Constants.VID_MDK, Constants.PID_BLINKY);
+            rawPersonality = new RawPersonality(this, Constants.MATCH_BLINKY);
 
             /** Register handler to get event and data update */
             rawPersonality.registerListener(handler);
@@ -238,6 +268,18 @@ public class RawPersonalityService extends Service {
                     // TODO: Does not expect any data from example blinky mod.
                     // Handle the data here if you are developing a consumer mod
                     // and grant data from the mod.
+                    RawBuffer buffer = (RawBuffer) msg.obj;
+                    if (replay != null
+                            && replay.onData(buffer.data, msg.arg2, msg.arg1, System.nanoTime())
+                            && replay.isRestored()) {
+                        finishReplay(replay);
+                    }
+
+                    /** Return the receive buffer to the pool */
+                    buffer.release();
+                    break;
+                case Personality.MSG_MOD_LIST:
+                    /** Only the mod device selected by RawPersonality matters here */
                     break;
                 case Personality.MSG_RAW_IO_EXCEPTION:
                     /** Got RAW I/O exception. */
@@ -264,25 +306,48 @@ public class RawPersonalityService extends Service {
         notifyListeners(BLINKY_STATUS);
     }
 
-    /** Restore blinky status to attached mod device */
+    /** Restore the stored state of the attached mod device */
     public void onRawInterfaceReady() {
+        ModStateStore store = MDKUtilityApplication.getModState(this);
+        if (!store.isLoaded()) {
+            /** Not read yet, restore once it is rather than from nothing */
+            store.whenLoaded(new Runnable() {
+                @Override
+                public void run() {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (isRawInterfaceReady()) {
+                                onRawInterfaceReady();
+                            }
+                        }
+                    });
+                }
+            });
+            return;
+        }
+
         if (rawPersonality != null) {
-            boolean blinking = false;
-            /** Get attached mod device UUID and check according LED record */
+            /** Get attached mod device UUID and its state record, one lookup */
+            ModState state = ModState.EMPTY;
             if (rawPersonality.getModDevice() != null
                     && rawPersonality.getModDevice().getUniqueId() != null) {
-                SharedPreferences preference = getSharedPreferences(
-                        rawPersonality.getModDevice().getUniqueId().toString(), MODE_PRIVATE);
-                blinking = preference.getBoolean(BLINKY, false);
+                state = store.getState(rawPersonality.getModDevice().getUniqueId().toString());
             }
+            boolean blinking = state.getBoolean(BLINKY, false);
+
+            /** The last-known commands, with the LED one from its state if not recorded */
+            RawCommandSet commands = RawCommandSet.decode(state.getBytes(RAW_RESTORE));
+            if (!commands.contains(SLOT_LED)) {
+                commands.record(SLOT_LED,
+                        blinking ? Constants.RAW_CMD_LED_ON : Constants.RAW_CMD_LED_OFF);
+            }
+            replayCommands(commands.commands());
 
-            /** Write RAW command to mod device to toggle LED */
             if (blinking) {
-                rawPersonality.executeRaw(Constants.RAW_CMD_LED_ON);
                 Toast.makeText(this, getString(R.string.led_blinky),
                         Toast.LENGTH_SHORT).show();
             } else {
-                rawPersonality.executeRaw(Constants.RAW_CMD_LED_OFF);
                 Toast.makeText(this, getString(R.string.led_off),
                         Toast.LENGTH_SHORT).show();
             }
@@ -295,15 +360,124 @@ public class RawPersonalityService extends Service {
         notifyListeners(BLINKY_STATUS);
     }
 
+    /** Write the commands as one pipelined batch and time the restore */
+    private void replayCommands(List<byte[]> commands) {
+        if (replay != null) {
+            /** Superseded before restored, report what it got to */
+            finishReplay(replay);
+        }
+
+        final RawReplay current = new RawReplay(commands, ackMatcher, System.nanoTime());
+        replay = current;
+        boolean queued = rawPersonality.executeRawBatch(0, commands, new Runnable() {
+            @Override
+            public void run() {
+                /** On the sending thread, take the time before handing over */
+                final long now = System.nanoTime();
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (replay == current) {
+                            current.onWritten(now);
+                            if (current.isRestored()) {
+                                finishReplay(current);
+                            }
+                        }
+                    }
+                });
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                /** The RAW I/O failed or closed first, report what it got to */
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (replay == current) {
+                            finishReplay(current);
+                        }
+                    }
+                });
+            }
+        });
+        if (!queued) {
+            finishReplay(current);
+            return;
+        }
+
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (replay == current) {
+                    finishReplay(current);
+                }
+            }
+        }, REPLAY_TIMEOUT_MS);
+    }
+
+    private void finishReplay(RawReplay done) {
+        if (replay == done) {
+            replay = null;
+        }
+        lastRestore = done.finish();
+        if (lastRestore.isRestored()) {
+            Log.i(Constants.TAG, "RAW state restored, " + lastRestore);
+        } else {
+            Log.e(Constants.TAG, "RAW state not restored, " + lastRestore);
+        }
+    }
+
+    /** Time to restore of the last replay, null if none finished yet */
+    public RawReplay.Result getLastRestore() {
+        return lastRestore;
+    }
+
+    /**
+     * Track the replies acknowledging the replayed commands, so the time to
+     * restore runs until the mod acked them all. Null counts a replay
+     * restored once written, as the blinky mod does not reply.
+     */
+    public void setAckMatcher(RawReplay.AckMatcher matcher) {
+        ackMatcher = matcher;
+    }
+
+    /**
+     * Record the last-known command of a slot of the attached mod device, to
+     * replay each time its RAW I/O is ready. Null forgets the slot. Returns
+     * false if no mod with a UUID is attached.
+     */
+    public boolean recordCommand(String slot, byte[] cmd) {
+        if (rawPersonality == null
+                || rawPersonality.getModDevice() == null
+                || rawPersonality.getModDevice().getUniqueId() == null) {
+            return false;
+        }
+        recordCommand(rawPersonality.getModDevice().getUniqueId().toString(), slot, cmd);
+        return true;
+    }
+
+    private void recordCommand(String uid, final String slot, final byte[] cmd) {
+        /** Over the stored commands, even if they are not read yet */
+        MDKUtilityApplication.getModState(this).update(uid, RAW_RESTORE,
+                new ModStateStore.Update() {
+                    @Override
+                    public Object apply(Object value) {
+                        RawCommandSet commands = RawCommandSet.decode(
+                                value instanceof byte[] ? (byte[]) value : null);
+                        commands.record(slot, cmd);
+                        return commands.isEmpty() ? null : commands.encode();
+                    }
+                });
+    }
+
     /** Check currently LED status */
     public boolean isBlinking() {
         boolean blinking = false;
         if (rawPersonality != null
                 && rawPersonality.getModDevice() != null
                 && rawPersonality.getModDevice().getUniqueId() != null) {
-            SharedPreferences preference = getSharedPreferences(
-                    rawPersonality.getModDevice().getUniqueId().toString(), MODE_PRIVATE);
-            blinking = preference.getBoolean(BLINKY, false);
+            blinking = MDKUtilityApplication.getModState(this).getBoolean(
+                    rawPersonality.getModDevice().getUniqueId().toString(), BLINKY, false);
         }
 
         return blinking;
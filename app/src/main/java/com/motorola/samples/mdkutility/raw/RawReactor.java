@@ -0,0 +1,294 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import android.system.ErrnoException;
+import android.util.Log;
+
+import com.motorola.samples.mdkutility.Constants;
+
+import java.io.FileDescriptor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The process-wide RAW event loop. One thread polls every registered RAW file
+ * descriptor and calls back when one is readable, writable or hung up, so the
+ * thread count stays the same however many RAW interfaces are open.
+ *
+ * Registration changes are applied by the loop thread between polls, so the
+ * poll descriptors are only rebuilt when a file descriptor is added or removed.
+ */
+final class RawReactor implements Runnable {
+    /** The system calls of the loop, RawOsPoller on the device */
+    interface Poller {
+        int READABLE = 1;
+        int WRITABLE = 2;
+        int HANGUP = 4;
+        int ERROR = 8;
+
+        /**
+         * Wait until fds[i] is ready for events[i], wakeup() is called or
+         * timeoutMs passes, -1 to wait without timeout; revents[i] gets the
+         * ready events of fds[i]. The same fds array is passed again until
+         * the registrations change.
+         */
+        void poll(FileDescriptor[] fds, int[] events, int[] revents, int timeoutMs);
+
+        /** Interrupt poll(), from any thread */
+        void wakeup();
+    }
+
+    /** Readiness callbacks, all called on the reactor thread */
+    interface Callback {
+        /** Data is ready to read */
+        void onReadable(Key key);
+
+        /** A write was requested and the file descriptor is writable */
+        void onWritable(Key key);
+
+        /** The file descriptor hung up, it is cancelled right after */
+        void onHangup(Key key);
+
+        /** The file descriptor is no longer polled, it is safe to close it now */
+        void onCancelled(Key key);
+    }
+
+    /** A registered file descriptor */
+    static final class Key {
+        private static final long NO_WRITE = Long.MAX_VALUE;
+
+        final FileDescriptor fd;
+        final Callback callback;
+        final Object attachment;
+
+        private final RawReactor reactor;
+
+        /** System.nanoTime() from which the reactor waits for POLLOUT, or NO_WRITE */
+        private final AtomicLong writeAt = new AtomicLong(NO_WRITE);
+        private volatile boolean cancelled = false;
+
+        private Key(RawReactor reactor, FileDescriptor fd, Callback callback, Object attachment) {
+            this.reactor = reactor;
+            this.fd = fd;
+            this.callback = callback;
+            this.attachment = attachment;
+        }
+
+        /**
+         * Get onWritable() once the file descriptor is writable, but not before
+         * delayMs. An earlier pending request is kept.
+         */
+        void requestWrite(long delayMs) {
+            long at = System.nanoTime() + delayMs * 1000000L;
+            long current;
+            do {
+                current = writeAt.get();
+                if (current <= at) {
+                    return;
+                }
+            } while (!writeAt.compareAndSet(current, at));
+            reactor.wakeup();
+        }
+
+        /** Stop polling, onCancelled() tells when the reactor let go of the file descriptor */
+        void cancel() {
+            reactor.cancel(this);
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private static RawReactor instance;
+
+    /** Get the reactor, its thread is started with the first call */
+    static synchronized RawReactor get() throws ErrnoException {
+        if (instance == null) {
+            instance = new RawReactor(new RawOsPoller());
+            Thread thread = new Thread(instance, "RawReactor");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return instance;
+    }
+
+    private final Poller poller;
+    private volatile boolean stopped = false;
+
+    /** Registration changes for the reactor thread, guarded by this */
+    private final List<Key> added = new ArrayList<>();
+    private final List<Key> removed = new ArrayList<>();
+
+    /** Reactor thread only: fds[i] is the file descriptor of keys[i] */
+    private Key[] keys = new Key[0];
+    private FileDescriptor[] fds = new FileDescriptor[0];
+    private int[] events = new int[0];
+    private int[] revents = new int[0];
+    private final List<Key> cancelling = new ArrayList<>();
+
+    RawReactor(Poller poller) {
+        this.poller = poller;
+    }
+
+    /** Start polling the file descriptor */
+    Key register(FileDescriptor fd, Callback callback, Object attachment) {
+        Key key = new Key(this, fd, callback, attachment);
+        synchronized (this) {
+            added.add(key);
+        }
+        wakeup();
+        return key;
+    }
+
+    private void cancel(Key key) {
+        synchronized (this) {
+            if (key.cancelled) {
+                return;
+            }
+            key.cancelled = true;
+            removed.add(key);
+        }
+        wakeup();
+    }
+
+    private void wakeup() {
+        poller.wakeup();
+    }
+
+    /** End the loop, the process-wide reactor runs for good */
+    void stop() {
+        stopped = true;
+        wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            applyRegistrations();
+
+            /** Ask for writability on the keys with a due write request */
+            long now = System.nanoTime();
+            long timeoutNanos = -1;
+            for (int i = 0; i < keys.length; i++) {
+                long at = keys[i].writeAt.get();
+                revents[i] = 0;
+                if (at <= now) {
+                    events[i] = Poller.READABLE | Poller.WRITABLE;
+                } else {
+                    events[i] = Poller.READABLE;
+                    if (at != Key.NO_WRITE && (timeoutNanos < 0 || at - now < timeoutNanos)) {
+                        timeoutNanos = at - now;
+                    }
+                }
+            }
+            int timeoutMs = timeoutNanos < 0 ? -1 : (int) ((timeoutNanos + 999999) / 1000000);
+
+            /** Waits for file descriptors to become ready to perform I/O */
+            poller.poll(fds, events, revents, timeoutMs);
+
+            for (int i = 0; i < keys.length; i++) {
+                dispatch(keys[i], revents[i]);
+            }
+        }
+    }
+
+    private void dispatch(Key key, int revents) {
+        if (revents == 0 || key.cancelled) {
+            return;
+        }
+
+        try {
+            if ((revents & Poller.READABLE) != 0) {
+                key.callback.onReadable(key);
+            }
+            if ((revents & Poller.WRITABLE) != 0 && !key.cancelled) {
+                /** Clear the request first, so writes queued by other threads meanwhile ask again */
+                key.writeAt.set(Key.NO_WRITE);
+                key.callback.onWritable(key);
+            }
+            if ((revents & (Poller.READABLE | Poller.WRITABLE)) == 0) {
+                /** RAW driver existing or unexpected error */
+                if ((revents & Poller.HANGUP) == 0) {
+                    Log.e(Constants.TAG, "unexpected events in RawReactor: " + revents);
+                }
+                key.callback.onHangup(key);
+                cancel(key);
+            }
+        } catch (Exception e) {
+            /** Keep the loop alive for the other file descriptors */
+            Log.e(Constants.TAG, "Exception in RawReactor callback " + e);
+            e.printStackTrace();
+        }
+    }
+
+    /** Rebuild the poll descriptors if any key was added or cancelled */
+    private void applyRegistrations() {
+        synchronized (this) {
+            if (added.isEmpty() && removed.isEmpty()) {
+                return;
+            }
+
+            List<Key> next = new ArrayList<>(keys.length + added.size());
+            for (Key key : keys) {
+                if (!key.cancelled) {
+                    next.add(key);
+                }
+            }
+            for (Key key : added) {
+                if (!key.cancelled) {
+                    next.add(key);
+                }
+            }
+            cancelling.addAll(removed);
+            added.clear();
+            removed.clear();
+
+            keys = next.toArray(new Key[next.size()]);
+            fds = new FileDescriptor[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                fds[i] = keys[i].fd;
+            }
+            events = new int[keys.length];
+            revents = new int[keys.length];
+        }
+
+        /** Outside the lock, the callbacks may register or cancel */
+        for (Key key : cancelling) {
+            try {
+                key.callback.onCancelled(key);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        cancelling.clear();
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import android.util.Log;
+
+import com.motorola.samples.mdkutility.Constants;
+
+import java.io.IOException;
+
+/**
+ * The RAW receive path: read the ready channel of a RawSource into a buffer
+ * leased from the RawBufferPool and hand it to the sink. Nothing is allocated
+ * per packet. Call receive() when RawReactor reports the channel readable.
+ */
+class RawReceiver {
+    /** Where received data and errors go */
+    interface Sink {
+        /** Got data, the sink owns the buffer and must release it */
+        void onRawData(RawBuffer buffer);
+
+        void onIOException(int channel);
+    }
+
+    private final RawSource source;
+    private final RawBufferPool pool;
+    private final Sink sink;
+
+    /** Scratch for data dropped under RawBufferPool.Policy.DROP */
+    private byte[] discard;
+
+    RawReceiver(RawSource source, RawBufferPool pool, Sink sink) {
+        this.source = source;
+        this.pool = pool;
+        this.sink = sink;
+    }
+
+    /**
+     * Read the ready data of the channel once and hand it to the sink.
+     * Returns false when the pool is closed, that is the RAW I/O is closing.
+     */
+    boolean receive(int channel) {
+        try {
+            /** Lease a buffer which is not held by any listener */
+            RawBuffer buffer = pool.lease();
+            int ret;
+            if (buffer == null) {
+                if (pool.getPolicy() != RawBufferPool.Policy.DROP) {
+                    /** Pool closed, RAW I/O is closing */
+                    return false;
+                }
+
+                /** No free buffer, consume and drop the data */
+                if (discard == null) {
+                    discard = new byte[pool.getBufferSize()];
+                }
+                ret = source.read(channel, discard, 0, discard.length);
+            } else {
+                try {
+                    ret = source.read(channel, buffer.data, 0, buffer.data.length);
+                } catch (IOException e) {
+                    buffer.release();
+                    throw e;
+                }
+                if (ret > 0) {
+                    /**  Got raw data */
+                    buffer.length = ret;
+                    buffer.channel = channel;
+                    sink.onRawData(buffer);
+                } else {
+                    buffer.release();
+                }
+            }
+
+            if (ret < 0) {
+                /** End of stream on this channel */
+                source.remove(channel);
+            }
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "IOException while reading from raw file" + e);
+            sink.onIOException(channel);
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "Exception while reading from raw file" + e);
+            e.printStackTrace();
+        }
+        return true;
+    }
+}
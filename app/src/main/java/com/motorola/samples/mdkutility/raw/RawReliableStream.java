@@ -0,0 +1,474 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ordered, reliable delivery of a stream of segments over a framed RAW
+ * interface, for long data pushes which must survive lost frames. Both ends
+ * run one of these:
+ *
+ *   data [TYPE_DATA] [sequence, 4 bytes big endian] [payload]
+ *   ack  [TYPE_ACK] [next expected sequence, 4 bytes] [SACK bitmap, 8 bytes]
+ *
+ * Up to window segments are in flight. The receiver acks every data frame
+ * with the next sequence it expects, and bit i of the SACK bitmap tells it
+ * holds sequence next + 1 + i out of order. A segment with DUP_THRESHOLD
+ * segments sacked after it is resent at once; otherwise it is resent when
+ * its retransmission timeout runs out. The timeout follows the measured
+ * round trip as in RFC 6298 and doubles on every expiry. The link is
+ * expected to keep the frames in order, as the RAW interface does, so a
+ * hole overtaken by later segments is taken as lost.
+ */
+public class RawReliableStream {
+    public static final byte TYPE_DATA = 0x44;
+    public static final byte TYPE_ACK = 0x41;
+    public static final int DATA_HEADER_SIZE = 5;
+    public static final int ACK_SIZE = 13;
+
+    /** The SACK bitmap covers this many segments after the next expected one */
+    public static final int MAX_WINDOW = 64;
+    public static final int DEFAULT_WINDOW = 32;
+    public static final int DEFAULT_SEGMENT_SIZE = 512;
+
+    /** Sacked segments after a hole before it is resent without waiting for the timeout */
+    static final int DUP_THRESHOLD = 3;
+
+    static final long INITIAL_RTO_MS = 200;
+    static final long MIN_RTO_MS = 20;
+    static final long MAX_RTO_MS = 4000;
+
+    /** Writes one frame, false if it can't be sent */
+    public interface Sender {
+        boolean send(byte[] frame);
+    }
+
+    /** Gets the received segments in order, on the receive thread */
+    public interface Listener {
+        void onData(byte[] data, int offset, int length);
+    }
+
+    private static final class Segment {
+        final int seq;
+        final byte[] frame;
+        long sentAt;
+        long deadline;
+        int transmissions = 0;
+        boolean sacked = false;
+
+        Segment(int seq, byte[] frame) {
+            this.seq = seq;
+            this.frame = frame;
+        }
+    }
+
+    private final Sender sender;
+    private final Listener listener;
+    private final ScheduledExecutorService timer;
+    private final int window;
+    private final int segmentSize;
+    private final int sendBuffer;
+
+    /** Sending side, guarded by this */
+    private final ArrayDeque<Segment> unsent = new ArrayDeque<>();
+    private final ArrayDeque<Segment> outstanding = new ArrayDeque<>();
+    private int nextSeq = 0;
+    private long srttNanos = -1;
+    private long rttvarNanos = 0;
+    private long rtoNanos = TimeUnit.MILLISECONDS.toNanos(INITIAL_RTO_MS);
+    private boolean timerArmed = false;
+    private boolean closed = false;
+
+    /** Receiving side, segments held out of order by sequence modulo the array size */
+    private int expected = 0;
+    private final byte[][] reorder = new byte[2 * MAX_WINDOW][];
+
+    private long retransmits = 0;
+    private long fastRetransmits = 0;
+    private long timeouts = 0;
+    private long acked = 0;
+    private long received = 0;
+    private long duplicates = 0;
+
+    /**
+     * @param timer      runs the retransmission timeouts, not owned by the stream
+     * @param window     segments in flight, up to MAX_WINDOW
+     * @param sendBuffer segments queued by write() beyond the window before it blocks
+     */
+    public RawReliableStream(Sender sender, Listener listener, ScheduledExecutorService timer,
+                             int window, int segmentSize, int sendBuffer) {
+        if (window < 1 || window > MAX_WINDOW) {
+            throw new IllegalArgumentException("Invalid reliable stream window " + window);
+        }
+        if (segmentSize < 1 || sendBuffer < 1) {
+            throw new IllegalArgumentException("Invalid reliable stream segment size "
+                    + segmentSize + " or send buffer " + sendBuffer);
+        }
+        this.sender = sender;
+        this.listener = listener;
+        this.timer = timer;
+        this.window = window;
+        this.segmentSize = segmentSize;
+        this.sendBuffer = sendBuffer;
+    }
+
+    /** Overridden by tests */
+    long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Queue the data as segments of up to segmentSize, blocking while the
+     * send buffer is full.
+     * @throws IOException once closed
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            int size = Math.min(segmentSize, end - offset);
+            synchronized (this) {
+                while (!closed && unsent.size() >= sendBuffer) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Reliable stream write interrupted");
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Reliable stream closed");
+                }
+
+                byte[] frame = new byte[DATA_HEADER_SIZE + size];
+                frame[0] = TYPE_DATA;
+                putInt(frame, 1, nextSeq);
+                System.arraycopy(data, offset, frame, DATA_HEADER_SIZE, size);
+                unsent.add(new Segment(nextSeq++, frame));
+                fill();
+            }
+            offset += size;
+        }
+    }
+
+    public void write(byte[] data) throws IOException {
+        write(data, 0, data.length);
+    }
+
+    /**
+     * Wait until every segment written is acked.
+     * @return false on timeout or if closed first
+     */
+    public synchronized boolean flush(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!closed && (!unsent.isEmpty() || !outstanding.isEmpty())) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return !closed;
+    }
+
+    /** Drop what is not acked yet and fail further writes */
+    public synchronized void close() {
+        closed = true;
+        unsent.clear();
+        outstanding.clear();
+        notifyAll();
+    }
+
+    /**
+     * A frame from the other end, on the receive thread.
+     * @return true if it belongs to the stream, and must not be handled as data
+     */
+    public boolean onFrame(byte[] data, int offset, int length) {
+        if (length >= DATA_HEADER_SIZE && data[offset] == TYPE_DATA) {
+            onData(data, offset, length);
+            return true;
+        }
+        if (length == ACK_SIZE && data[offset] == TYPE_ACK) {
+            onAck(getInt(data, offset + 1), getLong(data, offset + 5));
+            return true;
+        }
+        return false;
+    }
+
+    private void onData(byte[] data, int offset, int length) {
+        int seq = getInt(data, offset + 1);
+        int distance = seq - expected;
+        List<byte[]> ready = null;
+        synchronized (this) {
+            received++;
+            if (distance < 0 || distance > MAX_WINDOW || reorder[index(seq)] != null) {
+                /** Already delivered, held or beyond the window; ack again */
+                duplicates++;
+            } else {
+                reorder[index(seq)] = Arrays.copyOfRange(data,
+                        offset + DATA_HEADER_SIZE, offset + length);
+                while (reorder[index(expected)] != null) {
+                    if (ready == null) {
+                        ready = new ArrayList<>();
+                    }
+                    ready.add(reorder[index(expected)]);
+                    reorder[index(expected)] = null;
+                    expected++;
+                }
+            }
+
+            long sack = 0;
+            for (int i = 0; i < MAX_WINDOW; i++) {
+                if (reorder[index(expected + 1 + i)] != null) {
+                    sack |= 1L << i;
+                }
+            }
+            byte[] ack = new byte[ACK_SIZE];
+            ack[0] = TYPE_ACK;
+            putInt(ack, 1, expected);
+            putLong(ack, 5, sack);
+            sender.send(ack);
+        }
+
+        if (ready != null) {
+            for (byte[] segment : ready) {
+                listener.onData(segment, 0, segment.length);
+            }
+        }
+    }
+
+    private int index(int seq) {
+        return seq & (reorder.length - 1);
+    }
+
+    private synchronized void onAck(int next, long sack) {
+        if (closed) {
+            return;
+        }
+
+        long now = now();
+        boolean advanced = false;
+        Segment sample = null;
+        while (!outstanding.isEmpty() && outstanding.peek().seq - next < 0) {
+            Segment segment = outstanding.poll();
+            acked++;
+            advanced = true;
+            if (segment.transmissions == 1 && !segment.sacked) {
+                sample = segment;
+            }
+        }
+        if (sample != null) {
+            /**
+             * Karn: only segments sent once give a round trip, and not those
+             * sacked before, which only waited for a hole to be filled
+             */
+            updateRto(now - sample.sentAt);
+        }
+
+        /** Mark the sacked segments, and count them after each hole */
+        int sackedAfter = 0;
+        Segment[] segments = outstanding.toArray(new Segment[outstanding.size()]);
+        for (int i = segments.length - 1; i >= 0; i--) {
+            Segment segment = segments[i];
+            int bit = segment.seq - next - 1;
+            if (bit >= 0 && bit < MAX_WINDOW && (sack & (1L << bit)) != 0) {
+                segment.sacked = true;
+            }
+            if (segment.sacked) {
+                sackedAfter++;
+            } else if (sackedAfter >= DUP_THRESHOLD
+                    && (segment.transmissions == 1 || now - segment.sentAt >= srtt())) {
+                /** A hole the receiver has seen overtaken; resend at most once per round trip */
+                fastRetransmits++;
+                transmit(segment, now);
+            }
+        }
+
+        if (fill() || advanced) {
+            notifyAll();
+        }
+    }
+
+    private long srtt() {
+        return srttNanos < 0 ? rtoNanos : srttNanos;
+    }
+
+    /** RFC 6298 smoothed round trip and its variation */
+    private void updateRto(long rtt) {
+        if (srttNanos < 0) {
+            srttNanos = rtt;
+            rttvarNanos = rtt / 2;
+        } else {
+            rttvarNanos = (3 * rttvarNanos + Math.abs(srttNanos - rtt)) / 4;
+            srttNanos = (7 * srttNanos + rtt) / 8;
+        }
+        /** Not below MIN_RTO_MS over the round trip, as scheduling delays acks too */
+        rtoNanos = clampRto(srttNanos + Math.max(4 * rttvarNanos,
+                TimeUnit.MILLISECONDS.toNanos(MIN_RTO_MS)));
+    }
+
+    private static long clampRto(long rto) {
+        return Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_RTO_MS),
+                Math.min(rto, TimeUnit.MILLISECONDS.toNanos(MAX_RTO_MS)));
+    }
+
+    /**
+     * Send the unsent segments the window has room for, with the lock held.
+     * @return true if any was sent, so write() may have room
+     */
+    private boolean fill() {
+        long now = now();
+        boolean sent = false;
+        while (!closed && outstanding.size() < window && !unsent.isEmpty()) {
+            Segment segment = unsent.poll();
+            outstanding.add(segment);
+            transmit(segment, now);
+            sent = true;
+        }
+        return sent;
+    }
+
+    private void transmit(Segment segment, long now) {
+        if (segment.transmissions++ > 0) {
+            retransmits++;
+        }
+        segment.sentAt = now;
+        segment.deadline = now + rtoNanos;
+        sender.send(segment.frame);
+        armTimer(segment.deadline - now);
+    }
+
+    private void armTimer(long delayNanos) {
+        if (timerArmed) {
+            return;
+        }
+        timerArmed = true;
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onTimer();
+            }
+        }, Math.max(delayNanos, 0), TimeUnit.NANOSECONDS);
+    }
+
+    /** Resend the segments whose timeout ran out, and wait for the next deadline */
+    private synchronized void onTimer() {
+        timerArmed = false;
+        if (closed || outstanding.isEmpty()) {
+            return;
+        }
+
+        long now = now();
+        boolean expired = false;
+        long next = Long.MAX_VALUE;
+        for (Iterator<Segment> it = outstanding.iterator(); it.hasNext(); ) {
+            Segment segment = it.next();
+            if (segment.sacked) {
+                continue;
+            }
+            if (segment.deadline - now <= 0) {
+                if (!expired) {
+                    /** Back off once per expiry, not per segment */
+                    expired = true;
+                    timeouts++;
+                    rtoNanos = clampRto(rtoNanos * 2);
+                }
+                transmit(segment, now);
+            }
+            next = Math.min(next, segment.deadline - now);
+        }
+        if (next != Long.MAX_VALUE) {
+            armTimer(next);
+        }
+    }
+
+    /** The current retransmission timeout */
+    public synchronized long getRtoMs() {
+        return TimeUnit.NANOSECONDS.toMillis(rtoNanos);
+    }
+
+    /** The smoothed round trip, -1 before the first sample */
+    public synchronized long getSrttMs() {
+        return srttNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(srttNanos);
+    }
+
+    public synchronized long getRetransmitCount() {
+        return retransmits;
+    }
+
+    /** Retransmits on SACK, before the timeout */
+    public synchronized long getFastRetransmitCount() {
+        return fastRetransmits;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return timeouts;
+    }
+
+    public synchronized long getAckedCount() {
+        return acked;
+    }
+
+    /** Data frames received, and those already held or delivered */
+    public synchronized long getReceivedCount() {
+        return received;
+    }
+
+    public synchronized long getDuplicateCount() {
+        return duplicates;
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    private static void putLong(byte[] data, int offset, long value) {
+        putInt(data, offset, (int) (value >> 32));
+        putInt(data, offset + 4, (int) value);
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        return ((long) getInt(data, offset) << 32) | (getInt(data, offset + 4) & 0xFFFFFFFFL);
+    }
+}
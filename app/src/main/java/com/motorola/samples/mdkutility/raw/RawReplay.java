@@ -0,0 +1,145 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One replay of a RawCommandSet to a mod, timed from the start until every
+ * command is written and, with an AckMatcher, until the mod acknowledged
+ * every command in order. Not thread safe, drive it from one thread.
+ */
+public class RawReplay {
+    /** Tells the mod reply acknowledging a command */
+    public interface AckMatcher {
+        boolean isAck(byte[] cmd, byte[] data, int offset, int length);
+    }
+
+    /** Time to restore of a finished replay */
+    public static final class Result {
+        public final int commands;
+        public final int acked;
+        /** Nanoseconds from the start until all commands were written, -1 if not */
+        public final long writtenNanos;
+        /** Nanoseconds until restored: written, or acked with an AckMatcher; -1 if not */
+        public final long restoredNanos;
+
+        Result(int commands, int acked, long writtenNanos, long restoredNanos) {
+            this.commands = commands;
+            this.acked = acked;
+            this.writtenNanos = writtenNanos;
+            this.restoredNanos = restoredNanos;
+        }
+
+        public boolean isRestored() {
+            return restoredNanos >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return "commands:" + commands
+                    + " acked:" + acked
+                    + " writtenUs:" + (writtenNanos < 0 ? -1 : writtenNanos / 1000)
+                    + " restoredUs:" + (restoredNanos < 0 ? -1 : restoredNanos / 1000);
+        }
+    }
+
+    private final List<byte[]> commands;
+    private final AckMatcher matcher;
+    private final long startNanos;
+
+    private long writtenNanos = -1;
+    private int acked = 0;
+    private long ackedNanos = -1;
+    private boolean finished = false;
+
+    /**
+     * @param commands the commands sent, in order
+     * @param matcher  null to count the set restored once written
+     */
+    public RawReplay(List<byte[]> commands, AckMatcher matcher, long startNanos) {
+        this.commands = new ArrayList<>(commands);
+        this.matcher = matcher;
+        this.startNanos = startNanos;
+        if (this.commands.isEmpty()) {
+            writtenNanos = startNanos;
+            ackedNanos = startNanos;
+        }
+    }
+
+    public List<byte[]> getCommands() {
+        return commands;
+    }
+
+    /** All commands were written to the mod */
+    public void onWritten(long nowNanos) {
+        if (writtenNanos < 0 && !finished) {
+            writtenNanos = nowNanos;
+        }
+    }
+
+    /**
+     * Data from the mod. Acks are taken in command order, so a pipelined mod
+     * may ack several commands before the replay sees any.
+     * @return true if the data acknowledged the next command
+     */
+    public boolean onData(byte[] data, int offset, int length, long nowNanos) {
+        if (matcher == null || finished || acked == commands.size()) {
+            return false;
+        }
+        if (!matcher.isAck(commands.get(acked), data, offset, length)) {
+            return false;
+        }
+        if (++acked == commands.size()) {
+            ackedNanos = nowNanos;
+        }
+        return true;
+    }
+
+    /** Whether the commands are written, and acked with an AckMatcher */
+    public boolean isRestored() {
+        if (matcher == null) {
+            return writtenNanos >= 0;
+        }
+        return writtenNanos >= 0 && ackedNanos >= 0;
+    }
+
+    /** Stop tracking, e.g. once restored or on timeout, and report */
+    public Result finish() {
+        finished = true;
+        long written = writtenNanos < 0 ? -1 : writtenNanos - startNanos;
+        long restored = -1;
+        if (isRestored()) {
+            restored = (matcher == null ? writtenNanos : Math.max(writtenNanos, ackedNanos))
+                    - startNanos;
+        }
+        return new Result(commands.size(), acked, written, restored);
+    }
+}
@@ -0,0 +1,403 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Request / reply exchanges with a mod over a framed RAW interface. Every
+ * request goes as one frame tagged with a sequence id, and the mod answers
+ * with a reply frame carrying the same id:
+ *
+ *   [TYPE_REQUEST or TYPE_REPLY] [sequence id, 2 bytes big endian] [payload]
+ *
+ * Up to maxInFlight requests are sent without waiting for the replies,
+ * further calls wait locally for a free slot, so the throughput is bound
+ * by the link rather than the round trip. Replies are matched on the
+ * receive thread by onFrame().
+ */
+public class RawRpc {
+    public static final byte TYPE_REQUEST = 0x51;
+    public static final byte TYPE_REPLY = 0x52;
+    public static final int HEADER_SIZE = 3;
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+    public static final long DEFAULT_TIMEOUT_MS = 1000;
+
+    /** Writes one request frame, false if it can't be sent */
+    public interface Sender {
+        boolean send(byte[] frame);
+    }
+
+    /**
+     * Completion of a call, on the receive thread for a reply or the timer
+     * thread for a timeout; don't block in it.
+     */
+    public interface Callback {
+        void onReply(byte[] reply);
+
+        /** TimeoutException if no reply in time, IOException if not sent or closed */
+        void onFailure(Exception e);
+    }
+
+    /** Handle of one request, get() returns the reply payload */
+    public final class Call implements Future<byte[]> {
+        final byte[] request;
+        final long timeoutMs;
+        final Callback callback;
+
+        /** Guarded by the RawRpc */
+        int seq = -1;
+        ScheduledFuture<?> timeout;
+
+        private volatile boolean done = false;
+        private volatile boolean cancelled = false;
+        private volatile byte[] reply;
+        private volatile Exception failure;
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        Call(byte[] request, long timeoutMs, Callback callback) {
+            this.request = request;
+            this.timeoutMs = timeoutMs;
+            this.callback = callback;
+        }
+
+        /** The sequence id, -1 while waiting for a slot */
+        public int getSequence() {
+            return seq;
+        }
+
+        /** Returns false if already done */
+        private boolean complete(byte[] reply, Exception failure) {
+            synchronized (this) {
+                if (done) {
+                    return false;
+                }
+                this.reply = reply;
+                this.failure = failure;
+                /** Along with done, so a cancelled call never looks done but not cancelled */
+                cancelled = failure instanceof CancellationException;
+                done = true;
+            }
+
+            /** Before get() returns, so the callback has run by then */
+            if (callback != null) {
+                if (failure == null) {
+                    callback.onReply(reply);
+                } else {
+                    callback.onFailure(failure);
+                }
+            }
+            latch.countDown();
+            return true;
+        }
+
+        /**
+         * Drop the call, a reply which comes later is ignored. get() throws
+         * CancellationException, the callback gets it in onFailure().
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return RawRpc.this.cancel(this);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public byte[] get() throws InterruptedException, ExecutionException {
+            latch.await();
+            return result();
+        }
+
+        @Override
+        public byte[] get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!latch.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        private byte[] result() throws ExecutionException {
+            if (cancelled) {
+                throw (CancellationException) failure;
+            }
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return reply;
+        }
+    }
+
+    private final Sender sender;
+    private final ScheduledExecutorService timer;
+    private final int maxInFlight;
+
+    /** Sent calls by sequence id, and the calls waiting for a slot */
+    private final HashMap<Integer, Call> inFlight = new HashMap<>();
+    private final ArrayDeque<Call> waiting = new ArrayDeque<>();
+    private int nextSeq = 0;
+    private boolean closed = false;
+
+    private long replied = 0;
+    private long timedOut = 0;
+    private long unmatched = 0;
+
+    /**
+     * @param timer runs the timeouts, not owned by the RawRpc
+     */
+    public RawRpc(Sender sender, ScheduledExecutorService timer, int maxInFlight) {
+        if (maxInFlight < 1 || maxInFlight > 0x10000) {
+            throw new IllegalArgumentException("Invalid RPC max in flight " + maxInFlight);
+        }
+        this.sender = sender;
+        this.timer = timer;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /** Send a request with the default timeout, get() the reply from the returned call */
+    public Call call(byte[] request) {
+        return call(request, DEFAULT_TIMEOUT_MS, null);
+    }
+
+    /**
+     * Send a request, or queue it until a slot is free.
+     * @param timeoutMs time for the reply from the request being sent
+     * @param callback  notified once done, may be null
+     */
+    public Call call(byte[] request, long timeoutMs, Callback callback) {
+        Call call = new Call(request, timeoutMs, callback);
+        boolean send;
+        synchronized (this) {
+            if (closed) {
+                send = false;
+            } else if (inFlight.size() >= maxInFlight) {
+                waiting.add(call);
+                return call;
+            } else {
+                start(call);
+                send = true;
+            }
+        }
+
+        if (send) {
+            send(call);
+        } else {
+            call.complete(null, new IOException("RPC closed"));
+        }
+        return call;
+    }
+
+    /** Give the call a free sequence id and arm its timeout, with the lock held */
+    private void start(final Call call) {
+        while (inFlight.containsKey(nextSeq)) {
+            nextSeq = (nextSeq + 1) & 0xFFFF;
+        }
+        call.seq = nextSeq;
+        nextSeq = (nextSeq + 1) & 0xFFFF;
+        inFlight.put(call.seq, call);
+
+        call.timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onTimeout(call);
+            }
+        }, call.timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void send(Call call) {
+        byte[] frame = new byte[HEADER_SIZE + call.request.length];
+        frame[0] = TYPE_REQUEST;
+        frame[1] = (byte) (call.seq >> 8);
+        frame[2] = (byte) call.seq;
+        System.arraycopy(call.request, 0, frame, HEADER_SIZE, call.request.length);
+
+        if (!sender.send(frame)) {
+            fail(call, new IOException("RAW I/O not ready"));
+        }
+    }
+
+    /**
+     * A frame from the mod, on the receive thread.
+     * @return true if it is a reply frame, which must not be handled as data
+     */
+    public boolean onFrame(byte[] data, int offset, int length) {
+        if (length < HEADER_SIZE || data[offset] != TYPE_REPLY) {
+            return false;
+        }
+
+        int seq = ((data[offset + 1] & 0xFF) << 8) | (data[offset + 2] & 0xFF);
+        Call call;
+        synchronized (this) {
+            call = inFlight.remove(seq);
+            if (call == null) {
+                /** Late reply to a call timed out or cancelled */
+                unmatched++;
+                return true;
+            }
+            replied++;
+            call.timeout.cancel(false);
+        }
+
+        byte[] reply = new byte[length - HEADER_SIZE];
+        System.arraycopy(data, offset + HEADER_SIZE, reply, 0, reply.length);
+        call.complete(reply, null);
+        sendWaiting();
+        return true;
+    }
+
+    private void onTimeout(Call call) {
+        synchronized (this) {
+            if (inFlight.get(call.seq) != call) {
+                return;
+            }
+            inFlight.remove(call.seq);
+            timedOut++;
+        }
+        call.complete(null, new TimeoutException("No reply to RPC " + call.seq
+                + " in " + call.timeoutMs + " ms"));
+        sendWaiting();
+    }
+
+    private void fail(Call call, Exception e) {
+        synchronized (this) {
+            if (call.seq >= 0 && inFlight.get(call.seq) == call) {
+                inFlight.remove(call.seq);
+                call.timeout.cancel(false);
+            }
+        }
+        call.complete(null, e);
+        sendWaiting();
+    }
+
+    private boolean cancel(Call call) {
+        synchronized (this) {
+            if (call.done) {
+                return false;
+            }
+            if (!waiting.remove(call) && inFlight.get(call.seq) == call) {
+                inFlight.remove(call.seq);
+                call.timeout.cancel(false);
+            }
+        }
+        if (!call.complete(null, new CancellationException("RPC cancelled"))) {
+            return false;
+        }
+        sendWaiting();
+        return true;
+    }
+
+    /** Send the waiting calls which now have a slot */
+    private void sendWaiting() {
+        List<Call> ready = null;
+        synchronized (this) {
+            while (!closed && !waiting.isEmpty() && inFlight.size() < maxInFlight) {
+                Call call = waiting.poll();
+                start(call);
+                if (ready == null) {
+                    ready = new ArrayList<>();
+                }
+                ready.add(call);
+            }
+        }
+
+        if (ready != null) {
+            for (Call call : ready) {
+                send(call);
+            }
+        }
+    }
+
+    /** Fail the calls sent or waiting, e.g. as the RAW I/O closed; new calls go on */
+    public void failPending(Exception e) {
+        List<Call> pending = new ArrayList<>();
+        synchronized (this) {
+            for (Call call : inFlight.values()) {
+                call.timeout.cancel(false);
+                pending.add(call);
+            }
+            inFlight.clear();
+            pending.addAll(waiting);
+            waiting.clear();
+        }
+
+        for (Call call : pending) {
+            call.complete(null, e);
+        }
+    }
+
+    /** Fail the pending calls and all further ones */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        failPending(new IOException("RPC closed"));
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    public synchronized long getRepliedCount() {
+        return replied;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return timedOut;
+    }
+
+    /** Replies which matched no call in flight */
+    public synchronized long getUnmatchedCount() {
+        return unmatched;
+    }
+}
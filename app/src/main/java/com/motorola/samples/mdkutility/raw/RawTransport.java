@@ -0,0 +1,69 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The byte transport over the RAW channel file descriptor. The receive path
+ * reads into pooled heap buffers. The send path writes coalesced heap batches,
+ * or, when the transport is Gathering, hands it every frame of a batch on its
+ * own for one gathering write.
+ */
+public interface RawTransport {
+    enum Type {
+        /** FileInputStream / FileOutputStream over heap arrays, see RawStreamTransport */
+        STREAM,
+        /** FileChannel over direct buffers with gathering writes, see RawChannelTransport */
+        CHANNEL
+    }
+
+    /**
+     * A transport which writes a batch of frames with one gathering system
+     * call, so RawWriteQueue puts each frame in its own buffer instead of
+     * coalescing the batch into one array first.
+     */
+    interface Gathering {
+        /** The most frames in one writeFrames() */
+        int getMaxFrames();
+
+        /** The cleared buffer for frame index of the next batch, with room for size bytes */
+        ByteBuffer frame(int index, int size);
+
+        /** Write frames 0 to count - 1 as filled, whole and in order */
+        void writeFrames(int count) throws IOException;
+    }
+
+    /** Read into the array, same contract as InputStream.read() */
+    int read(byte[] buffer, int offset, int length) throws IOException;
+
+    /** Write the whole range */
+    void write(byte[] data, int offset, int length) throws IOException;
+}
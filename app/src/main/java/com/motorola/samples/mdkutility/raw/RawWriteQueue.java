@@ -0,0 +1,436 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pending RAW commands for the sending thread. Commands queued while the
+ * sending thread is busy, or within the batch delay, are drained together
+ * into one write of up to maxBatchBytes: coalesced into one array, or as
+ * separate frames of one gathering write when the transport is Gathering.
+ */
+public class RawWriteQueue {
+    /** Per-batch report from the sending thread */
+    public interface BatchListener {
+        /**
+         * A batch was written.
+         * @param commands the number of commands in the batch
+         * @param bytes the number of bytes written
+         * @param latencyNanos from the oldest command queued to the write done
+         */
+        void onBatch(int commands, int bytes, long latencyNanos);
+    }
+
+    /** Totals since the queue was created */
+    public static class Stats {
+        public long batches;
+        public long commands;
+        public long bytes;
+        public int maxBatchCommands;
+        public long totalLatencyNanos;
+        public long maxLatencyNanos;
+
+        @Override
+        public String toString() {
+            return "batches:" + batches + " commands:" + commands + " bytes:" + bytes
+                    + " maxBatchCommands:" + maxBatchCommands
+                    + " avgLatencyUs:" + (batches == 0 ? 0 : totalLatencyNanos / batches / 1000)
+                    + " maxLatencyUs:" + maxLatencyNanos / 1000;
+        }
+    }
+
+    /** Ring of pending commands and their queue time, grown when full */
+    private byte[][] pending = new byte[16][];
+    private long[] queuedAt = new long[16];
+    private int head = 0;
+    private int count = 0;
+    private int pendingBytes = 0;
+
+    /** Coalescing buffer, only touched by the sending thread */
+    private int maxBatchBytes;
+    private byte[] batch;
+    private int batchLength;
+    private int batchCommands;
+    private long batchStart;
+
+    /** Frame every command when set */
+    private RawFrameCodec codec;
+
+    private final Stats stats = new Stats();
+    private BatchListener batchListener;
+
+    /** Commands offered and written since created, to tell when a mark is reached */
+    private long offered = 0;
+    private long written = 0;
+
+    /**
+     * Bumped by clear(), which counts a batch in flight as done. Its
+     * onBatchWritten() then comes with an older generation and isn't counted.
+     */
+    private long generation = 0;
+    private long batchGeneration;
+
+    /** Callbacks waiting for the commands offered before them to be written */
+    private final ArrayDeque<Mark> marks = new ArrayDeque<>();
+
+    private static final class Mark {
+        final long position;
+        final Runnable onWritten;
+        final Runnable onFailed;
+
+        Mark(long position, Runnable onWritten, Runnable onFailed) {
+            this.position = position;
+            this.onWritten = onWritten;
+            this.onFailed = onFailed;
+        }
+    }
+
+    /**
+     * @param maxBatchBytes the largest coalesced write, 0 or 1 to write
+     *                      every command on its own
+     */
+    public RawWriteQueue(int maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+        batch = new byte[Math.max(maxBatchBytes, 1)];
+    }
+
+    /**
+     * Change the largest coalesced write, the pending commands and the marks
+     * are kept; it takes effect from the next batch.
+     */
+    public synchronized void setMaxBatchBytes(int maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+        if (batch.length < maxBatchBytes) {
+            /** The sending thread may still write the old one */
+            batch = new byte[maxBatchBytes];
+        }
+    }
+
+    public synchronized int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    /** Encode every command as one frame with the codec, null to write as is */
+    public synchronized void setFrameCodec(RawFrameCodec codec) {
+        this.codec = codec;
+    }
+
+    public synchronized void setBatchListener(BatchListener listener) {
+        batchListener = listener;
+    }
+
+    /**
+     * Queue a command.
+     * @return true if the queue was empty, so the caller must schedule a drain
+     */
+    public synchronized boolean offer(byte[] cmd) {
+        if (count == pending.length) {
+            grow();
+        }
+
+        int tail = (head + count) % pending.length;
+        pending[tail] = cmd;
+        queuedAt[tail] = System.nanoTime();
+        pendingBytes += cmd.length;
+        offered++;
+        return ++count == 1;
+    }
+
+    /**
+     * Run onWritten on the sending thread once every command offered so far
+     * is written, or right away if there is none pending.
+     */
+    public void mark(Runnable onWritten) {
+        mark(onWritten, null);
+    }
+
+    /**
+     * Run onWritten once every command offered so far is written, or onFailed
+     * if clear() drops any of them first. Either may be null.
+     */
+    public void mark(Runnable onWritten, Runnable onFailed) {
+        synchronized (this) {
+            if (written < offered) {
+                marks.add(new Mark(offered, onWritten, onFailed));
+                return;
+            }
+        }
+        if (onWritten != null) {
+            onWritten.run();
+        }
+    }
+
+    private void grow() {
+        byte[][] cmds = new byte[pending.length * 2][];
+        long[] times = new long[pending.length * 2];
+        for (int i = 0; i < count; i++) {
+            cmds[i] = pending[(head + i) % pending.length];
+            times[i] = queuedAt[(head + i) % pending.length];
+        }
+        pending = cmds;
+        queuedAt = times;
+        head = 0;
+    }
+
+    /** Whether the pending commands already fill a batch */
+    public synchronized boolean isBatchFull() {
+        return maxBatchBytes > 1 && pendingBytes >= maxBatchBytes;
+    }
+
+    public synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Drop the pending commands, e.g. when the RAW interface closed or a write
+     * failed, and fail the marks waiting for them.
+     */
+    public void clear() {
+        List<Runnable> failed = null;
+        synchronized (this) {
+            while (count > 0) {
+                take();
+            }
+
+            /** The dropped commands will never be written */
+            while (!marks.isEmpty()) {
+                Runnable onFailed = marks.poll().onFailed;
+                if (onFailed != null) {
+                    if (failed == null) {
+                        failed = new ArrayList<>();
+                    }
+                    failed.add(onFailed);
+                }
+            }
+            written = offered;
+            generation++;
+        }
+
+        if (failed != null) {
+            for (Runnable onFailed : failed) {
+                onFailed.run();
+            }
+        }
+    }
+
+    /**
+     * Take the next batch. Commands are copied, or encoded as frames, into the
+     * coalescing buffer up to maxBatchBytes; a command larger than that goes
+     * on its own.
+     * @return the array to write from offset 0 up to batchLength(), or null if empty
+     */
+    synchronized byte[] nextBatch() {
+        batchCommands = 0;
+        batchLength = 0;
+        if (count == 0) {
+            return null;
+        }
+
+        batchStart = queuedAt[head];
+        batchGeneration = generation;
+        byte[] cmd = pending[head];
+        if (codec == null && (maxBatchBytes <= 1 || cmd.length >= maxBatchBytes)) {
+            /** Nothing to coalesce or encode, write the command array itself */
+            take();
+            batchCommands = 1;
+            batchLength = cmd.length;
+            return cmd;
+        }
+
+        while (true) {
+            int size = codec == null ? cmd.length : codec.maxEncodedLength(cmd.length);
+            if (batchCommands > 0 && batchLength + size > maxBatchBytes) {
+                break;
+            }
+            if (size > batch.length) {
+                /** Only for the first command of a batch, keep the larger buffer */
+                batch = new byte[size];
+            }
+
+            take();
+            if (codec == null) {
+                System.arraycopy(cmd, 0, batch, batchLength, cmd.length);
+                batchLength += cmd.length;
+            } else {
+                batchLength += codec.encode(cmd, 0, cmd.length, batch, batchLength);
+            }
+            batchCommands++;
+
+            if (maxBatchBytes <= 1 || count == 0) {
+                break;
+            }
+            cmd = pending[head];
+        }
+        return batch;
+    }
+
+    /**
+     * Take the next batch as frames of a gathering write. Every command, or
+     * its encoded frame, goes into its own buffer of the transport, up to
+     * maxBatchBytes and the transport's frame limit, as nextBatch() would
+     * batch them, but without coalescing.
+     * @return the number of frames filled, 0 if empty
+     */
+    synchronized int nextBatch(RawTransport.Gathering out) {
+        batchCommands = 0;
+        batchLength = 0;
+        if (count == 0) {
+            return 0;
+        }
+
+        batchStart = queuedAt[head];
+        batchGeneration = generation;
+        int maxFrames = out.getMaxFrames();
+        while (true) {
+            byte[] cmd = pending[head];
+            int size = codec == null ? cmd.length : codec.maxEncodedLength(cmd.length);
+            if (batchCommands > 0
+                    && (batchLength + size > maxBatchBytes || batchCommands == maxFrames)) {
+                break;
+            }
+
+            take();
+            ByteBuffer frame = out.frame(batchCommands, size);
+            if (codec == null) {
+                frame.put(cmd);
+            } else {
+                /** The codecs encode into arrays, the coalescing buffer is free here */
+                if (size > batch.length) {
+                    batch = new byte[size];
+                }
+                frame.put(batch, 0, codec.encode(cmd, 0, cmd.length, batch, 0));
+            }
+            batchLength += frame.position();
+            batchCommands++;
+
+            if (maxBatchBytes <= 1 || count == 0) {
+                break;
+            }
+        }
+        return batchCommands;
+    }
+
+    /**
+     * Write the next batch through the transport, gathered if it is Gathering
+     * and coalesced otherwise, then report it written.
+     * @return false if nothing was pending
+     * @throws IOException from the transport, the batch is then lost and the
+     *                     caller is expected to clear()
+     */
+    boolean writeNext(RawTransport transport) throws IOException {
+        if (transport instanceof RawTransport.Gathering) {
+            RawTransport.Gathering gathering = (RawTransport.Gathering) transport;
+            int frames = nextBatch(gathering);
+            if (frames == 0) {
+                return false;
+            }
+            gathering.writeFrames(frames);
+        } else {
+            byte[] data = nextBatch();
+            if (data == null) {
+                return false;
+            }
+            transport.write(data, 0, batchLength);
+        }
+        onBatchWritten();
+        return true;
+    }
+
+    /** The valid length of the array returned by nextBatch() */
+    int batchLength() {
+        return batchLength;
+    }
+
+    private void take() {
+        pendingBytes -= pending[head].length;
+        pending[head] = null;
+        head = (head + 1) % pending.length;
+        count--;
+    }
+
+    /** The last batch from nextBatch() was written */
+    void onBatchWritten() {
+        long latency = System.nanoTime() - batchStart;
+        BatchListener listener;
+        List<Runnable> reached = null;
+        synchronized (this) {
+            stats.batches++;
+            stats.commands += batchCommands;
+            stats.bytes += batchLength;
+            stats.totalLatencyNanos += latency;
+            if (batchCommands > stats.maxBatchCommands) {
+                stats.maxBatchCommands = batchCommands;
+            }
+            if (latency > stats.maxLatencyNanos) {
+                stats.maxLatencyNanos = latency;
+            }
+            listener = batchListener;
+
+            /** A batch in flight when clear() ran was counted already */
+            if (batchGeneration == generation) {
+                written += batchCommands;
+            }
+            while (!marks.isEmpty() && marks.peek().position <= written) {
+                if (reached == null) {
+                    reached = new ArrayList<>();
+                }
+                Runnable onWritten = marks.poll().onWritten;
+                if (onWritten != null) {
+                    reached.add(onWritten);
+                }
+            }
+        }
+
+        if (listener != null) {
+            listener.onBatch(batchCommands, batchLength, latency);
+        }
+        if (reached != null) {
+            for (Runnable onWritten : reached) {
+                onWritten.run();
+            }
+        }
+    }
+
+    /** Get a copy of the totals */
+    public synchronized Stats getStats() {
+        Stats copy = new Stats();
+        copy.batches = stats.batches;
+        copy.commands = stats.commands;
+        copy.bytes = stats.bytes;
+        copy.maxBatchCommands = stats.maxBatchCommands;
+        copy.totalLatencyNanos = stats.totalLatencyNanos;
+        copy.maxLatencyNanos = stats.maxLatencyNanos;
+        return copy;
+    }
+}
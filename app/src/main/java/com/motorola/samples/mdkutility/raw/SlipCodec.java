@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+/**
+ * SLIP framing, refer to RFC 1055: frames are wrapped in END bytes, and END
+ * or ESC bytes in the payload are escaped.
+ */
+public class SlipCodec implements RawFrameCodec {
+    private static final byte END = (byte) 0xC0;
+    private static final byte ESC = (byte) 0xDB;
+    private static final byte ESC_END = (byte) 0xDC;
+    private static final byte ESC_ESC = (byte) 0xDD;
+
+    @Override
+    public Decoder newDecoder(int maxFrameSize) {
+        return new DelimitedDecoder(END, maxFrameSize * 2) {
+            @Override
+            int decode(byte[] data, int offset, int length) {
+                int end = offset + length;
+                int write = offset;
+                for (int read = offset; read < end; read++) {
+                    byte b = data[read];
+                    if (b == ESC) {
+                        if (++read == end) {
+                            return -1;
+                        }
+                        if (data[read] == ESC_END) {
+                            b = END;
+                        } else if (data[read] == ESC_ESC) {
+                            b = ESC;
+                        } else {
+                            return -1;
+                        }
+                    }
+                    data[write++] = b;
+                }
+                return write - offset;
+            }
+        };
+    }
+
+    @Override
+    public int maxEncodedLength(int length) {
+        return length * 2 + 2;
+    }
+
+    @Override
+    public int encode(byte[] payload, int offset, int length, byte[] out, int outOffset) {
+        int write = outOffset;
+
+        /** A leading END flushes any line noise on the receiver */
+        out[write++] = END;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = payload[i];
+            if (b == END) {
+                out[write++] = ESC;
+                out[write++] = ESC_END;
+            } else if (b == ESC) {
+                out[write++] = ESC;
+                out[write++] = ESC_ESC;
+            } else {
+                out[write++] = b;
+            }
+        }
+        out[write++] = END;
+        return write - outOffset;
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ListenerBus fan-out to many listeners from many threads.
+ */
+public class ListenerBusTest {
+    private static final int LISTENERS = 8;
+    private static final int POSTERS = 4;
+    private static final int EVENTS = 50000;
+
+    /** Checks every event it gets is intact, ~arg1 in arg2 and the poster's token in obj */
+    private static class CheckingListener implements PersonalityListener {
+        final Object[] tokens;
+        final AtomicLong received = new AtomicLong();
+        final AtomicLong corrupted = new AtomicLong();
+
+        CheckingListener(Object[] tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        public void onPersonalityEvent(PersonalityEvent event) {
+            int what = event.what;
+            int arg1 = event.arg1;
+            Thread.yield();
+            if (event.what != what || event.arg2 != ~arg1 || event.obj != tokens[what]) {
+                corrupted.incrementAndGet();
+            }
+            received.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void everyListenerGetsEveryEventIntact() throws Exception {
+        final ListenerBus bus = new ListenerBus();
+        final Object[] tokens = new Object[POSTERS];
+        for (int i = 0; i < POSTERS; i++) {
+            tokens[i] = new Object();
+        }
+        CheckingListener[] listeners = new CheckingListener[LISTENERS];
+        for (int i = 0; i < LISTENERS; i++) {
+            listeners[i] = new CheckingListener(tokens);
+            bus.add(listeners[i]);
+        }
+
+        /** Listeners come and go while posting */
+        final AtomicBoolean posting = new AtomicBoolean(true);
+        final CheckingListener churning = new CheckingListener(tokens);
+        Thread churn = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (posting.get()) {
+                    bus.add(churning);
+                    Thread.yield();
+                    assertTrue(bus.remove(churning));
+                }
+            }
+        });
+        churn.start();
+
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] posters = new Thread[POSTERS];
+        for (int i = 0; i < POSTERS; i++) {
+            final int what = i;
+            posters[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int seq = 0; seq < EVENTS; seq++) {
+                        bus.post(what, seq, ~seq, tokens[what]);
+                    }
+                }
+            });
+            posters[i].start();
+        }
+        start.countDown();
+        for (Thread poster : posters) {
+            poster.join(60000);
+        }
+        posting.set(false);
+        churn.join(5000);
+
+        for (CheckingListener listener : listeners) {
+            assertEquals((long) POSTERS * EVENTS, listener.received.get());
+            assertEquals(0, listener.corrupted.get());
+        }
+        assertEquals(0, churning.corrupted.get());
+        assertEquals(LISTENERS, bus.size());
+    }
+
+    @Test
+    public void removedListenerGetsNoMoreEvents() {
+        ListenerBus bus = new ListenerBus();
+        CheckingListener kept = new CheckingListener(new Object[]{null});
+        CheckingListener removed = new CheckingListener(new Object[]{null});
+        bus.add(kept);
+        bus.add(removed);
+        bus.post(0, 1, ~1, null);
+
+        assertTrue(bus.remove(removed));
+        assertFalse(bus.remove(removed));
+        bus.post(0, 2, ~2, null);
+
+        assertEquals(2, kept.received.get());
+        assertEquals(1, removed.received.get());
+    }
+
+    @Test
+    public void postDoesNotAllocatePerListener() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        ListenerBus bus = new ListenerBus();
+        final long[] sum = new long[1];
+        for (int i = 0; i < 16; i++) {
+            bus.add(new PersonalityListener() {
+                @Override
+                public void onPersonalityEvent(PersonalityEvent event) {
+                    sum[0] += event.arg1;
+                }
+            });
+        }
+        Object token = new Object();
+        for (int i = 0; i < EVENTS; i++) {
+            bus.post(Personality.MSG_RAW_DATA, i, 0, token);
+        }
+
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < EVENTS; i++) {
+            bus.post(Personality.MSG_RAW_DATA, i, 0, token);
+        }
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        /** Any per-post object would cost at least 16 bytes a post */
+        assertTrue("posting allocated " + allocated + " bytes in " + EVENTS + " posts",
+                allocated < EVENTS);
+        assertTrue(sum[0] > 0);
+    }
+}
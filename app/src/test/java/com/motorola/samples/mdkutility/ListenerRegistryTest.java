@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ListenerRegistry changes while events are firing.
+ */
+public class ListenerRegistryTest {
+    private static final int FIRING_THREADS = 4;
+    private static final int CHURN_THREADS = 4;
+    private static final int EVENTS = 20000;
+
+    private static class Counter {
+        final AtomicLong count = new AtomicLong();
+    }
+
+    private static final ListenerRegistry.Dispatcher<Counter, Object> COUNT =
+            new ListenerRegistry.Dispatcher<Counter, Object>() {
+                @Override
+                public void dispatch(Counter listener, Object event) {
+                    listener.count.incrementAndGet();
+                }
+            };
+
+    @Test
+    public void registerAndUnregisterWhileFiring() throws Exception {
+        final ListenerRegistry<Counter> registry = new ListenerRegistry<>();
+        Counter[] permanent = new Counter[4];
+        for (int i = 0; i < permanent.length; i++) {
+            permanent[i] = new Counter();
+            registry.add(permanent[i]);
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicBoolean firing = new AtomicBoolean(true);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] churners = new Thread[CHURN_THREADS];
+        for (int i = 0; i < CHURN_THREADS; i++) {
+            churners[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (firing.get()) {
+                            Counter strong = new Counter();
+                            Counter weak = new Counter();
+                            Object key = new Object();
+                            registry.add(strong);
+                            registry.addWeak(weak);
+                            registry.add(new Counter(), key, false);
+                            assertTrue(registry.remove(strong));
+                            assertTrue(registry.remove(weak));
+                            assertTrue(registry.remove(key));
+                            assertFalse(registry.remove(key));
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+            churners[i].start();
+        }
+
+        Thread[] firers = new Thread[FIRING_THREADS];
+        for (int i = 0; i < FIRING_THREADS; i++) {
+            firers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int n = 0; n < EVENTS; n++) {
+                            registry.dispatch(COUNT, null);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+            firers[i].start();
+        }
+
+        start.countDown();
+        for (Thread firer : firers) {
+            firer.join(60000);
+        }
+        firing.set(false);
+        for (Thread churner : churners) {
+            churner.join(5000);
+        }
+
+        assertNull(failure.get());
+        for (Counter counter : permanent) {
+            assertEquals((long) FIRING_THREADS * EVENTS, counter.count.get());
+        }
+        assertEquals(permanent.length, registry.size());
+    }
+
+    @Test
+    public void weakListenerGoesAwayWithItsKey() throws Exception {
+        ListenerRegistry<Counter> registry = new ListenerRegistry<>();
+        Counter kept = new Counter();
+        registry.add(kept);
+        registry.addWeak(new Counter());
+        registry.add(new Counter(), new Object(), true);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (registry.size() > 1 && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, registry.size());
+
+        registry.dispatch(COUNT, null);
+        assertEquals(1, kept.count.get());
+    }
+
+    @Test
+    public void removeTakesTheKey() {
+        ListenerRegistry<Counter> registry = new ListenerRegistry<>();
+        Counter listener = new Counter();
+        Object key = new Object();
+        registry.add(listener, key, false);
+
+        assertFalse(registry.remove(listener));
+        assertTrue(registry.remove(key));
+        registry.dispatch(COUNT, null);
+        assertEquals(0, listener.count.get());
+        assertEquals(0, registry.size());
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ModDeviceMatcher criteria.
+ */
+public class ModDeviceMatcherTest {
+    @Test
+    public void vendorAndProductMasks() {
+        ModDeviceMatcher blinky = ModDeviceMatcher.forProduct(Constants.VID_MDK,
+                Constants.PID_BLINKY);
+        assertTrue(blinky.matches(Constants.VID_MDK, Constants.PID_BLINKY, null, null));
+        assertFalse(blinky.matches(Constants.VID_MDK, Constants.PID_DEVELOPER, null, null));
+        assertEquals(Constants.PID_BLINKY, blinky.getExactProductId());
+
+        /** Any product of the 0x0001xxxx family */
+        ModDeviceMatcher family = new ModDeviceMatcher.Builder()
+                .vendor(Constants.VID_MDK)
+                .product(0x00010000, 0xFFFF0000)
+                .build();
+        assertTrue(family.matches(Constants.VID_MDK, Constants.PID_BLINKY, null, null));
+        assertFalse(family.matches(Constants.VID_MDK, 0x00020403, null, null));
+        assertEquals(Constants.INVALID_ID, family.getExactProductId());
+    }
+
+    @Test
+    public void anyOfMatchesEither() {
+        ModDeviceMatcher blinky = Constants.MATCH_BLINKY;
+        assertTrue(blinky.matches(Constants.VID_DEVELOPER, 0x1234, null, null));
+        assertTrue(blinky.matches(Constants.VID_MDK, Constants.PID_BLINKY, null, null));
+        assertFalse(blinky.matches(Constants.VID_MDK, 0x1234, null, null));
+        assertEquals(Constants.INVALID_ID, blinky.getExactVendorId());
+        assertTrue(ModDeviceMatcher.ANY.matches(0, 0, null, null));
+    }
+
+    @Test
+    public void invalidVendorMatchesAnyDevice() {
+        assertTrue(ModDeviceMatcher.forProduct(Constants.INVALID_ID, Constants.INVALID_ID)
+                .matches(Constants.VID_MDK, Constants.PID_BLINKY, null, null));
+        assertTrue(ModDeviceMatcher.forProduct(Constants.INVALID_ID, Constants.PID_BLINKY)
+                .matches(Constants.VID_DEVELOPER, 0x1234, null, null));
+        assertEquals(Constants.INVALID_ID, ModDeviceMatcher.forProduct(Constants.INVALID_ID,
+                Constants.INVALID_ID).getExactVendorId());
+    }
+
+    @Test
+    public void productNameAndFirmwareRange() {
+        ModDeviceMatcher matcher = new ModDeviceMatcher.Builder()
+                .productName("Blinky.*")
+                .firmware("1.2", "1.10")
+                .build();
+        assertTrue(matcher.matches(0, 0, "Blinky Card", "1.2"));
+        assertTrue(matcher.matches(0, 0, "Blinky Card", "1.9.3"));
+        assertTrue(matcher.matches(0, 0, "Blinky Card", "1.10"));
+        assertFalse(matcher.matches(0, 0, "Blinky Card", "1.10.1"));
+        assertFalse(matcher.matches(0, 0, "Blinky Card", "1.1.9"));
+        assertFalse(matcher.matches(0, 0, "Blinky Card", null));
+        assertFalse(matcher.matches(0, 0, "Other", "1.5"));
+        assertFalse(matcher.matches(0, 0, null, "1.5"));
+    }
+
+    @Test
+    public void versionSegments() {
+        /** Decimal segments, the x only separates them */
+        assertArrayEquals(new int[]{0, 103}, ModDeviceMatcher.parseVersion("0x0103"));
+        assertEquals(0, ModDeviceMatcher.compareVersion("0x0103",
+                ModDeviceMatcher.parseVersion("0x103")));
+        assertEquals(0, ModDeviceMatcher.compareVersion("2.0.0",
+                ModDeviceMatcher.parseVersion("2")));
+        assertEquals(1, ModDeviceMatcher.compareVersion("2.0.1",
+                ModDeviceMatcher.parseVersion("2")));
+        assertEquals(-1, ModDeviceMatcher.compareVersion("",
+                ModDeviceMatcher.parseVersion("0.1")));
+    }
+}
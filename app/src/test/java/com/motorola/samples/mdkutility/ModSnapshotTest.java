@@ -0,0 +1,180 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility;
+
+import com.motorola.mod.ModDevice;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ModSnapshot lookups and the deltas between two mod lists.
+ */
+public class ModSnapshotTest {
+    /** A mod device as ModManager reports it */
+    private static class FakeModDevice extends ModDevice {
+        final UUID uniqueId;
+        final int vid;
+        final int pid;
+        final String firmware;
+
+        FakeModDevice(UUID uniqueId, int vid, int pid, String firmware) {
+            this.uniqueId = uniqueId;
+            this.vid = vid;
+            this.pid = pid;
+            this.firmware = firmware;
+        }
+
+        @Override
+        public UUID getUniqueId() {
+            return uniqueId;
+        }
+
+        @Override
+        public int getVendorId() {
+            return vid;
+        }
+
+        @Override
+        public int getProductId() {
+            return pid;
+        }
+
+        @Override
+        public String getProductString() {
+            return "Mod " + Integer.toHexString(pid);
+        }
+
+        @Override
+        public String getFirmwareVersion() {
+            return firmware;
+        }
+
+        @Override
+        public String getFirmwareType() {
+            return null;
+        }
+    }
+
+    private static final UUID A = new UUID(0, 1);
+    private static final UUID B = new UUID(0, 2);
+    private static final UUID C = new UUID(0, 3);
+
+    private static ModDevice blinky(UUID id, String firmware) {
+        return new FakeModDevice(id, Constants.VID_MDK, Constants.PID_BLINKY, firmware);
+    }
+
+    private static ModSnapshot snapshot(long version, ModDevice... devices) {
+        return ModSnapshot.of(version, Arrays.asList(devices));
+    }
+
+    @Test
+    public void sameListHasNoDeltas() {
+        /** Every enumeration makes new ModDevice objects for the same mods */
+        ModSnapshot older = snapshot(1, blinky(A, "1.0"), blinky(B, "1.0"));
+        ModSnapshot newer = snapshot(2, blinky(A, "1.0"), blinky(B, "1.0"));
+        assertTrue(older.diff(newer).isEmpty());
+        assertTrue(ModSnapshot.EMPTY.diff(ModSnapshot.of(3, null)).isEmpty());
+    }
+
+    @Test
+    public void attachDetachAndChange() {
+        ModDevice a = blinky(A, "1.0");
+        ModDevice b = blinky(B, "1.0");
+        ModDevice newA = blinky(A, "1.1");
+        ModDevice c = blinky(C, "1.0");
+        List<ModSnapshot.Delta> deltas = snapshot(1, a, b).diff(snapshot(2, newA, c));
+
+        /** Changes and detaches in the older order, then the attaches */
+        assertEquals(3, deltas.size());
+        assertEquals(ModSnapshot.Delta.Type.CHANGED, deltas.get(0).type);
+        assertSame(a, deltas.get(0).before);
+        assertSame(newA, deltas.get(0).after);
+        assertEquals(ModSnapshot.Delta.Type.DETACHED, deltas.get(1).type);
+        assertSame(b, deltas.get(1).before);
+        assertNull(deltas.get(1).after);
+        assertEquals(ModSnapshot.Delta.Type.ATTACHED, deltas.get(2).type);
+        assertNull(deltas.get(2).before);
+        assertSame(c, deltas.get(2).after);
+
+        assertTrue(ModSnapshot.touches(deltas, A));
+        assertTrue(ModSnapshot.touches(deltas, B));
+        assertTrue(ModSnapshot.touches(deltas, C));
+        assertFalse(ModSnapshot.touches(deltas, new UUID(0, 4)));
+    }
+
+    @Test
+    public void deviceWithoutUniqueIdIsKeyedByProduct() {
+        ModDevice old = new FakeModDevice(null, Constants.VID_MDK, Constants.PID_BLINKY, "1.0");
+        ModDevice flashed = new FakeModDevice(null, Constants.VID_MDK, Constants.PID_BLINKY,
+                "1.1");
+        assertEquals(ModSnapshot.keyOf(old), ModSnapshot.keyOf(flashed));
+
+        List<ModSnapshot.Delta> deltas = snapshot(1, old).diff(snapshot(2, flashed));
+        assertEquals(1, deltas.size());
+        assertEquals(ModSnapshot.Delta.Type.CHANGED, deltas.get(0).type);
+        assertTrue(ModSnapshot.touches(deltas, ModSnapshot.keyOf(old)));
+    }
+
+    @Test
+    public void lookupsFindTheFirstMatchInOrder() {
+        ModDevice a = blinky(A, "1.0");
+        ModDevice b = new FakeModDevice(B, Constants.VID_MDK, Constants.PID_DEVELOPER, "1.0");
+        ModDevice c = blinky(C, "2.0");
+        ModSnapshot snapshot = ModSnapshot.of(7, Arrays.asList(null, a, b, c));
+
+        assertEquals(7, snapshot.getVersion());
+        assertEquals(3, snapshot.size());
+        assertSame(a, snapshot.first());
+        assertSame(b, snapshot.get(B));
+        assertSame(a, snapshot.find(Constants.VID_MDK, Constants.PID_BLINKY));
+        assertSame(b, snapshot.find(Constants.VID_MDK, Constants.PID_DEVELOPER));
+        assertSame(a, snapshot.find(Constants.VID_MDK, Constants.INVALID_ID));
+        assertNull(snapshot.find(Constants.VID_DEVELOPER, Constants.INVALID_ID));
+
+        /** The index gives the first of the product, the matcher goes on past it */
+        ModDeviceMatcher newer = new ModDeviceMatcher.Builder()
+                .vendor(Constants.VID_MDK)
+                .product(Constants.PID_BLINKY)
+                .firmware("2.0", null)
+                .build();
+        assertSame(c, snapshot.find(newer));
+        assertTrue(ModSnapshot.EMPTY.isEmpty());
+        assertNull(ModSnapshot.EMPTY.first());
+    }
+}
@@ -0,0 +1,362 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * ModStateStore in a temporary file.
+ */
+public class ModStateStoreTest {
+    private File file;
+    private final List<ModStateStore> stores = new ArrayList<>();
+
+    /** Open a store on the file once it is read, closed in tearDown() */
+    private ModStateStore open(File file, long writeDelayMs) throws InterruptedException {
+        ModStateStore store = new ModStateStore(file, writeDelayMs);
+        stores.add(store);
+        awaitLoaded(store);
+        return store;
+    }
+
+    private static void awaitLoaded(ModStateStore store) throws InterruptedException {
+        final CountDownLatch loaded = new CountDownLatch(1);
+        store.whenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                loaded.countDown();
+            }
+        });
+        assertTrue(loaded.await(5, TimeUnit.SECONDS));
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("modState", "");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        for (ModStateStore store : stores) {
+            store.close();
+        }
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void changesAreWrittenBehindAndReloaded() throws Exception {
+        ModStateStore store = open(file, 60 * 1000);
+        for (int i = 0; i < 100; i++) {
+            store.putBoolean("mod-a", "blinky", i % 2 == 0);
+            store.put("mod-b", "count", Integer.toString(i));
+        }
+        assertFalse(store.getBoolean("mod-a", "blinky", true));
+        assertEquals("99", store.get("mod-b", "count"));
+        store.flush().get(5, TimeUnit.SECONDS);
+        ModStateStore reloaded = open(file, 60 * 1000);
+        assertFalse(reloaded.getBoolean("mod-a", "blinky", true));
+        assertEquals("99", reloaded.get("mod-b", "count"));
+    }
+
+    @Test
+    public void writeIsScheduledOnChange() throws Exception {
+        ModStateStore store = open(file, 10);
+        store.putBoolean("mod-a", "blinky", true);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!file.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(file.exists());
+
+        store.put("mod-a", "blinky", null);
+        store.flush().get(5, TimeUnit.SECONDS);
+        assertNull(open(file, 10).get("mod-a", "blinky"));
+    }
+
+    @Test
+    public void typedValuesSurviveReload() throws Exception {
+        ModStateStore store = open(file, 60 * 1000);
+        store.putInt("mod-a", "pattern", 3);
+        store.putLong("mod-a", "flashed", 1234567890123L);
+        store.putString("mod-a", "firmware", "1.2.3");
+        store.putBytes("mod-a", "commands", new byte[]{1, 2, 3});
+        store.flush().get(5, TimeUnit.SECONDS);
+
+        ModState mod = open(file, 60 * 1000).getState("mod-a");
+        assertEquals(3, mod.getInt("pattern", 0));
+        assertEquals(1234567890123L, mod.getLong("flashed", 0));
+        assertEquals("1.2.3", mod.getString("firmware", null));
+        assertArrayEquals(new byte[]{1, 2, 3}, mod.getBytes("commands"));
+        /** Wrong type reads as missing */
+        assertEquals(7, mod.getInt("firmware", 7));
+        assertSame(ModState.EMPTY, store.getState("mod-b"));
+    }
+
+    @Test
+    public void tornTailIsDroppedAndLogIsCompacted() throws Exception {
+        ModStateStore store = open(file, 60 * 1000);
+        store.putBoolean("mod-a", "blinky", true);
+        store.flush().get(5, TimeUnit.SECONDS);
+        long good = file.length();
+        for (int i = 0; i < 1000; i++) {
+            store.putInt("mod-b", "count", i);
+            store.flush().get(5, TimeUnit.SECONDS);
+        }
+        /** Compacted along the way, far smaller than 1000 records */
+        assertTrue(file.length() < good + 300 * 30);
+
+        /** A crash in the middle of a record */
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[]{0, 0, 0, 40, 1, 2});
+        out.close();
+
+        ModStateStore reloaded = open(file, 60 * 1000);
+        assertTrue(reloaded.getBoolean("mod-a", "blinky", false));
+        assertEquals(999, reloaded.getState("mod-b").getInt("count", 0));
+        reloaded.putInt("mod-b", "count", 1000);
+        reloaded.flush().get(5, TimeUnit.SECONDS);
+        assertEquals(1000, open(file, 60 * 1000).getState("mod-b").getInt("count", 0));
+    }
+
+    /** Append a record as the log has it: length, payload, CRC32 */
+    private void appendRecord(int op, String mod, String name, int type, byte[] value)
+            throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(payload);
+        data.writeByte(op);
+        data.writeUTF(mod);
+        data.writeUTF(name);
+        data.writeByte(type);
+        data.write(value);
+        data.flush();
+        byte[] record = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true));
+        try {
+            out.writeInt(record.length);
+            out.write(record);
+            out.writeInt((int) crc.getValue());
+        } finally {
+            out.close();
+        }
+    }
+
+    private static boolean contains(byte[] data, byte[] part) {
+        for (int i = 0; i + part.length <= data.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + part.length), part)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void recordOfANewerVersionIsSkippedAndKept() throws Exception {
+        ModStateStore store = open(file, 60 * 1000);
+        store.putBoolean("mod-a", "blinky", true);
+        store.close();
+
+        /** An unknown value type, then a record this version reads */
+        appendRecord(1, "mod-a", "future", 99, new byte[]{1, 2, 3, 4});
+        appendRecord(1, "mod-b", "count", 2, new byte[]{0, 0, 0, 7});
+        long length = file.length();
+
+        ModStateStore reloaded = open(file, 60 * 1000);
+        assertTrue(reloaded.getBoolean("mod-a", "blinky", false));
+        assertNull(reloaded.get("mod-a", "future"));
+        assertEquals(7, reloaded.getState("mod-b").getInt("count", 0));
+        assertEquals(length, file.length());
+
+        /** Compacted, the unknown record is still in the log */
+        for (int i = 0; i < 300; i++) {
+            reloaded.putInt("mod-b", "count", i);
+            reloaded.flush().get(5, TimeUnit.SECONDS);
+        }
+        assertTrue(file.length() < length + 300 * 30);
+        assertTrue(contains(Files.readAllBytes(file.toPath()),
+                "future".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(299, open(file, 60 * 1000).getState("mod-b").getInt("count", 0));
+    }
+
+    @Test
+    public void longStringsSurviveCompaction() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 100 * 1024) {
+            builder.append("caf\u00e9 \u2603 ");
+        }
+        String text = builder.toString();
+
+        ModStateStore store = open(file, 60 * 1000);
+        store.putString("mod-a", "notes", text);
+        store.flush().get(5, TimeUnit.SECONDS);
+        assertEquals(text, open(file, 60 * 1000).get("mod-a", "notes"));
+
+        /** Enough overwritten records to rewrite the log with the long value in it */
+        long logged = file.length();
+        for (int i = 0; i < 300; i++) {
+            store.putInt("mod-b", "count", i);
+            store.flush().get(5, TimeUnit.SECONDS);
+        }
+        assertTrue(file.length() < logged + 300 * 30);
+        assertEquals(text, open(file, 60 * 1000).get("mod-a", "notes"));
+    }
+
+    @Test
+    public void valuesTooLargeToLoadAreRejected() throws Exception {
+        ModStateStore store = open(file, 60 * 1000);
+        try {
+            store.putBytes("mod-a", "image", new byte[ModStateStore.MAX_VALUE_SIZE + 1]);
+            fail();
+        } catch (IllegalArgumentException e) {
+            /** Expected */
+        }
+        char[] text = new char[ModStateStore.MAX_VALUE_SIZE / 2 + 1];
+        Arrays.fill(text, '\u00e9');
+        try {
+            store.putString("mod-a", "notes", new String(text));
+            fail();
+        } catch (IllegalArgumentException e) {
+            /** Expected, 2 UTF-8 bytes a char */
+        }
+        try {
+            store.putInt(new String(new char[ModStateStore.MAX_KEY_LENGTH + 1]), "count", 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            /** Expected */
+        }
+        assertEquals(0, store.size());
+    }
+
+    /** Appends a byte to a byte[] value */
+    private static ModStateStore.Update append(final int value) {
+        return new ModStateStore.Update() {
+            @Override
+            public Object apply(Object old) {
+                byte[] bytes = old instanceof byte[] ? (byte[]) old : new byte[0];
+                byte[] next = Arrays.copyOf(bytes, bytes.length + 1);
+                next[bytes.length] = (byte) value;
+                return next;
+            }
+        };
+    }
+
+    @Test
+    public void updateMadeWhileLoadingAppliesOverTheFile() throws Exception {
+        ModStateStore store = open(file, 60 * 1000);
+        store.update("mod-a", "list", append(1));
+        store.close();
+
+        /** Whether or not the file is read yet, nothing stored is lost */
+        ModStateStore reopened = new ModStateStore(file, 60 * 1000);
+        stores.add(reopened);
+        reopened.update("mod-a", "list", append(2));
+        awaitLoaded(reopened);
+        assertTrue(reopened.isLoaded());
+        assertArrayEquals(new byte[]{1, 2}, reopened.getState("mod-a").getBytes("list"));
+
+        reopened.close();
+        assertArrayEquals(new byte[]{1, 2}, open(file, 60 * 1000).getState("mod-a").getBytes("list"));
+    }
+
+    @Test
+    public void whenLoadedRunsRightAwayOnceLoaded() throws Exception {
+        ModStateStore store = new ModStateStore(file, 60 * 1000);
+        stores.add(store);
+        final CountDownLatch loaded = new CountDownLatch(2);
+        Runnable callback = new Runnable() {
+            @Override
+            public void run() {
+                loaded.countDown();
+            }
+        };
+        store.whenLoaded(callback);
+        /** The writer reads the file before anything else */
+        store.flush().get(5, TimeUnit.SECONDS);
+        assertEquals(1, loaded.getCount());
+        store.whenLoaded(callback);
+        assertEquals(0, loaded.getCount());
+    }
+
+    @Test
+    public void closeWritesThePendingChanges() throws Exception {
+        ModStateStore store = open(file, 60 * 1000);
+        store.putInt("mod-a", "pattern", 5);
+        store.close();
+        store.close();
+        assertEquals(5, store.getState("mod-a").getInt("pattern", 0));
+        try {
+            store.putInt("mod-a", "pattern", 6);
+            fail();
+        } catch (IllegalStateException e) {
+            /** Expected */
+        }
+        assertEquals(5, open(file, 60 * 1000).getState("mod-a").getInt("pattern", 0));
+    }
+
+    @Test
+    public void unreadableFileStartsOver() throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+
+        ModStateStore store = open(file, 10);
+        assertTrue(store.getBoolean("mod-a", "blinky", true));
+        store.putBoolean("mod-a", "blinky", false);
+        store.flush().get(5, TimeUnit.SECONDS);
+        assertFalse(open(file, 10).getBoolean("mod-a", "blinky", true));
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.firmware;
+
+import com.motorola.samples.mdkutility.Constants;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FirmwareCatalog in a temporary file.
+ */
+public class FirmwareCatalogTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("catalog", ".properties");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void productEntryWinsOverVendorEntry() throws Exception {
+        FirmwareCatalog catalog = new FirmwareCatalog(file);
+        catalog.put(0x42, Constants.INVALID_ID, Arrays.asList("vendor"));
+        catalog.put(0x42, 1, Arrays.asList("boot", "main"));
+
+        assertEquals(Arrays.asList("boot", "main"), catalog.resolve(0x42, 1));
+        assertEquals(Arrays.asList("vendor"), catalog.resolve(0x42, 2));
+        assertNull(catalog.resolve(0x312, 1));
+        assertEquals(new HashSet<>(Arrays.asList("vendor", "boot", "main")), catalog.getImages());
+    }
+
+    @Test
+    public void catalogIsReloaded() throws Exception {
+        FirmwareCatalog catalog = new FirmwareCatalog(file);
+        catalog.put(0x42, 1, Arrays.asList("boot", "main"));
+        catalog.put(0x312, 0x10403, Arrays.asList("blinky"));
+        assertTrue(catalog.remove(0x312, 0x10403));
+
+        FirmwareCatalog reloaded = new FirmwareCatalog(file);
+        assertEquals(Arrays.asList("boot", "main"), reloaded.resolve(0x42, 1));
+        assertNull(reloaded.resolve(0x312, 0x10403));
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.firmware;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * FirmwareMetrics in a temporary file, and FirmwareUpdateTimer feeding it.
+ */
+public class FirmwareMetricsTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("metrics", "");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static FirmwareMetrics.Record flash(long device, int flashMs, int result) {
+        return new FirmwareMetrics.Record(0, device, 7, 100, flashMs, flashMs + 100,
+                flashMs / 10, result);
+    }
+
+    @Test
+    public void percentilesPerDevice() throws Exception {
+        FirmwareMetrics metrics = new FirmwareMetrics(file, 256);
+        for (int i = 1; i <= 100; i++) {
+            metrics.append(flash(1, i * 1000, FirmwareUpdate.RESULT_SUCCESS));
+        }
+        metrics.append(flash(2, 5000, FirmwareUpdate.RESULT_SUCCESS));
+        metrics.append(flash(2, 0, FirmwareUpdate.RESULT_TIMEOUT));
+
+        FirmwareMetrics.Summary one = metrics.summarize(1, FirmwareMetrics.ANY);
+        assertEquals(100, one.updates);
+        assertEquals(50000, one.flash.p50);
+        assertEquals(95000, one.flash.p95);
+        assertEquals(99000, one.flash.p99);
+        assertEquals(9900, one.reenumeration.p99);
+
+        FirmwareMetrics.Summary two = metrics.summarize(2, 7);
+        assertEquals(2, two.updates);
+        assertEquals(1, two.failures);
+        assertEquals(5000, two.flash.p99);
+        assertEquals(-1, metrics.summarize(3, FirmwareMetrics.ANY).flash.p50);
+    }
+
+    @Test
+    public void ringWrapsAndIsReloaded() throws Exception {
+        FirmwareMetrics metrics = new FirmwareMetrics(file, 4);
+        for (int i = 1; i <= 6; i++) {
+            metrics.append(flash(1, i, FirmwareUpdate.RESULT_SUCCESS));
+        }
+        metrics.close();
+        assertEquals(24 + 4 * 44, file.length());
+
+        FirmwareMetrics reloaded = new FirmwareMetrics(file, 4);
+        assertEquals(4, reloaded.size());
+        FirmwareMetrics.Summary summary = reloaded.summarize(FirmwareMetrics.ANY, FirmwareMetrics.ANY);
+        assertEquals(4, summary.updates);
+        assertEquals(4, summary.flash.p50);
+        assertEquals(6, summary.flash.p99);
+
+        StringWriter dump = new StringWriter();
+        reloaded.dump(dump);
+        assertEquals(5, dump.toString().split("\n").length);
+    }
+
+    @Test
+    public void timerRecordsEveryPhase() throws Exception {
+        final List<FirmwareMetrics.Record> records = new ArrayList<>();
+        FirmwareUpdateTimer timer = new FirmwareUpdateTimer(new FirmwareUpdateTimer.Sink() {
+            @Override
+            public void onRecord(FirmwareMetrics.Record record) {
+                records.add(record);
+            }
+        });
+
+        FirmwareUpdate<String, String> update = new FirmwareUpdate<>("mod", Arrays.asList("a"));
+        update.setState(FirmwareUpdate.STATE_REQUESTING);
+        timer.onProgress(update, 1, 2, 1000);
+        update.setState(FirmwareUpdate.STATE_STARTED);
+        timer.onProgress(update, 1, 2, 1500);
+        update.finish(FirmwareUpdate.RESULT_SUCCESS);
+        timer.onProgress(update, 1, 2, 9500);
+        assertEquals(0, records.size());
+        timer.onEnumerationDone(11500);
+
+        assertEquals(1, records.size());
+        FirmwareMetrics.Record r = records.get(0);
+        assertEquals(500, r.startMs);
+        assertEquals(8000, r.flashMs);
+        assertEquals(8500, r.totalMs);
+        assertEquals(2000, r.reenumerationMs);
+        assertEquals(FirmwareUpdate.RESULT_SUCCESS, r.result);
+
+        /** A failed request is recorded at once */
+        update = new FirmwareUpdate<>("mod", Arrays.asList("a"));
+        update.setState(FirmwareUpdate.STATE_REQUESTING);
+        timer.onProgress(update, 1, 2, 20000);
+        update.finish(FirmwareUpdate.RESULT_SECURITY_EXCEPTION);
+        timer.onProgress(update, 1, 2, 20010);
+        timer.onEnumerationDone(21000);
+        assertEquals(2, records.size());
+        assertEquals(-1, records.get(1).flashMs);
+        assertEquals(10, records.get(1).totalMs);
+        assertEquals(-1, records.get(1).reenumerationMs);
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.firmware;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FirmwareOrchestrator over a FirmwareUpdateQueue with a fake ModManager.
+ */
+public class FirmwareOrchestratorTest {
+    private static final List<String> IMAGE = Arrays.asList("content://fw/a");
+
+    /** Records the devices requested, fails the first requests if asked */
+    private static class FakeBackend implements FirmwareUpdateQueue.Backend<String, String> {
+        final LinkedBlockingQueue<String> requested = new LinkedBlockingQueue<>();
+        volatile int failures = 0;
+
+        @Override
+        public void grantUriPermission(String uri) {
+        }
+
+        @Override
+        public void revokeUriPermission(String uri) {
+        }
+
+        @Override
+        public int requestUpdateFirmware(String device, List<String> uris) {
+            requested.add(device);
+            if (failures > 0) {
+                failures--;
+                return FirmwareUpdate.RESULT_FAILED;
+            }
+            return FirmwareUpdate.RESULT_SUCCESS;
+        }
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final FakeBackend backend = new FakeBackend();
+    private volatile long now = 0;
+
+    private FirmwareOrchestrator<String, String> orchestrator;
+    private final FirmwareUpdateQueue<String, String> queue = new FirmwareUpdateQueue<>(backend,
+            executor, new FirmwareUpdateQueue.ProgressListener<String, String>() {
+                @Override
+                public void onProgress(FirmwareUpdate<String, String> update) {
+                    orchestrator.onProgress(update);
+                }
+            }, 5000);
+
+    {
+        orchestrator = new FirmwareOrchestrator<String, String>(queue,
+                new FirmwareOrchestrator.Listener<String, String>() {
+                    @Override
+                    public void onJobChanged(FirmwareOrchestrator.Job<String, String> job) {
+                    }
+                }, FirmwareOrchestrator.DEFAULT_MAX_ATTEMPTS) {
+            @Override
+            protected long now() {
+                return now;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static Map<Object, String> devices(String... names) {
+        Map<Object, String> devices = new HashMap<>();
+        for (String name : names) {
+            devices.put(name, name);
+        }
+        return devices;
+    }
+
+    private String nextRequest() throws InterruptedException {
+        return backend.requested.poll(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void jobsRunPerDeviceAndWaitForReenumeration() throws Exception {
+        orchestrator.enqueue("x", IMAGE);
+        orchestrator.enqueue("x", IMAGE);
+        orchestrator.enqueue("y", IMAGE);
+        assertNull(backend.requested.poll(50, TimeUnit.MILLISECONDS));
+
+        orchestrator.onDevices(devices("x", "y"));
+        assertEquals("x", nextRequest());
+        /** Queued behind x in the update queue */
+        assertNull(backend.requested.poll(50, TimeUnit.MILLISECONDS));
+
+        queue.onUpdateDone(FirmwareUpdate.RESULT_SUCCESS);
+        assertEquals("y", nextRequest());
+        queue.onUpdateDone(FirmwareUpdate.RESULT_SUCCESS);
+
+        /** The second job of x waits for x to come back */
+        assertNull(backend.requested.poll(50, TimeUnit.MILLISECONDS));
+        orchestrator.onDevices(devices("x", "y"), Arrays.asList("x"));
+        assertEquals("x", nextRequest());
+        queue.onUpdateDone(FirmwareUpdate.RESULT_SUCCESS);
+        assertEquals(0, orchestrator.getPendingCount());
+    }
+
+    @Test
+    public void onlyAChangedDeviceStopsSettling() throws Exception {
+        orchestrator.enqueue("x", IMAGE);
+        orchestrator.enqueue("x", IMAGE);
+        orchestrator.onDevices(devices("x"));
+        assertEquals("x", nextRequest());
+        queue.onUpdateDone(FirmwareUpdate.RESULT_SUCCESS);
+
+        /** y attaching doesn't mean x came back */
+        orchestrator.onDevices(devices("x", "y"));
+        orchestrator.onDevices(devices("x", "y"), Arrays.asList("y"));
+        assertNull(backend.requested.poll(50, TimeUnit.MILLISECONDS));
+
+        orchestrator.onDevices(devices("x", "y"), Arrays.asList("x"));
+        assertEquals("x", nextRequest());
+        queue.onUpdateDone(FirmwareUpdate.RESULT_SUCCESS);
+    }
+
+    @Test
+    public void unrelatedEnumerationDoesNotReleaseASettlingDevice() throws Exception {
+        orchestrator.enqueue("x", IMAGE);
+        orchestrator.enqueue("x", IMAGE);
+        orchestrator.onDevices(devices("x", "y"));
+        assertEquals("x", nextRequest());
+        queue.onUpdateDone(FirmwareUpdate.RESULT_SUCCESS);
+
+        /** y enumerated again, or an enumeration that changed nothing */
+        orchestrator.onDevices(devices("x", "y"), Arrays.asList("y"));
+        orchestrator.onDevices(devices("x", "y"), Collections.emptyList());
+        assertNull(backend.requested.poll(50, TimeUnit.MILLISECONDS));
+        assertEquals(1, orchestrator.getPendingCount());
+
+        orchestrator.onDevices(devices("x", "y"), Arrays.asList("x"));
+        assertEquals("x", nextRequest());
+        queue.onUpdateDone(FirmwareUpdate.RESULT_SUCCESS);
+    }
+
+    @Test
+    public void queuedOnTheServiceSideIsNotRetried() {
+        assertFalse(FirmwareOrchestrator.isTransient(FirmwareUpdateQueue.SERVICE_RESULT_IN_QUEUE));
+        assertTrue(FirmwareOrchestrator.isTransient(FirmwareUpdate.RESULT_TIMEOUT));
+    }
+
+    @Test
+    public void transientFailuresAreRetried() throws Exception {
+        backend.failures = 2;
+        FirmwareOrchestrator.Job<String, String> job = orchestrator.enqueue("x", IMAGE);
+        orchestrator.onDevices(devices("x"));
+
+        assertEquals("x", nextRequest());
+        assertEquals("x", nextRequest());
+        assertEquals("x", nextRequest());
+        queue.onUpdateDone(FirmwareUpdate.RESULT_SUCCESS);
+        job.getUpdate().get(5, TimeUnit.SECONDS);
+        assertEquals(3, job.getAttempts());
+        assertEquals(FirmwareOrchestrator.JOB_SUCCEEDED, job.getState());
+
+        backend.failures = 5;
+        job = orchestrator.enqueue("x", IMAGE);
+        orchestrator.onDevices(devices("x"), Arrays.asList("x"));
+        for (int i = 0; i < FirmwareOrchestrator.DEFAULT_MAX_ATTEMPTS; i++) {
+            assertEquals("x", nextRequest());
+        }
+        assertNull(backend.requested.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(FirmwareOrchestrator.JOB_FAILED, job.getState());
+        assertEquals(1, orchestrator.getFailedCount());
+    }
+
+    @Test
+    public void fleetFlashesEveryDeviceOnceAndReportsThroughput() throws Exception {
+        orchestrator.onDevices(devices("a"));
+        orchestrator.setFleetImage(IMAGE);
+        assertEquals("a", nextRequest());
+        now = 10 * 60 * 1000;
+        queue.onUpdateDone(FirmwareUpdate.RESULT_SUCCESS);
+
+        /** a comes back flashed, b is swapped in */
+        orchestrator.onDevices(devices("a", "b"));
+        assertEquals("b", nextRequest());
+        now = 20 * 60 * 1000;
+        queue.onUpdateDone(FirmwareUpdate.RESULT_SUCCESS);
+        orchestrator.onDevices(devices("b"));
+        assertNull(backend.requested.poll(50, TimeUnit.MILLISECONDS));
+
+        assertEquals(2, orchestrator.getSucceededCount());
+        assertEquals(6.0, orchestrator.getFlashesPerHour(), 0.001);
+
+        /** Over the last hour only */
+        now = 75 * 60 * 1000;
+        assertEquals(1.0, orchestrator.getFlashesPerHour(), 0.001);
+    }
+}
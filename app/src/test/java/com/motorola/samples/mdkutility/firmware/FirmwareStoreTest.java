@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.firmware;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FirmwareStore in a temporary directory.
+ */
+public class FirmwareStoreTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("firmwareStore", "");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static byte[] image(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    private static FirmwareStore.Entry put(FirmwareStore store, byte[] data, String name)
+            throws IOException {
+        return store.put(Channels.newChannel(new ByteArrayInputStream(data)), name);
+    }
+
+    @Test
+    public void sameImageIsStoredOnce() throws Exception {
+        FirmwareStore store = new FirmwareStore(dir, 1024 * 1024);
+        FirmwareStore.Entry first = put(store, image(100 * 1024, 1), "a.tftf");
+        FirmwareStore.Entry again = put(store, image(100 * 1024, 1), "copy of a.tftf");
+
+        assertEquals(first.hash, again.hash);
+        assertEquals("a.tftf", again.name);
+        assertEquals(1, store.list().size());
+        assertEquals(100 * 1024, store.getTotalBytes());
+        assertEquals(100 * 1024, first.file.length());
+        assertEquals(first.hash, FirmwareValidator.toHex(
+                MessageDigest.getInstance("SHA-256").digest(image(100 * 1024, 1))));
+    }
+
+    @Test
+    public void missingImageIsStoredAgainAndCountedOnce() throws Exception {
+        FirmwareStore store = new FirmwareStore(dir, 1024 * 1024);
+        FirmwareStore.Entry first = put(store, image(100 * 1024, 1), "a.tftf");
+        assertTrue(first.file.delete());
+
+        FirmwareStore.Entry again = put(store, image(100 * 1024, 1), "b.tftf");
+        assertEquals(first.hash, again.hash);
+        assertEquals("b.tftf", again.name);
+        assertTrue(again.file.exists());
+        assertEquals(1, store.list().size());
+        assertEquals(100 * 1024, store.getTotalBytes());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvictedOverBudget() throws Exception {
+        FirmwareStore store = new FirmwareStore(dir, 3000);
+        FirmwareStore.Entry a = put(store, image(1000, 1), "a");
+        FirmwareStore.Entry b = put(store, image(1000, 2), "b");
+        FirmwareStore.Entry c = put(store, image(1000, 3), "c");
+        assertNotNull(store.get(a.hash));
+
+        FirmwareStore.Entry d = put(store, image(1000, 4), "d");
+        assertNull(store.get(b.hash));
+        assertFalse(b.file.exists());
+        assertNotNull(store.get(a.hash));
+        assertNotNull(store.get(c.hash));
+        assertNotNull(store.get(d.hash));
+        assertEquals(3000, store.getTotalBytes());
+
+        /** An image over the whole budget is still kept, alone */
+        FirmwareStore.Entry big = put(store, image(5000, 5), "big");
+        assertEquals(1, store.list().size());
+        assertTrue(big.file.exists());
+    }
+
+    @Test
+    public void pinnedImageIsNotEvicted() throws Exception {
+        FirmwareStore store = new FirmwareStore(dir, 2000);
+        FirmwareStore.Entry a = put(store, image(1000, 1), "a");
+        FirmwareStore.Entry b = put(store, image(1000, 2), "b");
+        store.setPinned(Collections.singleton(a.hash));
+
+        put(store, image(1000, 3), "c");
+        assertNotNull(store.get(a.hash));
+        assertNull(store.get(b.hash));
+    }
+
+    @Test
+    public void storeIsReloadedWithNamesAndUseOrder() throws Exception {
+        FirmwareStore store = new FirmwareStore(dir, 1024 * 1024);
+        FirmwareStore.Entry a = put(store, image(1000, 1), "a.tftf");
+        FirmwareStore.Entry b = put(store, image(1000, 2), "b.tftf");
+        a.file.setLastModified(b.file.lastModified() + 5000);
+
+        List<FirmwareStore.Entry> entries = new FirmwareStore(dir, 1024 * 1024).list();
+        assertEquals(2, entries.size());
+        assertEquals(a.hash, entries.get(0).hash);
+        assertEquals("a.tftf", entries.get(0).name);
+        assertEquals("b.tftf", entries.get(1).name);
+    }
+}
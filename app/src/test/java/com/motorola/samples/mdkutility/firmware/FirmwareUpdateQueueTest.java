@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.firmware;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FirmwareUpdateQueue against a fake ModManager.
+ */
+public class FirmwareUpdateQueueTest {
+    private static final List<String> FILES = Arrays.asList("content://fw/a", "content://fw/b");
+
+    /** Records the calls a ModManager would get */
+    private static class FakeBackend implements FirmwareUpdateQueue.Backend<String, String> {
+        final List<String> granted = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> revoked = Collections.synchronizedList(new ArrayList<String>());
+        final LinkedBlockingQueue<String> requested = new LinkedBlockingQueue<>();
+        volatile Thread requestThread;
+        volatile RuntimeException failure;
+        volatile int result = FirmwareUpdate.RESULT_SUCCESS;
+
+        @Override
+        public void grantUriPermission(String uri) {
+            granted.add(uri);
+        }
+
+        @Override
+        public void revokeUriPermission(String uri) {
+            revoked.add(uri);
+        }
+
+        @Override
+        public int requestUpdateFirmware(String device, List<String> uris) {
+            requestThread = Thread.currentThread();
+            requested.add(device);
+            if (failure != null) {
+                throw failure;
+            }
+            return result;
+        }
+    }
+
+    /** Records every progress state */
+    private static class Progress
+            implements FirmwareUpdateQueue.ProgressListener<String, String> {
+        final LinkedBlockingQueue<Integer> states = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onProgress(FirmwareUpdate<String, String> update) {
+            states.add(update.getState());
+        }
+
+        void expect(int... expected) throws InterruptedException {
+            for (int state : expected) {
+                Integer got = states.poll(5, TimeUnit.SECONDS);
+                assertEquals(Integer.valueOf(state), got);
+            }
+        }
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final FakeBackend backend = new FakeBackend();
+    private final Progress progress = new Progress();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private FirmwareUpdateQueue<String, String> queue(long doneTimeoutMs) {
+        return new FirmwareUpdateQueue<>(backend, executor, progress, doneTimeoutMs);
+    }
+
+    @Test
+    public void updateRunsOffTheCallerAndReportsEveryState() throws Exception {
+        FirmwareUpdateQueue<String, String> queue = queue(5000);
+        FirmwareUpdate<String, String> update = queue.submit("mod", FILES);
+        progress.expect(FirmwareUpdate.STATE_QUEUED, FirmwareUpdate.STATE_REQUESTING,
+                FirmwareUpdate.STATE_REQUESTED);
+        assertNotSame(Thread.currentThread(), backend.requestThread);
+        assertEquals(FILES, backend.granted);
+        assertFalse(update.isDone());
+
+        queue.onUpdateStarted();
+        queue.onUpdateDone(FirmwareUpdateQueue.SERVICE_RESULT_IN_QUEUE);
+        progress.expect(FirmwareUpdate.STATE_STARTED);
+        assertFalse(update.isDone());
+
+        queue.onUpdateDone(FirmwareUpdate.RESULT_SUCCESS);
+        progress.expect(FirmwareUpdate.STATE_DONE);
+        assertEquals(Integer.valueOf(FirmwareUpdate.RESULT_SUCCESS), update.get(5, TimeUnit.SECONDS));
+        assertEquals(FILES, backend.revoked);
+        assertNull(queue.getCurrent());
+    }
+
+    @Test
+    public void failedRequestCompletesWithItsCode() throws Exception {
+        backend.failure = new SecurityException("no consent");
+        FirmwareUpdate<String, String> update = queue(5000).submit("mod", FILES);
+
+        assertEquals(Integer.valueOf(FirmwareUpdate.RESULT_SECURITY_EXCEPTION),
+                update.get(5, TimeUnit.SECONDS));
+        progress.expect(FirmwareUpdate.STATE_QUEUED, FirmwareUpdate.STATE_REQUESTING,
+                FirmwareUpdate.STATE_DONE);
+        assertEquals(FILES, backend.revoked);
+    }
+
+    @Test
+    public void updatesRunOneAtATime() throws Exception {
+        FirmwareUpdateQueue<String, String> queue = queue(5000);
+        FirmwareUpdate<String, String> first = queue.submit("first", FILES);
+        FirmwareUpdate<String, String> second = queue.submit("second", FILES);
+        FirmwareUpdate<String, String> third = queue.submit("third", FILES);
+
+        assertEquals("first", backend.requested.poll(5, TimeUnit.SECONDS));
+        assertTrue(third.cancel(false));
+        assertNull(backend.requested.poll(100, TimeUnit.MILLISECONDS));
+
+        queue.onUpdateDone(FirmwareUpdate.RESULT_SUCCESS);
+        assertEquals("second", backend.requested.poll(5, TimeUnit.SECONDS));
+        assertTrue(first.isDone());
+        assertFalse(second.cancel(false));
+
+        queue.onUpdateDone(FirmwareUpdate.RESULT_SUCCESS);
+        assertEquals(Integer.valueOf(FirmwareUpdate.RESULT_SUCCESS), second.get(5, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(FirmwareUpdate.RESULT_CANCELLED), third.get());
+        assertNull(backend.requested.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void missingDoneTimesOut() throws Exception {
+        FirmwareUpdate<String, String> update = queue(50).submit("mod", FILES);
+        assertEquals(Integer.valueOf(FirmwareUpdate.RESULT_TIMEOUT), update.get(5, TimeUnit.SECONDS));
+        assertEquals(FILES, backend.revoked);
+    }
+
+    @Test
+    public void invalidImageFailsWithoutRequesting() throws Exception {
+        FirmwareUpdateQueue<String, String> queue = new FirmwareUpdateQueue<>(backend, executor,
+                progress, 5000, new FirmwareUpdateQueue.Validator<String>() {
+                    @Override
+                    public String validate(String uri) {
+                        return uri.endsWith("b") ? "not a TFTF image" : null;
+                    }
+                });
+        FirmwareUpdate<String, String> update = queue.submit("mod", FILES);
+
+        assertEquals(Integer.valueOf(FirmwareUpdate.RESULT_INVALID_IMAGE),
+                update.get(5, TimeUnit.SECONDS));
+        assertEquals("not a TFTF image", update.getInvalidReason());
+        progress.expect(FirmwareUpdate.STATE_QUEUED, FirmwareUpdate.STATE_REQUESTING,
+                FirmwareUpdate.STATE_DONE);
+        assertTrue(backend.granted.isEmpty());
+        assertTrue(backend.requested.isEmpty());
+    }
+}
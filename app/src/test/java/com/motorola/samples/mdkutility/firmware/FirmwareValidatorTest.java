@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.firmware;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FirmwareValidator against images in temporary files.
+ */
+public class FirmwareValidatorTest {
+    /** A TFTF image of the size, larger than one read chunk if asked */
+    private static byte[] image(int size) {
+        ByteBuffer image = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        image.put(new byte[]{'T', 'F', 'T', 'F'});
+        image.putInt(512);
+        for (int i = 8; i < size; i++) {
+            image.put((byte) i);
+        }
+        return image.array();
+    }
+
+    private static File write(byte[] data) throws IOException {
+        File file = File.createTempFile("firmware", ".tftf");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static FirmwareValidator.Verdict validate(FirmwareValidator validator, File file,
+                                                      long mtime) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            return validator.validate(file.getPath(), channel.size(), mtime, channel);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    @Test
+    public void validImageIsHashed() throws Exception {
+        byte[] data = image(200 * 1024 + 7);
+        FirmwareValidator.Verdict verdict = validate(new FirmwareValidator(), write(data), 1);
+
+        assertTrue(verdict.reason, verdict.valid);
+        assertEquals(data.length, verdict.size);
+        assertEquals(sha256(data), verdict.sha256);
+    }
+
+    @Test
+    public void badHeaderIsRejected() throws Exception {
+        byte[] data = image(4096);
+        data[0] = 'X';
+        FirmwareValidator.Verdict verdict = validate(new FirmwareValidator(), write(data), 1);
+        assertFalse(verdict.valid);
+        assertNull(verdict.sha256);
+
+        data = image(4096);
+        ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).putInt(4, 8192);
+        assertFalse(validate(new FirmwareValidator(), write(data), 1).valid);
+
+        assertFalse(validate(new FirmwareValidator(), write(new byte[0]), 1).valid);
+    }
+
+    @Test
+    public void verdictIsCachedUntilTheFileChanges() throws Exception {
+        FirmwareValidator validator = new FirmwareValidator();
+        File file = write(image(4096));
+
+        FirmwareValidator.Verdict first = validate(validator, file, 1);
+        /** Same image again, the closed channel must not be read */
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        FileChannel closed = in.getChannel();
+        in.close();
+        assertSame(first, validator.validate(file.getPath(), 4096, 1, closed));
+        assertEquals(1, validator.getReadCount());
+        assertEquals(1, validator.getCacheHitCount());
+
+        /** Touched, read again */
+        assertTrue(validate(validator, file, 2).valid);
+        assertEquals(2, validator.getReadCount());
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * RawChannelTransport opened on real file descriptors, as RawPersonality
+ * opens it on the RAW interface; a temporary file stands in for the mod.
+ */
+public class RawChannelTransportTest {
+    private static final int BUFFER_SIZE = 1024;
+
+    private File file;
+    private FileOutputStream fileOut;
+    private FileInputStream fileIn;
+
+    /** Takes at most a few bytes per call, as a busy RAW interface may */
+    private static class ShortWriteChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int calls = 0;
+
+        @Override
+        public long write(ByteBuffer[] buffers, int offset, int length) {
+            calls++;
+            int budget = 3;
+            long n = 0;
+            for (int i = offset; i < offset + length && budget > 0; i++) {
+                while (buffers[i].hasRemaining() && budget > 0) {
+                    written.write(buffers[i].get());
+                    budget--;
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] buffers) {
+            return write(buffers, 0, buffers.length);
+        }
+
+        @Override
+        public int write(ByteBuffer buffer) {
+            return (int) write(new ByteBuffer[]{buffer}, 0, 1);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("raw", ".bin");
+        fileOut = new FileOutputStream(file);
+        fileIn = new FileInputStream(file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fileIn.close();
+        fileOut.close();
+        file.delete();
+    }
+
+    @Test
+    public void gatheredFramesRoundTripThroughTheFileDescriptor() throws Exception {
+        RawChannelTransport writer = RawChannelTransport.open(fileOut.getFD(), BUFFER_SIZE);
+        int frames = writer.getMaxFrames();
+        for (int i = 0; i < frames; i++) {
+            byte[] frame = new byte[1 + i * 16];
+            Arrays.fill(frame, (byte) i);
+            writer.frame(i, frame.length).put(frame);
+        }
+        writer.writeFrames(frames);
+        /** And a plain write after it, from an offset */
+        writer.write(new byte[]{9, 1, 2, 3, 9}, 1, 3);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < frames; i++) {
+            byte[] frame = new byte[1 + i * 16];
+            Arrays.fill(frame, (byte) i);
+            expected.write(frame);
+        }
+        expected.write(new byte[]{1, 2, 3});
+        assertEquals(expected.size(), file.length());
+
+        RawTransport reader = RawChannelTransport.open(fileIn.getFD(), BUFFER_SIZE);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE + 1];
+        int n;
+        while ((n = reader.read(buffer, 1, buffer.length - 1)) > 0) {
+            assertTrue(n <= BUFFER_SIZE);
+            received.write(buffer, 1, n);
+        }
+        assertEquals(-1, n);
+        assertArrayEquals(expected.toByteArray(), received.toByteArray());
+    }
+
+    @Test
+    public void shortWritesResumeWhereTheyStopped() throws Exception {
+        ShortWriteChannel channel = new ShortWriteChannel();
+        RawChannelTransport transport = new RawChannelTransport(null, channel, BUFFER_SIZE);
+        transport.frame(0, 4).put(new byte[]{1, 2, 3, 4});
+        transport.frame(1, 0);
+        transport.frame(2, 6).put(new byte[]{5, 6, 7, 8, 9, 10});
+        transport.writeFrames(3);
+
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10},
+                channel.written.toByteArray());
+        assertEquals(4, channel.calls);
+
+        /** The frame buffers are reused for the next batch */
+        transport.frame(0, 2).put(new byte[]{11, 12});
+        transport.writeFrames(1);
+        assertEquals(12, channel.written.size());
+    }
+}
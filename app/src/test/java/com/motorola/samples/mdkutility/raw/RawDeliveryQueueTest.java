@@ -0,0 +1,263 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import android.os.Handler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * RawDeliveryQueue policies and buffer release, delivering to a fake looper
+ * which the test runs by hand.
+ */
+public class RawDeliveryQueueTest {
+    private static final int POOL_SIZE = 8;
+
+    /** Queues the posted drains, the listener releases what it gets */
+    private static class FakeTarget implements RawDeliveryQueue.Target {
+        final List<Runnable> posted = new ArrayList<>();
+        final List<Integer> delivered = new ArrayList<>();
+        boolean gone = false;
+
+        @Override
+        public boolean post(Runnable drain) {
+            if (gone) {
+                return false;
+            }
+            posted.add(drain);
+            return true;
+        }
+
+        @Override
+        public boolean deliver(RawBuffer buffer, int offset, int length) {
+            if (gone) {
+                return false;
+            }
+            delivered.add((int) buffer.data[offset]);
+            buffer.release();
+            return true;
+        }
+
+        @Override
+        public Handler getHandler() {
+            return null;
+        }
+
+        /** Run the looper until nothing is posted */
+        void run() {
+            while (!posted.isEmpty()) {
+                posted.remove(0).run();
+            }
+        }
+    }
+
+    private final RawBufferPool pool = new RawBufferPool(POOL_SIZE, 16, RawBufferPool.Policy.DROP);
+
+    private void offer(RawDeliveryQueue queue, int value) {
+        RawBuffer buffer = pool.lease();
+        buffer.data[0] = (byte) value;
+        buffer.length = 1;
+        queue.offer(buffer, 0, 1);
+    }
+
+    @Test
+    public void dataIsDeliveredInOrderByOneDrain() {
+        FakeTarget target = new FakeTarget();
+        RawDeliveryQueue queue = new RawDeliveryQueue(target, 4, RawDeliveryQueue.Policy.DROP_NEWEST);
+        offer(queue, 1);
+        offer(queue, 2);
+        offer(queue, 3);
+        assertEquals(1, target.posted.size());
+        assertEquals(3, queue.getDepth());
+
+        target.run();
+        assertEquals(3, target.delivered.size());
+        assertEquals(1, (int) target.delivered.get(0));
+        assertEquals(3, (int) target.delivered.get(2));
+        assertEquals(3, queue.getDeliveredCount());
+        assertEquals(POOL_SIZE, pool.getFreeCount());
+    }
+
+    @Test
+    public void drainYieldsTheLooperAfterCapacity() {
+        FakeTarget target = new FakeTarget();
+        RawDeliveryQueue queue = new RawDeliveryQueue(target, 2, RawDeliveryQueue.Policy.DROP_NEWEST);
+        offer(queue, 1);
+        offer(queue, 2);
+        target.posted.remove(0).run();
+        assertEquals(2, target.delivered.size());
+
+        /** Data offered meanwhile waits for the re-posted drain */
+        offer(queue, 3);
+        assertEquals(1, target.posted.size());
+        target.run();
+        assertEquals(3, target.delivered.size());
+        assertEquals(POOL_SIZE, pool.getFreeCount());
+    }
+
+    @Test
+    public void dropNewestReleasesTheIncomingData() {
+        FakeTarget target = new FakeTarget();
+        RawDeliveryQueue queue = new RawDeliveryQueue(target, 2, RawDeliveryQueue.Policy.DROP_NEWEST);
+        offer(queue, 1);
+        offer(queue, 2);
+        offer(queue, 3);
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(POOL_SIZE - 2, pool.getFreeCount());
+
+        target.run();
+        assertEquals(2, target.delivered.size());
+        assertEquals(2, (int) target.delivered.get(1));
+        assertEquals(POOL_SIZE, pool.getFreeCount());
+    }
+
+    @Test
+    public void dropOldestReleasesTheOldestData() {
+        FakeTarget target = new FakeTarget();
+        RawDeliveryQueue queue = new RawDeliveryQueue(target, 2, RawDeliveryQueue.Policy.DROP_OLDEST);
+        offer(queue, 1);
+        offer(queue, 2);
+        offer(queue, 3);
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(POOL_SIZE - 2, pool.getFreeCount());
+
+        target.run();
+        assertEquals(2, target.delivered.size());
+        assertEquals(2, (int) target.delivered.get(0));
+        assertEquals(3, (int) target.delivered.get(1));
+        assertEquals(POOL_SIZE, pool.getFreeCount());
+    }
+
+    @Test
+    public void latestKeepsOnlyTheMostRecentData() {
+        FakeTarget target = new FakeTarget();
+        RawDeliveryQueue queue = new RawDeliveryQueue(target, 16, RawDeliveryQueue.Policy.LATEST);
+        for (int i = 1; i <= 5; i++) {
+            offer(queue, i);
+        }
+        assertEquals(1, queue.getDepth());
+        assertEquals(4, queue.getDroppedCount());
+        assertEquals(POOL_SIZE - 1, pool.getFreeCount());
+
+        target.run();
+        assertEquals(1, target.delivered.size());
+        assertEquals(5, (int) target.delivered.get(0));
+        assertEquals(POOL_SIZE, pool.getFreeCount());
+    }
+
+    @Test
+    public void blockWaitsUntilTheListenerCatchesUp() throws Exception {
+        FakeTarget target = new FakeTarget();
+        final RawDeliveryQueue queue = new RawDeliveryQueue(target, 1, RawDeliveryQueue.Policy.BLOCK);
+        offer(queue, 1);
+
+        Thread reactor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                offer(queue, 2);
+            }
+        });
+        reactor.start();
+        while (reactor.getState() != Thread.State.WAITING) {
+            assertTrue(reactor.isAlive());
+            Thread.sleep(1);
+        }
+        assertEquals(1, queue.getDepth());
+
+        /** One drain run frees the slot, the blocked offer posts no second drain */
+        target.posted.remove(0).run();
+        reactor.join(5000);
+        assertFalse(reactor.isAlive());
+        target.run();
+        assertEquals(2, target.delivered.size());
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(POOL_SIZE, pool.getFreeCount());
+    }
+
+    @Test
+    public void closeReleasesPendingDataAndUnblocksTheReactor() throws Exception {
+        FakeTarget target = new FakeTarget();
+        final RawDeliveryQueue queue = new RawDeliveryQueue(target, 1, RawDeliveryQueue.Policy.BLOCK);
+        offer(queue, 1);
+
+        Thread reactor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                offer(queue, 2);
+            }
+        });
+        reactor.start();
+        while (reactor.getState() != Thread.State.WAITING) {
+            assertTrue(reactor.isAlive());
+            Thread.sleep(1);
+        }
+
+        queue.close();
+        reactor.join(5000);
+        assertFalse(reactor.isAlive());
+        assertTrue(queue.isClosed());
+        assertEquals(0, queue.getDepth());
+        assertEquals(POOL_SIZE, pool.getFreeCount());
+
+        /** Later data is released right away */
+        offer(queue, 3);
+        target.run();
+        assertTrue(target.delivered.isEmpty());
+        assertEquals(POOL_SIZE, pool.getFreeCount());
+    }
+
+    @Test
+    public void goneListenerClosesTheQueue() {
+        FakeTarget target = new FakeTarget();
+        RawDeliveryQueue queue = new RawDeliveryQueue(target, 4, RawDeliveryQueue.Policy.DROP_OLDEST);
+        offer(queue, 1);
+        offer(queue, 2);
+
+        /** Collected with a drain pending */
+        target.gone = true;
+        target.run();
+        assertTrue(queue.isClosed());
+        assertEquals(POOL_SIZE, pool.getFreeCount());
+
+        /** Collected before the drain was posted */
+        FakeTarget other = new FakeTarget();
+        other.gone = true;
+        RawDeliveryQueue unposted = new RawDeliveryQueue(other, 4, RawDeliveryQueue.Policy.DROP_OLDEST);
+        offer(unposted, 1);
+        assertTrue(unposted.isClosed());
+        assertEquals(POOL_SIZE, pool.getFreeCount());
+    }
+}
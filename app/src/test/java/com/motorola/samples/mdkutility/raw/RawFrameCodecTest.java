@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Framing codecs against synthetic streams fragmented at random points.
+ */
+public class RawFrameCodecTest {
+    private static final int MAX_FRAME = 1024;
+
+    private static final RawFrameCodec[] CODECS = {
+            new LengthPrefixCodec(), new CobsCodec(), new SlipCodec()
+    };
+
+    /** Collects a copy of every frame */
+    private static class Collector implements RawFrameCodec.FrameListener {
+        final List<byte[]> frames = new ArrayList<>();
+
+        @Override
+        public void onFrame(byte[] data, int offset, int length) {
+            frames.add(Arrays.copyOfRange(data, offset, offset + length));
+        }
+    }
+
+    /** Payloads heavy in the bytes the codecs must escape */
+    private static List<byte[]> randomPayloads(Random random, int count) {
+        byte[] special = {0x00, (byte) 0xC0, (byte) 0xDB, (byte) 0xDC, (byte) 0xDD, (byte) 0xFF};
+        List<byte[]> payloads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] payload = new byte[1 + random.nextInt(MAX_FRAME)];
+            for (int j = 0; j < payload.length; j++) {
+                payload[j] = random.nextInt(4) == 0
+                        ? special[random.nextInt(special.length)] : (byte) random.nextInt(256);
+            }
+            payloads.add(payload);
+        }
+        return payloads;
+    }
+
+    private static byte[] encodeAll(RawFrameCodec codec, List<byte[]> payloads) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (byte[] payload : payloads) {
+            byte[] out = new byte[codec.maxEncodedLength(payload.length)];
+            int length = codec.encode(payload, 0, payload.length, out, 0);
+            assertTrue(length <= out.length);
+            stream.write(out, 0, length);
+        }
+        return stream.toByteArray();
+    }
+
+    /** Feed the stream in chunks split at random points, as reads would return it */
+    private static void feedFragmented(RawFrameCodec.Decoder decoder, byte[] stream,
+                                       Random random, int maxChunk,
+                                       RawFrameCodec.FrameListener listener) {
+        int offset = 0;
+        while (offset < stream.length) {
+            int length = Math.min(1 + random.nextInt(maxChunk), stream.length - offset);
+
+            /** Each read lands at some offset of a fresh buffer */
+            int at = random.nextInt(8);
+            byte[] chunk = new byte[at + length];
+            System.arraycopy(stream, offset, chunk, at, length);
+            decoder.feed(chunk, at, length, listener);
+            offset += length;
+        }
+    }
+
+    @Test
+    public void roundTripFragmentedStreams() {
+        Random random = new Random(20161101);
+        for (RawFrameCodec codec : CODECS) {
+            for (int maxChunk : new int[]{1, 3, 64, 1024, 4096}) {
+                List<byte[]> payloads = randomPayloads(random, 200);
+                byte[] stream = encodeAll(codec, payloads);
+
+                RawFrameCodec.Decoder decoder = codec.newDecoder(MAX_FRAME);
+                Collector collector = new Collector();
+                feedFragmented(decoder, stream, random, maxChunk, collector);
+
+                String name = codec.getClass().getSimpleName() + "/" + maxChunk;
+                assertEquals(name, payloads.size(), collector.frames.size());
+                for (int i = 0; i < payloads.size(); i++) {
+                    assertArrayEquals(name + " frame " + i, payloads.get(i), collector.frames.get(i));
+                }
+                assertEquals(name, 0, decoder.getErrorCount());
+            }
+        }
+    }
+
+    @Test
+    public void wholeFramesAreDeliveredWithoutCopy() {
+        for (RawFrameCodec codec : CODECS) {
+            final byte[] payload = {1, 2, 0, (byte) 0xC0, (byte) 0xDB, 3};
+            final byte[] chunk = encodeAll(codec, Arrays.asList(payload, payload));
+            final int[] frames = {0};
+
+            codec.newDecoder(MAX_FRAME).feed(chunk, 0, chunk.length,
+                    new RawFrameCodec.FrameListener() {
+                        @Override
+                        public void onFrame(byte[] data, int offset, int length) {
+                            assertTrue(data == chunk);
+                            assertArrayEquals(payload,
+                                    Arrays.copyOfRange(data, offset, offset + length));
+                            frames[0]++;
+                        }
+                    });
+            assertEquals(codec.getClass().getSimpleName(), 2, frames[0]);
+        }
+    }
+
+    @Test
+    public void oversizedFrameIsDroppedAndStreamResyncs() {
+        Random random = new Random(7);
+        for (RawFrameCodec codec : CODECS) {
+            byte[] big = new byte[MAX_FRAME * 2];
+            random.nextBytes(big);
+            byte[] small = {9, 8, 7};
+            byte[] stream = encodeAll(codec, Arrays.asList(small, big, small));
+
+            RawFrameCodec.Decoder decoder = codec.newDecoder(MAX_FRAME);
+            Collector collector = new Collector();
+            feedFragmented(decoder, stream, random, 100, collector);
+
+            String name = codec.getClass().getSimpleName();
+            assertEquals(name, 2, collector.frames.size());
+            assertArrayEquals(name, small, collector.frames.get(0));
+            assertArrayEquals(name, small, collector.frames.get(1));
+            assertEquals(name, 1, decoder.getErrorCount());
+        }
+    }
+
+    @Test
+    public void malformedDelimitedFrameIsCounted() {
+        Collector collector = new Collector();
+
+        /** ESC followed by a byte which is not ESC_END or ESC_ESC */
+        byte[] slip = {(byte) 0xC0, 1, (byte) 0xDB, 2, (byte) 0xC0, 5, (byte) 0xC0};
+        RawFrameCodec.Decoder decoder = new SlipCodec().newDecoder(MAX_FRAME);
+        decoder.feed(slip, 0, slip.length, collector);
+        assertEquals(1, decoder.getErrorCount());
+
+        /** COBS code byte running past the end of the frame */
+        byte[] cobs = {5, 1, 2, 0, 2, 6, 0};
+        decoder = new CobsCodec().newDecoder(MAX_FRAME);
+        decoder.feed(cobs, 0, cobs.length, collector);
+        assertEquals(1, decoder.getErrorCount());
+
+        assertEquals(2, collector.frames.size());
+        assertArrayEquals(new byte[]{5}, collector.frames.get(0));
+        assertArrayEquals(new byte[]{6}, collector.frames.get(1));
+    }
+}
@@ -0,0 +1,261 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileDescriptor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The RawReactor loop over a fake poller: dispatch, write requests,
+ * hangup, cancellation and when the poll descriptors are rebuilt.
+ */
+public class RawReactorTest {
+    /** Level-triggered readiness set by the test, fds are always writable */
+    private static class FakePoller implements RawReactor.Poller {
+        final Map<FileDescriptor, Integer> ready = new HashMap<>();
+        final Map<FileDescriptor[], Boolean> arrays = new IdentityHashMap<>();
+        final List<FileDescriptor[]> polled = new ArrayList<>();
+        boolean woken = false;
+
+        synchronized void set(FileDescriptor fd, int events) {
+            ready.put(fd, events);
+            notifyAll();
+        }
+
+        synchronized void clear(FileDescriptor fd, int events) {
+            Integer current = ready.get(fd);
+            ready.put(fd, current == null ? 0 : current & ~events);
+        }
+
+        @Override
+        public synchronized void poll(FileDescriptor[] fds, int[] events, int[] revents,
+                                      int timeoutMs) {
+            arrays.put(fds, true);
+            polled.add(fds);
+            long deadline = timeoutMs < 0 ? Long.MAX_VALUE
+                    : System.currentTimeMillis() + timeoutMs;
+            while (true) {
+                boolean any = false;
+                for (int i = 0; i < fds.length; i++) {
+                    Integer state = ready.get(fds[i]);
+                    int available = (state == null ? 0 : state) | WRITABLE;
+                    revents[i] = available & (events[i] | HANGUP | ERROR);
+                    any |= revents[i] != 0;
+                }
+                if (any || woken) {
+                    woken = false;
+                    return;
+                }
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return;
+                }
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public synchronized void wakeup() {
+            woken = true;
+            notifyAll();
+        }
+
+        synchronized int arrayCount() {
+            return arrays.size();
+        }
+
+        synchronized FileDescriptor[] lastPolled() {
+            return polled.get(polled.size() - 1);
+        }
+    }
+
+    /** Records the callbacks in order, consuming the data on readable */
+    private class Recorder implements RawReactor.Callback {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onReadable(RawReactor.Key key) {
+            poller.clear(key.fd, RawReactor.Poller.READABLE);
+            events.add("readable");
+        }
+
+        @Override
+        public void onWritable(RawReactor.Key key) {
+            events.add("writable");
+        }
+
+        @Override
+        public void onHangup(RawReactor.Key key) {
+            events.add("hangup");
+        }
+
+        @Override
+        public void onCancelled(RawReactor.Key key) {
+            events.add("cancelled");
+        }
+
+        String next() throws InterruptedException {
+            return events.poll(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private FakePoller poller;
+    private RawReactor reactor;
+    private Thread thread;
+
+    @Before
+    public void setUp() {
+        poller = new FakePoller();
+        reactor = new RawReactor(poller);
+        thread = new Thread(reactor, "RawReactorTest");
+        thread.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        reactor.stop();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+    }
+
+    @Test
+    public void readableDataIsDispatched() throws Exception {
+        Recorder recorder = new Recorder();
+        FileDescriptor fd = new FileDescriptor();
+        RawReactor.Key key = reactor.register(fd, recorder, "attachment");
+        assertSame(fd, key.fd);
+
+        poller.set(fd, RawReactor.Poller.READABLE);
+        assertEquals("readable", recorder.next());
+        poller.set(fd, RawReactor.Poller.READABLE);
+        assertEquals("readable", recorder.next());
+
+        /** Writable all along, but never asked for */
+        assertNull(recorder.events.poll(50, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void writeRequestIsDispatchedOnceAfterItsDelay() throws Exception {
+        Recorder recorder = new Recorder();
+        RawReactor.Key key = reactor.register(new FileDescriptor(), recorder, null);
+
+        long start = System.nanoTime();
+        key.requestWrite(50);
+        assertEquals("writable", recorder.next());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+
+        /** A later request does not push an earlier one back */
+        key.requestWrite(0);
+        key.requestWrite(10000);
+        assertEquals("writable", recorder.next());
+        assertNull(recorder.events.poll(50, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void hangupCancelsTheKey() throws Exception {
+        Recorder recorder = new Recorder();
+        FileDescriptor fd = new FileDescriptor();
+        RawReactor.Key key = reactor.register(fd, recorder, null);
+
+        poller.set(fd, RawReactor.Poller.HANGUP);
+        assertEquals("hangup", recorder.next());
+        assertEquals("cancelled", recorder.next());
+        assertTrue(key.isCancelled());
+
+        /** Not polled any more, cancelling again is a no-op */
+        key.cancel();
+        key.requestWrite(0);
+        assertNull(recorder.events.poll(50, TimeUnit.MILLISECONDS));
+        assertEquals(0, poller.lastPolled().length);
+    }
+
+    @Test
+    public void cancelledKeyIsReportedOnceNoLongerPolled() throws Exception {
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        FileDescriptor kept = new FileDescriptor();
+        RawReactor.Key cancelled = reactor.register(new FileDescriptor(), first, null);
+        reactor.register(kept, second, null);
+
+        cancelled.cancel();
+        assertEquals("cancelled", first.next());
+
+        /** Reported before the next poll, which only has the kept descriptor */
+        poller.set(kept, RawReactor.Poller.READABLE);
+        assertEquals("readable", second.next());
+        FileDescriptor[] polled = poller.lastPolled();
+        assertEquals(1, polled.length);
+        assertSame(kept, polled[0]);
+        assertTrue(first.events.isEmpty());
+    }
+
+    @Test
+    public void pollDescriptorsAreOnlyRebuiltOnRegistration() throws Exception {
+        Recorder recorder = new Recorder();
+        RawReactor.Key key = reactor.register(new FileDescriptor(), recorder, null);
+        key.requestWrite(0);
+        assertEquals("writable", recorder.next());
+        int arrays = poller.arrayCount();
+
+        /** Wakeups, writes and reads poll the same descriptors again */
+        for (int i = 0; i < 20; i++) {
+            key.requestWrite(0);
+            assertEquals("writable", recorder.next());
+            poller.set(key.fd, RawReactor.Poller.READABLE);
+            assertEquals("readable", recorder.next());
+        }
+        assertEquals(arrays, poller.arrayCount());
+
+        reactor.register(new FileDescriptor(), new Recorder(), null);
+        key.requestWrite(0);
+        assertEquals("writable", recorder.next());
+        assertEquals(arrays + 1, poller.arrayCount());
+    }
+}
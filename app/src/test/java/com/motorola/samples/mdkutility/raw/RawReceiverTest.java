@@ -0,0 +1,233 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * RawReceiver.receive() against an in-memory stand-in for the mod RAW fd:
+ * the buffer leasing, reading and hand-off. Polling is RawReactor's, see
+ * RawReactorTest; the Os.poll() descriptors of RawOsPoller need a device.
+ */
+public class RawReceiverTest {
+    private static final int PACKET_SIZE = 64;
+    private static final int WARMUP_PACKETS = 5000;
+    private static final int PACKETS = 50000;
+
+    /** RawSource over a ring of bytes, write() plays the mod; allocates nothing */
+    private static class RingSource implements RawSource {
+        final byte[] ring = new byte[64 * 1024];
+        int head = 0;
+        int count = 0;
+        boolean ended = false;
+        boolean removed = false;
+
+        void write(byte[] data) {
+            for (byte b : data) {
+                ring[(head + count++) % ring.length] = b;
+            }
+        }
+
+        int available() {
+            return count;
+        }
+
+        @Override
+        public int read(int channel, byte[] buffer, int offset, int length) throws IOException {
+            if (count == 0) {
+                return ended ? -1 : 0;
+            }
+            int n = Math.min(length, count);
+            for (int i = 0; i < n; i++) {
+                buffer[offset + i] = ring[(head + i) % ring.length];
+            }
+            head = (head + n) % ring.length;
+            count -= n;
+            return n;
+        }
+
+        @Override
+        public void remove(int channel) {
+            removed = true;
+        }
+    }
+
+    /** Sink which counts the bytes and releases the buffer right away */
+    private static class CountingSink implements RawReceiver.Sink {
+        long bytes = 0;
+        long reads = 0;
+
+        @Override
+        public void onRawData(RawBuffer buffer) {
+            reads++;
+            bytes += buffer.length();
+            buffer.release();
+        }
+
+        @Override
+        public void onIOException(int channel) {
+        }
+    }
+
+    /** Write the packets, reading them as the reactor would once readable */
+    private static void pump(RingSource source, RawReceiver receiver, int packets, byte[] packet) {
+        for (int i = 0; i < packets; i++) {
+            source.write(packet);
+            while (source.available() > 0) {
+                receiver.receive(0);
+            }
+        }
+    }
+
+    @Test
+    public void steadyStateReceiveDoesNotAllocate() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        RingSource source = new RingSource();
+        CountingSink sink = new CountingSink();
+        RawBufferPool pool = new RawBufferPool(4, 1024, RawBufferPool.Policy.ALLOCATE);
+        RawReceiver receiver = new RawReceiver(source, pool, sink);
+
+        byte[] packet = new byte[PACKET_SIZE];
+        pump(source, receiver, WARMUP_PACKETS, packet);
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        long readsBefore = sink.reads;
+        pump(source, receiver, PACKETS, packet);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        long reads = sink.reads - readsBefore;
+
+        assertEquals((long) (WARMUP_PACKETS + PACKETS) * PACKET_SIZE, sink.bytes);
+        /** Any per-read object would cost at least 16 bytes a read */
+        assertTrue("receive allocated " + allocated + " bytes in " + reads + " reads",
+                allocated < reads);
+        assertEquals(0, pool.getAllocatedCount());
+        assertEquals(4, pool.getFreeCount());
+    }
+
+    @Test
+    public void heldBuffersAreNotOverwritten() throws Exception {
+        RingSource source = new RingSource();
+        final List<RawBuffer> held = new ArrayList<>();
+        final List<Long> offsets = new ArrayList<>();
+        final long[] received = {0};
+        RawBufferPool pool = new RawBufferPool(2, PACKET_SIZE, RawBufferPool.Policy.ALLOCATE);
+        RawReceiver receiver = new RawReceiver(source, pool, new RawReceiver.Sink() {
+            @Override
+            public void onRawData(RawBuffer buffer) {
+                /** Hold every buffer, as a slow listener would */
+                held.add(buffer);
+                offsets.add(received[0]);
+                received[0] += buffer.length();
+            }
+
+            @Override
+            public void onIOException(int channel) {
+            }
+        });
+
+        int total = 100 * PACKET_SIZE;
+        byte[] data = new byte[total];
+        for (int i = 0; i < total; i++) {
+            data[i] = (byte) (i % 251);
+        }
+        source.write(data);
+        while (source.available() > 0) {
+            receiver.receive(0);
+        }
+        assertEquals(total, received[0]);
+
+        for (int i = 0; i < held.size(); i++) {
+            RawBuffer buffer = held.get(i);
+            long offset = offsets.get(i);
+            for (int j = 0; j < buffer.length(); j++) {
+                assertEquals((byte) ((offset + j) % 251), buffer.data[j]);
+            }
+            buffer.release();
+        }
+        assertTrue(pool.getExhaustedCount() > 0);
+        assertEquals(2, pool.getFreeCount());
+    }
+
+    @Test
+    public void exhaustedDropPoolConsumesData() throws Exception {
+        RingSource source = new RingSource();
+        final long[] delivered = {0};
+        RawBufferPool pool = new RawBufferPool(1, PACKET_SIZE, RawBufferPool.Policy.DROP);
+        RawReceiver receiver = new RawReceiver(source, pool, new RawReceiver.Sink() {
+            @Override
+            public void onRawData(RawBuffer buffer) {
+                /** Never released, so the only buffer stays out */
+                delivered[0]++;
+            }
+
+            @Override
+            public void onIOException(int channel) {
+            }
+        });
+
+        pump(source, receiver, 10, new byte[PACKET_SIZE]);
+
+        assertEquals(1, delivered[0]);
+        assertTrue(pool.getDroppedCount() > 0);
+        assertEquals(0, source.available());
+    }
+
+    @Test
+    public void endOfStreamRemovesTheChannel() throws Exception {
+        RingSource source = new RingSource();
+        CountingSink sink = new CountingSink();
+        RawBufferPool pool = new RawBufferPool(1, PACKET_SIZE, RawBufferPool.Policy.ALLOCATE);
+        RawReceiver receiver = new RawReceiver(source, pool, sink);
+
+        source.ended = true;
+        assertTrue(receiver.receive(0));
+        assertTrue(source.removed);
+        assertEquals(0, sink.reads);
+        assertEquals(1, pool.getFreeCount());
+
+        /** A closed pool means the RAW I/O is closing */
+        pool.close();
+        assertTrue(!receiver.receive(0));
+    }
+}
@@ -0,0 +1,327 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A reliable stream from the host to a mod over an in-process link which
+ * delays, reorders and loses frames both ways.
+ */
+public class RawReliableStreamTest {
+    private ScheduledExecutorService timer;
+    private ScheduledExecutorService wire;
+
+    /**
+     * One direction of the link, frames arrive on the wire thread. Like the
+     * RAW interface it keeps them in order, the jitter only delays.
+     */
+    private class LossyLink implements RawReliableStream.Sender {
+        final long latencyMs;
+        final int jitterMs;
+        final double loss;
+        final Random random;
+        RawReliableStream to;
+
+        /** Frames on the wire, each delivery task takes the oldest so none overtakes */
+        final ArrayDeque<byte[]> inFlight = new ArrayDeque<>();
+        long lastArrival = 0;
+
+        /** Drop exactly the data frame with this sequence, once */
+        volatile int dropSeq = -1;
+
+        LossyLink(long latencyMs, int jitterMs, double loss, long seed) {
+            this.latencyMs = latencyMs;
+            this.jitterMs = jitterMs;
+            this.loss = loss;
+            this.random = new Random(seed);
+        }
+
+        @Override
+        public synchronized boolean send(final byte[] frame) {
+            if (frame[0] == RawReliableStream.TYPE_DATA && dropSeq >= 0
+                    && ByteBuffer.wrap(frame, 1, 4).getInt() == dropSeq) {
+                dropSeq = -1;
+                return true;
+            }
+            if (random.nextDouble() < loss) {
+                return true;
+            }
+            long now = System.nanoTime();
+            long arrival = Math.max(lastArrival, now + TimeUnit.MILLISECONDS.toNanos(
+                    latencyMs + (jitterMs > 0 ? random.nextInt(jitterMs) : 0)));
+            lastArrival = arrival;
+            inFlight.add(frame);
+            wire.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] oldest;
+                    synchronized (LossyLink.this) {
+                        oldest = inFlight.poll();
+                    }
+                    assertTrue(to.onFrame(oldest, 0, oldest.length));
+                }
+            }, arrival - now, TimeUnit.NANOSECONDS);
+            return true;
+        }
+    }
+
+    /** Collects what the mod end gets */
+    private static class Sink implements RawReliableStream.Listener {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        @Override
+        public synchronized void onData(byte[] bytes, int offset, int length) {
+            data.write(bytes, offset, length);
+        }
+
+        synchronized byte[] bytes() {
+            return data.toByteArray();
+        }
+    }
+
+    /** One direction of the link, frames wait until the test delivers them */
+    private static class ManualLink implements RawReliableStream.Sender {
+        final ArrayDeque<byte[]> inFlight = new ArrayDeque<>();
+        RawReliableStream to;
+
+        @Override
+        public synchronized boolean send(byte[] frame) {
+            inFlight.add(frame);
+            return true;
+        }
+
+        /** Hand over the frames sent so far, not those sent in response */
+        int deliver() {
+            byte[][] frames;
+            synchronized (this) {
+                frames = inFlight.toArray(new byte[inFlight.size()][]);
+                inFlight.clear();
+            }
+            for (byte[] frame : frames) {
+                assertTrue(to.onFrame(frame, 0, frame.length));
+            }
+            return frames.length;
+        }
+    }
+
+    private static final RawReliableStream.Listener NONE = new RawReliableStream.Listener() {
+        @Override
+        public void onData(byte[] data, int offset, int length) {
+            fail("no data to the host");
+        }
+    };
+
+    private RawReliableStream host;
+    private Sink mod;
+
+    /** The host's clock for a manual link, only moved by roundTrip() */
+    private final AtomicLong clock = new AtomicLong();
+    private ManualLink manualUp;
+    private ManualLink manualDown;
+
+    private void connect(LossyLink up, LossyLink down, int window, int segmentSize) {
+        mod = new Sink();
+        host = new RawReliableStream(up, NONE, timer, window, segmentSize, 2 * window);
+        RawReliableStream modEnd = new RawReliableStream(down, mod, timer, window,
+                segmentSize, 2 * window);
+        up.to = modEnd;
+        down.to = host;
+    }
+
+    /**
+     * Both ends over manual links, the host on the test clock. The real timer
+     * only fires in wall time, so it never finds a deadline passed.
+     */
+    private void connectManual(int window, int segmentSize, int sendBuffer) {
+        manualUp = new ManualLink();
+        manualDown = new ManualLink();
+        mod = new Sink();
+        host = new RawReliableStream(manualUp, NONE, timer, window, segmentSize, sendBuffer) {
+            @Override
+            long now() {
+                return clock.get();
+            }
+        };
+        manualUp.to = new RawReliableStream(manualDown, mod, timer, window, segmentSize,
+                sendBuffer);
+        manualDown.to = host;
+    }
+
+    /**
+     * Carry the host's data frames to the mod and its acks back, rttMs later.
+     * @return the data frames carried
+     */
+    private int roundTrip(long rttMs) {
+        int frames = manualUp.deliver();
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(rttMs));
+        assertEquals(frames, manualDown.deliver());
+        return frames;
+    }
+
+    private static byte[] payload(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    @Before
+    public void setUp() {
+        timer = Executors.newSingleThreadScheduledExecutor();
+        wire = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        if (host != null) {
+            host.close();
+        }
+        wire.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    @Test
+    public void deliversInOrderOverLossyLink() throws Exception {
+        connect(new LossyLink(2, 4, 0.1, 1), new LossyLink(2, 4, 0.1, 2), 32, 256);
+        byte[] data = payload(512 * 1024, 3);
+
+        host.write(data);
+        assertTrue(host.flush(30000));
+        assertArrayEquals(data, mod.bytes());
+        /** About one in ten frames lost, resent about once each */
+        assertTrue(host.getRetransmitCount() > 0);
+        assertTrue(host.getRetransmitCount() < host.getAckedCount() / 5);
+    }
+
+    @Test
+    public void lostSegmentIsResentOnSack() throws Exception {
+        LossyLink up = new LossyLink(5, 0, 0, 1);
+        connect(up, new LossyLink(5, 0, 0, 2), 16, 64);
+        up.dropSeq = 4;
+        byte[] data = payload(64 * 16, 4);
+
+        host.write(data);
+        assertTrue(host.flush(5000));
+        assertArrayEquals(data, mod.bytes());
+        assertEquals(1, host.getRetransmitCount());
+        assertEquals(1, host.getFastRetransmitCount());
+        assertEquals(0, host.getTimeoutCount());
+    }
+
+    @Test
+    public void lostTailIsResentOnTimeout() throws Exception {
+        LossyLink up = new LossyLink(2, 0, 0, 1);
+        connect(up, new LossyLink(2, 0, 0, 2), 8, 64);
+        up.dropSeq = 3;
+        byte[] data = payload(64 * 4, 5);
+
+        /** Nothing after the last segment to sack, only the timeout finds it */
+        host.write(data);
+        assertTrue(host.flush(5000));
+        assertArrayEquals(data, mod.bytes());
+        assertEquals(1, host.getRetransmitCount());
+        assertEquals(1, host.getTimeoutCount());
+    }
+
+    @Test
+    public void timeoutFollowsRoundTrip() throws Exception {
+        long rttMs = 30;
+        connectManual(4, 64, 4);
+        assertEquals(RawReliableStream.INITIAL_RTO_MS, host.getRtoMs());
+
+        for (int i = 0; i < 20; i++) {
+            host.write(payload(64, i));
+            assertEquals(1, roundTrip(rttMs));
+        }
+
+        /** Every sample is the same round trip, so the variation decays to nothing */
+        assertEquals(rttMs, host.getSrttMs());
+        assertEquals(rttMs + RawReliableStream.MIN_RTO_MS, host.getRtoMs());
+        assertEquals(20, host.getAckedCount());
+        assertEquals(0, host.getRetransmitCount());
+        assertEquals(0, host.getTimeoutCount());
+    }
+
+    @Test
+    public void windowKeepsTheLinkBusy() throws Exception {
+        int window = RawReliableStream.DEFAULT_WINDOW;
+        int segments = 1000;
+        connectManual(window, 256, segments);
+        byte[] data = payload(segments * 256, 6);
+
+        host.write(data);
+        /** A full window goes out at once and each round trip sends the next one */
+        int roundTrips = 0;
+        int sent = 0;
+        while (sent < segments) {
+            int frames = roundTrip(20);
+            assertEquals(Math.min(window, segments - sent), frames);
+            sent += frames;
+            roundTrips++;
+        }
+
+        assertEquals((segments + window - 1) / window, roundTrips);
+        assertEquals(0, roundTrip(20));
+        assertTrue(host.flush(0));
+        assertEquals(segments, host.getAckedCount());
+        assertEquals(0, host.getRetransmitCount());
+        assertArrayEquals(data, mod.bytes());
+    }
+
+    @Test
+    public void closeFailsWrites() throws Exception {
+        connect(new LossyLink(1, 0, 1.0, 1), new LossyLink(1, 0, 0, 2), 4, 64);
+        host.write(payload(64, 7));
+        host.close();
+        assertTrue(!host.flush(10));
+        try {
+            host.write(payload(64, 8));
+            fail("write after close");
+        } catch (IOException e) {
+            /** Expected */
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Recorded command sets and their replay: one pipelined batch, acks in
+ * order, and the time to restore.
+ */
+public class RawReplayTest {
+    private static final byte[] LED_ON = {0x01};
+    private static final byte[] LED_OFF = {0x00};
+    private static final byte[] MODE = {0x10, 0x02};
+
+    /** A mod acking every command by echoing its first byte with the top bit set */
+    private static final RawReplay.AckMatcher ECHO = new RawReplay.AckMatcher() {
+        @Override
+        public boolean isAck(byte[] cmd, byte[] data, int offset, int length) {
+            return length == 1 && data[offset] == (byte) (cmd[0] | 0x80);
+        }
+    };
+
+    @Test
+    public void recordKeepsSlotOrder() {
+        RawCommandSet set = new RawCommandSet();
+        set.record("led", LED_ON);
+        set.record("mode", MODE);
+        set.record("led", LED_OFF);
+
+        List<byte[]> commands = set.commands();
+        assertEquals(2, commands.size());
+        assertArrayEquals(LED_OFF, commands.get(0));
+        assertArrayEquals(MODE, commands.get(1));
+
+        set.record("led", null);
+        assertFalse(set.contains("led"));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void encodeDecodeRoundTrip() {
+        RawCommandSet set = new RawCommandSet();
+        set.record("led", LED_ON);
+        set.record("mode", MODE);
+        set.record("empty", new byte[0]);
+
+        RawCommandSet decoded = RawCommandSet.decode(set.encode());
+        assertEquals(3, decoded.size());
+        assertArrayEquals(LED_ON, decoded.get("led"));
+        assertArrayEquals(MODE, decoded.get("mode"));
+        assertArrayEquals(new byte[0], decoded.get("empty"));
+        assertNull(decoded.get("missing"));
+
+        assertTrue(RawCommandSet.decode(null).isEmpty());
+        assertTrue(RawCommandSet.decode(new byte[]{0x7F, 0x00}).isEmpty());
+
+        /** A cut value keeps the whole slots before the cut */
+        byte[] encoded = set.encode();
+        RawCommandSet cut = RawCommandSet.decode(Arrays.copyOf(encoded, encoded.length - 3));
+        assertEquals(2, cut.size());
+        assertArrayEquals(MODE, cut.get("mode"));
+    }
+
+    @Test
+    public void restoredOnceWrittenWithoutMatcher() {
+        RawReplay replay = new RawReplay(Arrays.asList(LED_ON, MODE), null, 1000);
+        assertFalse(replay.isRestored());
+        assertFalse(replay.onData(new byte[]{(byte) 0x81}, 0, 1, 1500));
+
+        replay.onWritten(4000);
+        assertTrue(replay.isRestored());
+
+        RawReplay.Result result = replay.finish();
+        assertEquals(2, result.commands);
+        assertEquals(0, result.acked);
+        assertEquals(3000, result.writtenNanos);
+        assertEquals(3000, result.restoredNanos);
+    }
+
+    @Test
+    public void restoredOnceAckedInOrder() {
+        RawReplay replay = new RawReplay(Arrays.asList(LED_ON, MODE), ECHO, 0);
+        byte[] data = {0x55, (byte) 0x90, (byte) 0x81};
+
+        /** Out of order and foreign data is no ack */
+        assertFalse(replay.onData(data, 1, 1, 100));
+        assertFalse(replay.onData(data, 0, 1, 100));
+        assertTrue(replay.onData(data, 2, 1, 200));
+
+        replay.onWritten(300);
+        assertFalse(replay.isRestored());
+
+        assertTrue(replay.onData(data, 1, 1, 900));
+        assertTrue(replay.isRestored());
+
+        RawReplay.Result result = replay.finish();
+        assertEquals(2, result.acked);
+        assertEquals(300, result.writtenNanos);
+        assertEquals(900, result.restoredNanos);
+    }
+
+    @Test
+    public void timedOutReplayIsNotRestored() {
+        RawReplay replay = new RawReplay(Arrays.asList(LED_ON, MODE), ECHO, 0);
+        replay.onWritten(100);
+        replay.onData(new byte[]{(byte) 0x81}, 0, 1, 200);
+
+        RawReplay.Result result = replay.finish();
+        assertFalse(result.isRestored());
+        assertEquals(1, result.acked);
+        assertEquals(-1, result.restoredNanos);
+
+        /** Nothing counts once finished */
+        assertFalse(replay.onData(new byte[]{(byte) 0x90}, 0, 1, 300));
+    }
+
+    @Test
+    public void markRunsOnceBatchIsWritten() {
+        RawWriteQueue queue = new RawWriteQueue(64);
+        final AtomicInteger reached = new AtomicInteger();
+        Runnable onWritten = new Runnable() {
+            @Override
+            public void run() {
+                reached.incrementAndGet();
+            }
+        };
+
+        /** Nothing pending, right away */
+        queue.mark(onWritten);
+        assertEquals(1, reached.get());
+
+        queue.offer(LED_ON);
+        queue.offer(MODE);
+        queue.mark(onWritten);
+        queue.offer(LED_OFF);
+        assertEquals(1, reached.get());
+
+        /** All three coalesce into one write */
+        queue.nextBatch();
+        assertEquals(LED_ON.length + MODE.length + LED_OFF.length, queue.batchLength());
+        queue.onBatchWritten();
+        assertEquals(2, reached.get());
+
+        /** Dropped with the commands it waits for */
+        queue.offer(LED_ON);
+        queue.mark(onWritten);
+        queue.clear();
+        queue.mark(onWritten);
+        assertEquals(3, reached.get());
+    }
+}
@@ -0,0 +1,396 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * RPC calls against a loopback mod over a length prefixed link: the mod
+ * answers every request with its payload reversed, after the link latency.
+ */
+public class RawRpcTest {
+    /** Requests starting with this byte get their reply only after LATE_MS */
+    private static final byte LATE = 0x00;
+    private static final long LATE_MS = 300;
+
+    private final RawFrameCodec codec = new LengthPrefixCodec();
+    private ScheduledExecutorService timer;
+
+    /** The fake mod and the link both ways, one thread so the decoders need no lock */
+    private class LoopbackMod implements RawRpc.Sender {
+        final ScheduledExecutorService link = Executors.newSingleThreadScheduledExecutor();
+        final RawFrameCodec.Decoder modDecoder = codec.newDecoder(1024);
+        final RawFrameCodec.Decoder hostDecoder = codec.newDecoder(1024);
+        final Random random = new Random(7);
+        final long latencyMs;
+        volatile boolean connected = true;
+        RawRpc rpc;
+
+        LoopbackMod(long latencyMs) {
+            this.latencyMs = latencyMs;
+        }
+
+        @Override
+        public boolean send(byte[] frame) {
+            if (!connected) {
+                return false;
+            }
+            final byte[] wire = encode(frame);
+            link.execute(new Runnable() {
+                @Override
+                public void run() {
+                    modDecoder.feed(wire, 0, wire.length, new RawFrameCodec.FrameListener() {
+                        @Override
+                        public void onFrame(byte[] data, int offset, int length) {
+                            onRequest(Arrays.copyOfRange(data, offset, offset + length));
+                        }
+                    });
+                }
+            });
+            return true;
+        }
+
+        private void onRequest(byte[] request) {
+            byte[] reply = replyTo(request);
+
+            /** Jitter so the replies come back out of order */
+            long delay = request.length > RawRpc.HEADER_SIZE && request[3] == LATE
+                    ? LATE_MS : latencyMs + random.nextInt(3);
+            final byte[] wire = encode(reply);
+            link.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    /** Split across two reads, as the RAW stream may */
+                    int split = wire.length / 2;
+                    hostDecoder.feed(wire, 0, split, hostListener);
+                    hostDecoder.feed(wire, split, wire.length - split, hostListener);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        final RawFrameCodec.FrameListener hostListener = new RawFrameCodec.FrameListener() {
+            @Override
+            public void onFrame(byte[] data, int offset, int length) {
+                assertTrue(rpc.onFrame(data, offset, length));
+            }
+        };
+
+        void close() {
+            link.shutdownNow();
+        }
+    }
+
+    /** Requests held until the test answers them, no timer or link thread involved */
+    private static class HeldLink implements RawRpc.Sender {
+        final List<byte[]> requests = new ArrayList<>();
+
+        @Override
+        public synchronized boolean send(byte[] frame) {
+            requests.add(frame);
+            return true;
+        }
+
+        /** Answer the requests sent so far, not those sent as slots free up */
+        int answer(RawRpc rpc) {
+            byte[][] held;
+            synchronized (this) {
+                held = requests.toArray(new byte[requests.size()][]);
+                requests.clear();
+            }
+            for (byte[] request : held) {
+                byte[] reply = replyTo(request);
+                assertTrue(rpc.onFrame(reply, 0, reply.length));
+            }
+            return held.length;
+        }
+    }
+
+    /** The reply the mod gives: same sequence, payload reversed */
+    private static byte[] replyTo(byte[] request) {
+        assertEquals(RawRpc.TYPE_REQUEST, request[0]);
+        byte[] reply = new byte[request.length];
+        reply[0] = RawRpc.TYPE_REPLY;
+        reply[1] = request[1];
+        reply[2] = request[2];
+        for (int i = RawRpc.HEADER_SIZE; i < request.length; i++) {
+            reply[i] = request[request.length - 1 - i + RawRpc.HEADER_SIZE];
+        }
+        return reply;
+    }
+
+    private byte[] encode(byte[] frame) {
+        byte[] wire = new byte[codec.maxEncodedLength(frame.length)];
+        int length = codec.encode(frame, 0, frame.length, wire, 0);
+        return Arrays.copyOf(wire, length);
+    }
+
+    private static byte[] reversed(byte[] data) {
+        byte[] copy = new byte[data.length];
+        for (int i = 0; i < data.length; i++) {
+            copy[i] = data[data.length - 1 - i];
+        }
+        return copy;
+    }
+
+    private LoopbackMod mod;
+
+    private RawRpc connect(long latencyMs, int maxInFlight) {
+        mod = new LoopbackMod(latencyMs);
+        mod.rpc = new RawRpc(mod, timer, maxInFlight);
+        return mod.rpc;
+    }
+
+    @Before
+    public void setUp() {
+        timer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        if (mod != null) {
+            mod.close();
+        }
+        timer.shutdownNow();
+    }
+
+    @Test
+    public void repliesMatchTheirRequests() throws Exception {
+        RawRpc rpc = connect(2, 16);
+        Random random = new Random(1);
+        List<byte[]> requests = new ArrayList<>();
+        List<RawRpc.Call> calls = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            byte[] request = new byte[1 + random.nextInt(64)];
+            random.nextBytes(request);
+            request[0] = (byte) (1 + random.nextInt(100));
+            requests.add(request);
+            calls.add(rpc.call(request, 5000, null));
+        }
+
+        for (int i = 0; i < calls.size(); i++) {
+            assertArrayEquals(reversed(requests.get(i)), calls.get(i).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(300, rpc.getRepliedCount());
+        assertEquals(0, rpc.getInFlightCount());
+        assertEquals(0, rpc.getUnmatchedCount());
+    }
+
+    @Test
+    public void pipelinedCallsAreNotBoundByRoundTrip() throws Exception {
+        int maxInFlight = 32;
+        int count = 200;
+        HeldLink link = new HeldLink();
+        RawRpc rpc = new RawRpc(link, timer, maxInFlight);
+
+        List<RawRpc.Call> calls = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            calls.add(rpc.call(new byte[]{1, (byte) i}, 10000, null));
+        }
+        assertEquals(maxInFlight, rpc.getInFlightCount());
+        assertEquals(count - maxInFlight, rpc.getWaitingCount());
+
+        /** Every round trip carries a full set of calls, not one */
+        int roundTrips = 0;
+        int answered = 0;
+        while (answered < count) {
+            int requests = link.answer(rpc);
+            assertEquals(Math.min(maxInFlight, count - answered), requests);
+            answered += requests;
+            roundTrips++;
+        }
+        assertEquals((count + maxInFlight - 1) / maxInFlight, roundTrips);
+
+        /** Each call got the reply to its own request */
+        for (int i = 0; i < count; i++) {
+            assertTrue(calls.get(i).isDone());
+            assertArrayEquals(new byte[]{(byte) i, 1}, calls.get(i).get());
+        }
+        assertEquals(count, rpc.getRepliedCount());
+        assertEquals(0, rpc.getInFlightCount());
+        assertEquals(0, rpc.getWaitingCount());
+    }
+
+    @Test
+    public void timeoutFreesTheSlotAndLateReplyIsDropped() throws Exception {
+        RawRpc rpc = connect(1, 1);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        RawRpc.Call late = rpc.call(new byte[]{LATE, 1}, 50, new RawRpc.Callback() {
+            @Override
+            public void onReply(byte[] reply) {
+                fail("reply after timeout");
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                failure.set(e);
+            }
+        });
+
+        /** Waits for the slot the late call holds */
+        RawRpc.Call next = rpc.call(new byte[]{2, 3}, 1000, null);
+        assertEquals(-1, next.getSequence());
+        assertEquals(1, rpc.getWaitingCount());
+
+        try {
+            late.get(2, TimeUnit.SECONDS);
+            fail("no timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertTrue(failure.get() instanceof TimeoutException);
+        assertArrayEquals(new byte[]{3, 2}, next.get(2, TimeUnit.SECONDS));
+        assertEquals(1, rpc.getTimeoutCount());
+
+        /** The late reply still comes, and matches nothing */
+        long deadline = System.currentTimeMillis() + 2000;
+        while (rpc.getUnmatchedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, rpc.getUnmatchedCount());
+    }
+
+    @Test
+    public void cancelledCallIsNotCompletedByItsReply() throws Exception {
+        RawRpc rpc = connect(1, 4);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        final AtomicBoolean cancelledInCallback = new AtomicBoolean();
+        final AtomicReference<RawRpc.Call> self = new AtomicReference<>();
+        RawRpc.Call call = rpc.call(new byte[]{LATE, 9}, 5000, new RawRpc.Callback() {
+            @Override
+            public void onReply(byte[] reply) {
+                fail("reply after cancel");
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                failure.set(e);
+                cancelledInCallback.set(self.get().isCancelled());
+            }
+        });
+        self.set(call);
+        assertTrue(call.cancel(false));
+        assertTrue(call.isCancelled());
+        assertTrue(call.isDone());
+        assertFalse(call.cancel(false));
+        assertEquals(0, rpc.getInFlightCount());
+
+        /** Cancelled before anyone hears it is done */
+        assertTrue(failure.get() instanceof CancellationException);
+        assertTrue(cancelledInCallback.get());
+        try {
+            call.get();
+            fail("cancelled call returned");
+        } catch (CancellationException e) {
+            /** Expected */
+        }
+    }
+
+    @Test
+    public void completedCallIsNotCancelled() throws Exception {
+        RawRpc rpc = connect(1, 4);
+        RawRpc.Call call = rpc.call(new byte[]{1, 2});
+        assertArrayEquals(new byte[]{2, 1}, call.get(5, TimeUnit.SECONDS));
+        assertFalse(call.cancel(false));
+        assertFalse(call.isCancelled());
+        assertArrayEquals(new byte[]{2, 1}, call.get());
+    }
+
+    @Test
+    public void disconnectFailsCalls() throws Exception {
+        RawRpc rpc = connect(1, 1);
+        RawRpc.Call sent = rpc.call(new byte[]{LATE, 1}, 5000, null);
+        RawRpc.Call waiting = rpc.call(new byte[]{4}, 5000, null);
+
+        rpc.failPending(new IOException("RAW I/O closed"));
+        for (RawRpc.Call call : new RawRpc.Call[]{sent, waiting}) {
+            try {
+                call.get(1, TimeUnit.SECONDS);
+                fail("pending call returned");
+            } catch (ExecutionException e) {
+                assertEquals("RAW I/O closed", e.getCause().getMessage());
+            }
+        }
+
+        /** Not sent while the mod is away */
+        mod.connected = false;
+        try {
+            rpc.call(new byte[]{5}).get(1, TimeUnit.SECONDS);
+            fail("call sent while disconnected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(0, rpc.getInFlightCount());
+
+        /** Back again, and closed for good */
+        mod.connected = true;
+        assertArrayEquals(new byte[]{7, 6}, rpc.call(new byte[]{6, 7}).get(1, TimeUnit.SECONDS));
+        rpc.close();
+        try {
+            rpc.call(new byte[]{8}).get(1, TimeUnit.SECONDS);
+            fail("call after close");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void otherFramesAreLeftAsData() {
+        RawRpc rpc = new RawRpc(new RawRpc.Sender() {
+            @Override
+            public boolean send(byte[] frame) {
+                return true;
+            }
+        }, timer, 1);
+        assertFalse(rpc.onFrame(new byte[]{RawRpc.TYPE_REQUEST, 0, 1, 2}, 0, 4));
+        assertFalse(rpc.onFrame(new byte[]{RawRpc.TYPE_REPLY, 0}, 0, 2));
+        assertFalse(rpc.onFrame(new byte[]{0x01}, 0, 1));
+    }
+}
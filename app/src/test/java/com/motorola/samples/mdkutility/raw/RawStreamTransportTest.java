@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * RawStreamTransport opened on real file descriptors, as RawPersonality opens
+ * it on the RAW interface; a temporary file stands in for the mod.
+ */
+public class RawStreamTransportTest {
+    private static final int BUFFER_SIZE = 1024;
+    private static final int COMMAND_SIZE = 256;
+    private static final int COMMANDS = 4096;
+
+    private File file;
+    private FileOutputStream fileOut;
+    private FileInputStream fileIn;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("raw", ".bin");
+        fileOut = new FileOutputStream(file);
+        fileIn = new FileInputStream(file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fileIn.close();
+        fileOut.close();
+        file.delete();
+    }
+
+    @Test
+    public void commandsRoundTripThroughTheFileDescriptor() throws Exception {
+        RawTransport writer = RawStreamTransport.open(fileOut.getFD());
+        byte[] command = new byte[COMMAND_SIZE + 2];
+        for (int i = 0; i < COMMANDS; i++) {
+            /** Written from an offset, as a batch inside a larger array */
+            Arrays.fill(command, (byte) i);
+            writer.write(command, 1, COMMAND_SIZE);
+        }
+        assertEquals((long) COMMANDS * COMMAND_SIZE, file.length());
+
+        RawTransport reader = RawStreamTransport.open(fileIn.getFD());
+        byte[] buffer = new byte[BUFFER_SIZE + 1];
+        long received = 0;
+        int n;
+        while ((n = reader.read(buffer, 1, BUFFER_SIZE)) > 0) {
+            for (int i = 0; i < n; i++) {
+                assertEquals((byte) ((received + i) / COMMAND_SIZE), buffer[1 + i]);
+            }
+            received += n;
+        }
+        assertEquals(-1, n);
+        assertEquals((long) COMMANDS * COMMAND_SIZE, received);
+    }
+
+    @Test
+    public void readTakesAtMostTheRequestedLength() throws Exception {
+        RawTransport writer = RawStreamTransport.open(fileOut.getFD());
+        writer.write(new byte[]{1, 2, 3, 4, 5}, 0, 5);
+
+        RawTransport reader = RawStreamTransport.open(fileIn.getFD());
+        byte[] buffer = new byte[8];
+        assertEquals(2, reader.read(buffer, 0, 2));
+        assertEquals(3, reader.read(buffer, 2, 6));
+        assertEquals(5, buffer[4]);
+        assertEquals(0, buffer[5]);
+        assertEquals(-1, reader.read(buffer, 0, 8));
+    }
+}
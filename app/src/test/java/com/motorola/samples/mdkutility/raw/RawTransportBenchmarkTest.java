@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The same command load through RawWriteQueue over the stream and the
+ * channel transport, each on a real file descriptor: the stream one
+ * coalesces every batch into an array, the channel one gathers the frames.
+ * Both must write the same bytes with one write call per batch, the channel
+ * one also splitting batches of more than MAX_FRAMES commands.
+ */
+public class RawTransportBenchmarkTest {
+    private static final int COMMANDS = 20000;
+    private static final int MAX_BATCH_BYTES = 4096;
+
+    private File streamFile;
+    private File channelFile;
+    private byte[][] commands;
+
+    /** Counts the write calls reaching the file descriptor */
+    private static class CountingStream extends FilterOutputStream {
+        int writes = 0;
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            writes++;
+            out.write(data, offset, length);
+        }
+    }
+
+    private static class CountingChannel implements GatheringByteChannel {
+        final FileChannel channel;
+        int writes = 0;
+
+        CountingChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public long write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+            writes++;
+            return channel.write(buffers, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] buffers) throws IOException {
+            return write(buffers, 0, buffers.length);
+        }
+
+        @Override
+        public int write(ByteBuffer buffer) throws IOException {
+            writes++;
+            return channel.write(buffer);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        streamFile = File.createTempFile("rawStream", ".bin");
+        channelFile = File.createTempFile("rawChannel", ".bin");
+
+        /** Mixed sizes, as RAW commands come */
+        Random random = new Random(5);
+        commands = new byte[COMMANDS][];
+        for (int i = 0; i < COMMANDS; i++) {
+            commands[i] = new byte[1 + random.nextInt(128)];
+            random.nextBytes(commands[i]);
+        }
+    }
+
+    /** The batches of up to MAX_BATCH_BYTES and maxFrames commands */
+    private int batches(int maxFrames) {
+        int batches = 0;
+        int bytes = 0;
+        int frames = 0;
+        for (byte[] command : commands) {
+            if (batches == 0 || bytes + command.length > MAX_BATCH_BYTES || frames == maxFrames) {
+                batches++;
+                bytes = 0;
+                frames = 0;
+            }
+            bytes += command.length;
+            frames++;
+        }
+        return batches;
+    }
+
+    @After
+    public void tearDown() {
+        streamFile.delete();
+        channelFile.delete();
+    }
+
+    /** Queue every command, then drain as the sending thread does */
+    private RawWriteQueue.Stats push(RawTransport transport) throws IOException {
+        RawWriteQueue queue = new RawWriteQueue(MAX_BATCH_BYTES);
+        for (byte[] command : commands) {
+            queue.offer(command);
+        }
+        while (queue.writeNext(transport)) {
+            /** Drain */
+        }
+        assertTrue(queue.isEmpty());
+        return queue.getStats();
+    }
+
+    @Test
+    public void bothTransportsWriteEveryBatchWithOneCall() throws Exception {
+        FileOutputStream streamOut = new FileOutputStream(streamFile);
+        FileOutputStream channelOut = new FileOutputStream(channelFile);
+        try {
+            CountingStream stream = new CountingStream(streamOut);
+            RawWriteQueue.Stats streamStats = push(new RawStreamTransport(
+                    new FileInputStream(streamOut.getFD()), stream));
+
+            CountingChannel channel = new CountingChannel(channelOut.getChannel());
+            RawWriteQueue.Stats channelStats = push(new RawChannelTransport(
+                    new FileInputStream(channelOut.getFD()).getChannel(), channel, 1024));
+
+            assertEquals(batches(COMMANDS), streamStats.batches);
+            assertEquals(streamStats.batches, stream.writes);
+            /** Some batches hit the frame limit first, each is still one writev() */
+            assertTrue(batches(RawChannelTransport.MAX_FRAMES) > batches(COMMANDS));
+            assertEquals(batches(RawChannelTransport.MAX_FRAMES), channelStats.batches);
+            assertEquals(channelStats.batches, channel.writes);
+            assertEquals(COMMANDS, streamStats.commands);
+            assertEquals(COMMANDS, channelStats.commands);
+            assertEquals(streamStats.bytes, channelStats.bytes);
+        } finally {
+            streamOut.close();
+            channelOut.close();
+        }
+
+        byte[] streamed = Files.readAllBytes(streamFile.toPath());
+        assertEquals(streamed.length, streamFile.length());
+        int offset = 0;
+        for (byte[] command : commands) {
+            for (byte b : command) {
+                assertEquals(b, streamed[offset++]);
+            }
+        }
+        assertEquals(streamed.length, offset);
+        assertArrayEquals(streamed, Files.readAllBytes(channelFile.toPath()));
+    }
+}
@@ -0,0 +1,387 @@
+/**
+ * Copyright (c) 2016 Motorola Mobility, LLC.
+ * All rights reserved.
+ * <p/>
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ * <p/>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.motorola.samples.mdkutility.raw;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * RawWriteQueue coalescing, ring growth and marks, driven as the sending
+ * thread would: nextBatch() then onBatchWritten() or clear().
+ */
+public class RawWriteQueueTest {
+    private static byte[] cmd(int value, int length) {
+        byte[] cmd = new byte[length];
+        for (int i = 0; i < length; i++) {
+            cmd[i] = (byte) value;
+        }
+        return cmd;
+    }
+
+    /** Take the next batch as written bytes, null if empty */
+    private static byte[] next(RawWriteQueue queue) {
+        byte[] batch = queue.nextBatch();
+        if (batch == null) {
+            return null;
+        }
+        byte[] written = new byte[queue.batchLength()];
+        System.arraycopy(batch, 0, written, 0, written.length);
+        queue.onBatchWritten();
+        return written;
+    }
+
+    /** Records every write, as frames for a gathering write and as one frame otherwise */
+    private static class RecordingTransport implements RawTransport {
+        final List<byte[][]> writes = new ArrayList<>();
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            return -1;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) {
+            writes.add(new byte[][]{Arrays.copyOfRange(data, offset, offset + length)});
+        }
+    }
+
+    private static class GatheringTransport extends RecordingTransport
+            implements RawTransport.Gathering {
+        final ByteBuffer[] frames;
+
+        GatheringTransport(int maxFrames) {
+            frames = new ByteBuffer[maxFrames];
+        }
+
+        @Override
+        public int getMaxFrames() {
+            return frames.length;
+        }
+
+        @Override
+        public ByteBuffer frame(int index, int size) {
+            frames[index] = ByteBuffer.allocate(size);
+            return frames[index];
+        }
+
+        @Override
+        public void writeFrames(int count) throws IOException {
+            byte[][] written = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                written[i] = Arrays.copyOf(frames[i].array(), frames[i].position());
+            }
+            writes.add(written);
+        }
+    }
+
+    /** Records its name in the shared log when run */
+    private static Runnable log(final List<String> log, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void onlyTheFirstOfferSchedulesADrain() {
+        RawWriteQueue queue = new RawWriteQueue(0);
+        assertTrue(queue.isEmpty());
+        assertTrue(queue.offer(cmd(1, 4)));
+        assertFalse(queue.offer(cmd(2, 4)));
+        assertFalse(queue.isEmpty());
+
+        next(queue);
+        next(queue);
+        assertTrue(queue.isEmpty());
+        assertTrue(queue.offer(cmd(3, 4)));
+    }
+
+    @Test
+    public void withoutBatchingEveryCommandIsWrittenAsIs() {
+        RawWriteQueue queue = new RawWriteQueue(0);
+        byte[] first = cmd(1, 4);
+        byte[] second = cmd(2, 4);
+        queue.offer(first);
+        queue.offer(second);
+
+        /** No copy, the command array itself */
+        assertSame(first, queue.nextBatch());
+        assertEquals(4, queue.batchLength());
+        queue.onBatchWritten();
+        assertSame(second, queue.nextBatch());
+        queue.onBatchWritten();
+        assertNull(queue.nextBatch());
+
+        RawWriteQueue.Stats stats = queue.getStats();
+        assertEquals(2, stats.batches);
+        assertEquals(2, stats.commands);
+        assertEquals(1, stats.maxBatchCommands);
+    }
+
+    @Test
+    public void commandsCoalesceUpToMaxBatchBytes() {
+        RawWriteQueue queue = new RawWriteQueue(10);
+        queue.offer(cmd(1, 4));
+        queue.offer(cmd(2, 4));
+        assertFalse(queue.isBatchFull());
+        queue.offer(cmd(3, 4));
+        assertTrue(queue.isBatchFull());
+
+        /** The third would make 12 bytes, it starts the next batch */
+        assertArrayEquals(new byte[]{1, 1, 1, 1, 2, 2, 2, 2}, next(queue));
+        assertArrayEquals(cmd(3, 4), next(queue));
+        assertNull(next(queue));
+
+        RawWriteQueue.Stats stats = queue.getStats();
+        assertEquals(2, stats.batches);
+        assertEquals(3, stats.commands);
+        assertEquals(12, stats.bytes);
+        assertEquals(2, stats.maxBatchCommands);
+    }
+
+    @Test
+    public void gatheredBatchesKeepEveryCommandAsItsOwnFrame() throws Exception {
+        RawWriteQueue queue = new RawWriteQueue(10);
+        GatheringTransport transport = new GatheringTransport(8);
+        List<String> log = new ArrayList<>();
+        queue.offer(cmd(1, 4));
+        queue.offer(cmd(2, 4));
+        queue.offer(cmd(3, 4));
+        queue.mark(log(log, "written"), log(log, "lost"));
+
+        /** Batched as when coalesced, but not copied together */
+        assertTrue(queue.writeNext(transport));
+        assertTrue(log.isEmpty());
+        assertTrue(queue.writeNext(transport));
+        assertFalse(queue.writeNext(transport));
+        assertEquals(2, transport.writes.size());
+        assertArrayEquals(new byte[][]{cmd(1, 4), cmd(2, 4)}, transport.writes.get(0));
+        assertArrayEquals(new byte[][]{cmd(3, 4)}, transport.writes.get(1));
+        assertEquals(1, log.size());
+
+        RawWriteQueue.Stats stats = queue.getStats();
+        assertEquals(2, stats.batches);
+        assertEquals(3, stats.commands);
+        assertEquals(12, stats.bytes);
+    }
+
+    @Test
+    public void gatheredBatchStopsAtTheFrameLimit() throws Exception {
+        RawWriteQueue queue = new RawWriteQueue(1024);
+        GatheringTransport transport = new GatheringTransport(2);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(cmd(i, 4));
+        }
+        while (queue.writeNext(transport)) {
+            /** Drain */
+        }
+        assertEquals(3, transport.writes.size());
+        assertEquals(2, transport.writes.get(0).length);
+        assertEquals(2, transport.writes.get(1).length);
+        assertArrayEquals(new byte[][]{cmd(4, 4)}, transport.writes.get(2));
+    }
+
+    @Test
+    public void gatheredFramesAreEncodedOneByOne() throws Exception {
+        RawFrameCodec codec = new LengthPrefixCodec();
+        RawWriteQueue queue = new RawWriteQueue(1024);
+        queue.setFrameCodec(codec);
+        GatheringTransport transport = new GatheringTransport(8);
+        queue.offer(cmd(1, 3));
+        queue.offer(cmd(2, 5));
+        assertTrue(queue.writeNext(transport));
+
+        byte[][] frames = transport.writes.get(0);
+        assertEquals(2, frames.length);
+        for (int i = 0; i < 2; i++) {
+            byte[] command = i == 0 ? cmd(1, 3) : cmd(2, 5);
+            byte[] encoded = new byte[codec.maxEncodedLength(command.length)];
+            int length = codec.encode(command, 0, command.length, encoded, 0);
+            assertArrayEquals(Arrays.copyOf(encoded, length), frames[i]);
+        }
+        assertEquals(frames[0].length + frames[1].length, queue.getStats().bytes);
+    }
+
+    @Test
+    public void plainTransportGetsTheCoalescedBatch() throws Exception {
+        RawWriteQueue queue = new RawWriteQueue(16);
+        RecordingTransport transport = new RecordingTransport();
+        queue.offer(cmd(1, 4));
+        queue.offer(cmd(2, 4));
+        assertTrue(queue.writeNext(transport));
+        assertFalse(queue.writeNext(transport));
+        assertArrayEquals(new byte[][]{{1, 1, 1, 1, 2, 2, 2, 2}}, transport.writes.get(0));
+    }
+
+    @Test
+    public void largeCommandIsWrittenOnItsOwn() {
+        RawWriteQueue queue = new RawWriteQueue(8);
+        byte[] large = cmd(2, 20);
+        queue.offer(cmd(1, 4));
+        queue.offer(large);
+        queue.offer(cmd(3, 4));
+
+        assertArrayEquals(cmd(1, 4), next(queue));
+        assertSame(large, queue.nextBatch());
+        queue.onBatchWritten();
+        assertArrayEquals(cmd(3, 4), next(queue));
+    }
+
+    @Test
+    public void ringGrowsAndKeepsTheOrder() {
+        RawWriteQueue queue = new RawWriteQueue(0);
+
+        /** Move the head so the ring wraps before it grows */
+        for (int i = 0; i < 10; i++) {
+            queue.offer(cmd(i, 1));
+            next(queue);
+        }
+        for (int i = 0; i < 100; i++) {
+            queue.offer(cmd(i, 1));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals((byte) i, next(queue)[0]);
+        }
+        assertNull(next(queue));
+        assertEquals(110, queue.getStats().commands);
+    }
+
+    @Test
+    public void marksRunInOrderOnceTheirCommandsAreWritten() {
+        RawWriteQueue queue = new RawWriteQueue(0);
+        List<String> log = new ArrayList<>();
+
+        /** Nothing pending, right away */
+        queue.mark(log(log, "now"), log(log, "failed"));
+        assertEquals(1, log.size());
+
+        queue.offer(cmd(1, 1));
+        queue.mark(log(log, "first"), log(log, "failed"));
+        queue.offer(cmd(2, 1));
+        queue.mark(log(log, "second"), log(log, "failed"));
+
+        next(queue);
+        assertEquals(2, log.size());
+        assertEquals("first", log.get(1));
+        next(queue);
+        assertEquals(3, log.size());
+        assertEquals("second", log.get(2));
+    }
+
+    @Test
+    public void clearFailsTheMarksOfDroppedCommands() {
+        RawWriteQueue queue = new RawWriteQueue(0);
+        List<String> log = new ArrayList<>();
+
+        queue.offer(cmd(1, 1));
+        queue.mark(log(log, "written"), log(log, "lost"));
+        queue.offer(cmd(2, 1));
+        queue.mark(log(log, "written"), log(log, "lost"));
+        queue.mark(null, null);
+
+        /** The first is written, the second in flight when the interface closed */
+        next(queue);
+        queue.nextBatch();
+        queue.clear();
+        assertEquals(2, log.size());
+        assertEquals("written", log.get(0));
+        assertEquals("lost", log.get(1));
+
+        /** The batch in flight doesn't count twice, later marks wait again */
+        queue.onBatchWritten();
+        queue.offer(cmd(3, 1));
+        queue.mark(log(log, "later"), log(log, "lost"));
+        assertEquals(2, log.size());
+        next(queue);
+        assertEquals("later", log.get(2));
+    }
+
+    @Test
+    public void batchInFlightAtClearDoesNotReachLaterMarks() {
+        RawWriteQueue queue = new RawWriteQueue(16);
+        List<String> log = new ArrayList<>();
+        queue.offer(cmd(1, 4));
+        queue.offer(cmd(2, 4));
+        assertNotNull(queue.nextBatch());
+        assertEquals(8, queue.batchLength());
+        queue.clear();
+
+        /** Offered after clear(), before the old batch finishes */
+        queue.offer(cmd(3, 4));
+        queue.mark(log(log, "written"), log(log, "lost"));
+        queue.onBatchWritten();
+        assertTrue(log.isEmpty());
+
+        assertArrayEquals(cmd(3, 4), next(queue));
+        assertEquals(1, log.size());
+        assertEquals("written", log.get(0));
+    }
+
+    @Test
+    public void reconfiguringKeepsPendingCommandsMarksAndStats() {
+        RawWriteQueue queue = new RawWriteQueue(0);
+        List<String> log = new ArrayList<>();
+        queue.offer(cmd(1, 4));
+        next(queue);
+
+        queue.offer(cmd(2, 4));
+        queue.offer(cmd(3, 4));
+        queue.mark(log(log, "written"), log(log, "lost"));
+        queue.setMaxBatchBytes(16);
+        assertEquals(16, queue.getMaxBatchBytes());
+
+        assertArrayEquals(new byte[]{2, 2, 2, 2, 3, 3, 3, 3}, next(queue));
+        assertEquals(1, log.size());
+        assertEquals("written", log.get(0));
+        assertEquals(2, queue.getStats().batches);
+        assertEquals(3, queue.getStats().commands);
+
+        /** And back to a write per command */
+        queue.setMaxBatchBytes(0);
+        queue.offer(cmd(4, 4));
+        queue.offer(cmd(5, 4));
+        assertArrayEquals(cmd(4, 4), next(queue));
+        assertArrayEquals(cmd(5, 4), next(queue));
+    }
+}